@@ -0,0 +1,89 @@
+package primary;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost DuplicateIndex adds per post and guild: fingerprinting a post (canonical link, crosspost root,
+ * title SimHash) and looking it up, against an index already holding 1000 or 100000 fingerprints.
+ * Posts come in three shapes: link posts with tracking parameters, crossposts, and self posts.
+ * checkNew is the usual case, a post the guild was not sent a copy of (so it is added, and the oldest
+ * fingerprint evicted); checkDuplicate is a post that is held back.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FingerprintBenchmark {
+    private static final String[] WORDS = { "new", "study", "finds", "rust", "java", "release", "announced", "today",
+            "open", "source", "project", "drops", "support", "for", "windows", "linux", "gpu", "driver", "update", "breaks" };
+    private static final int POSTS = 1024;
+    private static final String GUILD = "400000000000000000";
+
+    @Param({"1000", "100000"})
+    public int entries;
+
+    private RedditPost[] posts;     // posts to look up, in the index for GUILD only
+    private String[] guilds;        // guilds that were sent none of them
+    private DuplicateIndex index;
+    private long now;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        now = System.currentTimeMillis();
+        index = new DuplicateIndex(TimeUnit.DAYS.toMillis(1), entries + POSTS, 3);
+        for(int i = 0; i < entries; i++) {
+            index.check(GUILD, DuplicateIndex.fingerprint(post(random, POSTS + i)), now);
+        }
+        posts = new RedditPost[POSTS];
+        guilds = new String[POSTS];
+        for(int i = 0; i < POSTS; i++) {
+            posts[i] = post(random, i);
+            guilds[i] = Long.toString(500000000000000000L + i);
+            index.check(GUILD, DuplicateIndex.fingerprint(posts[i]), now); // newest, so only checkNew evicts them
+        }
+    }
+
+    private static RedditPost post(Random random, int i) {
+        StringBuilder title = new StringBuilder();
+        for(int w = 0; w < 8 + random.nextInt(8); w++) {
+            title.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        title.append(i);
+        String id = Long.toString(1_000_000_000L + i, 36);
+        String url;
+        String parent = null;
+        switch(i % 3) {
+            case 0: url = "https://www.example.com/articles/" + i + "/?utm_source=reddit&utm_medium=social&id=" + i; break;
+            case 1:
+                parent = "t3_" + Long.toString(500_000_000L + i, 36);
+                url = "https://www.reddit.com/r/sub/comments/" + parent.substring(3) + "/title/";
+                break;
+            default: url = "https://www.reddit.com/r/sub/comments/" + id + "/title/";
+        }
+        return new RedditPost("t3_" + id, title.toString(), null, "author", "sub",
+                "/r/sub/comments/" + id + "/title/", 1, 0, 0, url, parent);
+    }
+
+    @Benchmark
+    public DuplicateIndex.Fingerprint fingerprint() {
+        return DuplicateIndex.fingerprint(posts[next++ & (POSTS - 1)]);
+    }
+
+    @Benchmark
+    public DuplicateIndex.Reason checkNew() {
+        // A (post, guild) pair comes back only after 2^20 calls, long after it was evicted
+        int n = next++;
+        RedditPost post = posts[n & (POSTS - 1)];
+        return index.check(guilds[(n >>> 10) & (POSTS - 1)], DuplicateIndex.fingerprint(post), now);
+    }
+
+    @Benchmark
+    public DuplicateIndex.Reason checkDuplicate() {
+        return index.check(GUILD, DuplicateIndex.fingerprint(posts[next++ & (POSTS - 1)]), now);
+    }
+}
@@ -0,0 +1,62 @@
+package primary;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long a restart spends replaying the journal, in the worst case the compaction allows: two hours
+ * (the seen-post retention) of posts sent at 1, 10 or 100 posts per second, none of them checkpointed
+ * (the database was down the whole time), plus a mark moving for every tenth post. Segments older than that
+ * are deleted at the next checkpoint, so this bounds recovery time at a given rate, however long the journal ran.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class JournalRecoveryBenchmark {
+    private static final long RETENTION_SECONDS = TimeUnit.MILLISECONDS.toSeconds(SeenPostIndex.RETENTION);
+
+    @Param({"1", "10", "100"})
+    public int postsPerSecond;
+
+    private File dir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("journal-bench").toFile();
+        Journal journal = new Journal(dir);
+        journal.recover(new SeenPostIndex(), new InMemoryPostStore(), new HighWaterMarks());
+        long posts = postsPerSecond * RETENTION_SECONDS;
+        long start = System.currentTimeMillis() - SeenPostIndex.RETENTION;
+        QueryKey key = new QueryKey("rust", "programming");
+        for(long i = 0; i < posts; i++) {
+            String fullName = "t3_" + Long.toString(1_000_000_000L + i, 36);
+            long created = start + i * 1000 / postsPerSecond;
+            journal.seen(Long.toString(400000000000000000L + i % 1000), new RedditPost(fullName, "", null, "",
+                    "programming", "/r/programming/comments/" + fullName.substring(3) + "/title/", 0, 0, created), () -> { });
+            if(i % 10 == 0) journal.mark(key, fullName, created, () -> { });
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public long recover() {
+        return new Journal(dir).recover(new SeenPostIndex(), new InMemoryPostStore(), new HighWaterMarks());
+    }
+}
@@ -0,0 +1,78 @@
+package primary;
+
+import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.Types;
+import net.dean.jraw.JrawUtils;
+import net.dean.jraw.databind.Enveloped;
+import net.dean.jraw.models.Listing;
+import net.dean.jraw.models.Submission;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading one listing page into RedditPosts: JRAW's models (JrawRedditSource) against the ListingParser
+ * (LeanRedditSource), on fixtures shaped like real pages (src/jmh/resources/listings: a 25-post search
+ * page and a 100-post /new page, with every field Reddit sends). The incremental variants are the usual
+ * case once a search has a mark: only the first two posts are new, and the rest of the page was handled last time.
+ * Allocation per page is reported by the gc profiler (see build.gradle).
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ListingBenchmark {
+    @Param({"search", "new"})
+    public String fixture;
+
+    private String page;                                // the JSON of the page
+    private ListingParser parser;
+    private JsonAdapter<Listing<Submission>> adapter;   // what JRAW's paginators deserialize pages with
+    private long handledBefore;                         // creation time of the third post: it and older ones were handled
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        try(InputStream in = ListingBenchmark.class.getResourceAsStream("/listings/" + fixture + ".json")) {
+            page = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        parser = new ListingParser();
+        adapter = JrawUtils.moshi.adapter(Types.newParameterizedType(Listing.class, Submission.class), Enveloped.class);
+        handledBefore = parser.parse(page, created -> false).get(2).getCreated();
+    }
+
+    @Benchmark
+    public List<RedditPost> jraw() throws IOException {
+        Listing<Submission> listing = adapter.fromJson(page);
+        List<RedditPost> posts = new ArrayList<>(listing.size());
+        for(Submission s : listing) {
+            posts.add(RedditPost.from(s));
+        }
+        return posts;
+    }
+
+    @Benchmark
+    public List<RedditPost> lean() {
+        return parser.parse(page, created -> false);
+    }
+
+    @Benchmark
+    public List<RedditPost> jrawIncremental() throws IOException {
+        Listing<Submission> listing = adapter.fromJson(page);
+        List<RedditPost> posts = new ArrayList<>();
+        for(Submission s : listing) {
+            if(s.getCreated().getTime() <= handledBefore) break;
+            posts.add(RedditPost.from(s));
+        }
+        return posts;
+    }
+
+    @Benchmark
+    public List<RedditPost> leanIncremental() {
+        return parser.parse(page, created -> created <= handledBefore);
+    }
+}
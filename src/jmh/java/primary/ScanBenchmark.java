@@ -0,0 +1,129 @@
+package primary;
+
+import net.dv8tion.jda.api.entities.MessageEmbed;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the scan path against in-process fakes, at different numbers of guilds and queries.
+ * Guild g watches query g % queries and posts in one channel of its own.
+ * Run with: gradlew jmh (results in build/reports/jmh/results.json)
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ScanBenchmark {
+    @Param({"1", "100", "10000"})
+    public int guilds;
+
+    @Param({"1", "50", "500"})
+    public int queries;
+
+    private Map<QueryKey, Map<String, List<String>>> subscriptions;    // as ScanEngine would build them
+    private List<QueryPlanner.Batch> searches;                          // the searches they are packed into
+    private Map<String, List<String>> everyGuild;                       // { guildId -> channels } of all guilds
+    private SyntheticRedditSource source;
+    private InMemoryPostStore store;
+    private DeliveryPipeline delivery;
+    private SeenPostIndex seenPosts;
+    private PostScanner scanner;
+    private RedditPost post;            // a post for the embed benchmark
+    private String[] probes;            // fullnames for the dedupe benchmark, every other one already seen
+    private String[] probeGuilds;       // guild each probe is looked up in
+    private long nextPost;              // id of the next post made by fanOut
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        List<String> words = new ArrayList<>();
+        for(int q = 0; q < queries; q++) {
+            words.add("term" + q);
+        }
+
+        subscriptions = new HashMap<>();
+        everyGuild = new HashMap<>();
+        for(int g = 0; g < guilds; g++) {
+            String guildId = guildId(g);
+            List<String> channels = Collections.singletonList("channel" + g);
+            QueryKey key = new QueryKey(words.get(g % queries), "bench");
+            subscriptions.computeIfAbsent(key, k -> new HashMap<>()).put(guildId, channels);
+            everyGuild.put(guildId, channels);
+        }
+
+        searches = QueryPlanner.plan(subscriptions.keySet());
+
+        source = new SyntheticRedditSource(10, words);
+        store = new InMemoryPostStore();
+        delivery = new DeliveryPipeline(100, 0, DeliveryPipeline.Overflow.DROP_OLDEST, new RecordingDiscordSink());
+        post = new RedditPost("t3_abc123", "A fairly ordinary title for a post about term0", null, "someone",
+                "bench", "/r/bench/comments/abc123/", 42, 7, System.currentTimeMillis());
+    }
+
+    /**
+     * Starts every iteration with an empty index, so the seen posts of earlier iterations do not pile up.
+     */
+    @Setup(Level.Iteration)
+    public void setUpIteration() {
+        seenPosts = new SeenPostIndex();
+        scanner = new PostScanner(source, store, seenPosts, new HighWaterMarks(), delivery);
+
+        long now = System.currentTimeMillis();
+        probes = new String[1024];
+        probeGuilds = new String[probes.length];
+        for(int i = 0; i < probes.length; i++) {
+            probes[i] = "t3_" + Long.toString(10_000_000L + i, 36);
+            probeGuilds[i] = guildId(i % guilds);
+            if(i % 2 == 0) seenPosts.add(probeGuilds[i], probes[i], now);
+        }
+    }
+
+    /**
+     * Makes the id of guild g, in the form of a Discord snowflake.
+     */
+    private static String guildId(int g) {
+        return Long.toString(100_000_000_000_000_000L + g);
+    }
+
+    /**
+     * One scan cycle: every planned search run once, and its new results fanned out.
+     */
+    @Benchmark
+    public void scanLoop() {
+        for(QueryPlanner.Batch search : searches) {
+            scanner.search(search, subscriptions);
+        }
+        store.flush();
+    }
+
+    /**
+     * One lookup in the seen-post index (half hits, half misses).
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean dedupeCheck() {
+        int i = (int) (nextPost++ & (probes.length - 1));
+        return seenPosts.contains(probeGuilds[i], probes[i]);
+    }
+
+    /**
+     * Building the embed of one post.
+     */
+    @Benchmark
+    public MessageEmbed embed() {
+        return PostScanner.buildEmbed(post);
+    }
+
+    /**
+     * One new post sent to every guild: dedupe, record and queue per guild.
+     */
+    @Benchmark
+    public void fanOut() {
+        long id = 20_000_000L + nextPost++;
+        RedditPost fresh = new RedditPost("t3_" + Long.toString(id, 36), post.getTitle(), null, post.getAuthor(),
+                post.getSubreddit(), post.getPermalink(), post.getScore(), post.getCommentCount(), System.currentTimeMillis());
+        scanner.notifySubscribers(fresh, everyGuild);
+        store.flush();
+    }
+}
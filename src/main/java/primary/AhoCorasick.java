@@ -0,0 +1,146 @@
+package primary;
+
+import java.util.*;
+
+/**
+ * Multi-pattern matcher (Aho-Corasick automaton).
+ * Built once from a list of patterns, it finds every pattern occurring in a text in a single pass,
+ * however many patterns there are. Matching is case-insensitive (patterns and text are lowercased),
+ * and on word boundaries, like Reddit's search: an occurrence only counts if it is not run into
+ * letters or digits on either side, so "cat" is found in "a cat!" but not in "education".
+ */
+
+public final class AhoCorasick {
+    private final char[][] edgeChars;   // edgeChars[node] = sorted characters leaving node
+    private final int[][] edgeTargets;  // edgeTargets[node][i] = node reached by edgeChars[node][i]
+    private final int[] fail;           // longest proper suffix of node that is also a node
+    private final int[] dict;           // nearest node on the fail chain that ends a pattern, or -1
+    private final int[][] outputs;      // indices of patterns ending exactly at node
+    private final int[] depth;          // length of the pattern prefix node stands for
+    private final int patternCount;
+
+    /**
+     * primary.AhoCorasick constructor
+     * @param patterns patterns to look for; empty patterns never match
+     */
+    public AhoCorasick(List<String> patterns) {
+        patternCount = patterns.size();
+
+        // Build the trie with maps, then freeze it into sorted arrays
+        List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+        List<List<Integer>> ends = new ArrayList<>();
+        trie.add(new TreeMap<>());
+        ends.add(new ArrayList<>());
+        for(int p = 0; p < patterns.size(); p++) {
+            String pattern = patterns.get(p).toLowerCase();
+            if(pattern.isEmpty()) continue;
+            int node = 0;
+            for(int i = 0; i < pattern.length(); i++) {
+                Integer next = trie.get(node).get(pattern.charAt(i));
+                if(next == null) {
+                    next = trie.size();
+                    trie.add(new TreeMap<>());
+                    ends.add(new ArrayList<>());
+                    trie.get(node).put(pattern.charAt(i), next);
+                }
+                node = next;
+            }
+            ends.get(node).add(p);
+        }
+
+        int n = trie.size();
+        depth = new int[n];
+        edgeChars = new char[n][];
+        edgeTargets = new int[n][];
+        outputs = new int[n][];
+        for(int node = 0; node < n; node++) {
+            TreeMap<Character, Integer> edges = trie.get(node);
+            edgeChars[node] = new char[edges.size()];
+            edgeTargets[node] = new int[edges.size()];
+            int i = 0;
+            for(Map.Entry<Character, Integer> edge : edges.entrySet()) {
+                edgeChars[node][i] = edge.getKey();
+                edgeTargets[node][i] = edge.getValue();
+                depth[edge.getValue()] = depth[node] + 1; // children are created after their parent
+                i++;
+            }
+            outputs[node] = ends.get(node).stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        // Breadth-first: a node's fail link only depends on shallower nodes
+        fail = new int[n];
+        dict = new int[n];
+        Arrays.fill(dict, -1);
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for(int child : edgeTargets[0]) {
+            queue.add(child);
+        }
+        while(!queue.isEmpty()) {
+            int node = queue.poll();
+            for(int i = 0; i < edgeChars[node].length; i++) {
+                char c = edgeChars[node][i];
+                int child = edgeTargets[node][i];
+
+                int f = fail[node];
+                while(f != 0 && step(f, c) < 0) {
+                    f = fail[f];
+                }
+                int target = step(f, c);
+                fail[child] = target < 0 || target == child ? 0 : target;
+                dict[child] = outputs[fail[child]].length > 0 ? fail[child] : dict[fail[child]];
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of patterns the matcher was built from.
+     * @return the number of patterns
+     */
+    public int size() {
+        return patternCount;
+    }
+
+    /**
+     * Finds which patterns occur in a text as whole words.
+     * @param text text to search (lowercased on the fly)
+     * @param found set to add the indices of the patterns found to
+     */
+    public void match(CharSequence text, BitSet found) {
+        int node = 0;
+        for(int i = 0; i < text.length(); i++) {
+            char c = Character.toLowerCase(text.charAt(i));
+            int next;
+            while((next = step(node, c)) < 0 && node != 0) {
+                node = fail[node];
+            }
+            node = next < 0 ? 0 : next;
+
+            int out = outputs[node].length > 0 ? node : dict[node];
+            if(out < 0 || !boundary(text, i + 1)) continue; // nothing ends here, or the word goes on
+            for(; out >= 0; out = dict[out]) {
+                if(!boundary(text, i + 1 - depth[out])) continue;
+                for(int p : outputs[out]) {
+                    found.set(p);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether a word boundary falls between text[at - 1] and text[at]: not both are letters or digits.
+     */
+    private static boolean boundary(CharSequence text, int at) {
+        return at == 0 || at == text.length()
+                || !Character.isLetterOrDigit(text.charAt(at - 1)) || !Character.isLetterOrDigit(text.charAt(at));
+    }
+
+    /**
+     * Follows the trie edge for c out of node.
+     * @return the node reached, or -1 if there is no such edge
+     */
+    private int step(int node, char c) {
+        int i = Arrays.binarySearch(edgeChars[node], c);
+        return i < 0 ? -1 : edgeTargets[node][i];
+    }
+}
@@ -0,0 +1,196 @@
+package primary;
+
+import net.dv8tion.jda.api.EmbedBuilder;
+import net.dv8tion.jda.api.entities.MessageEmbed;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Catches a guild up on a query it just added: searches further back than the live scans do (they only
+ * look at the past hour), and sends what it finds as one summary per channel instead of a message per post.
+ * A backfill is bounded by a lookback window (at most backfill.maxHours, default 24) and by a number of
+ * pages per subreddit (backfill.maxPages of 100 posts, default 5), whichever is reached first.
+ * It runs at a lower priority than the live scans: its requests come from a source of its own, whose
+ * gate holds each request back until the shared budget has spare permits left after it (see UpdateDB),
+ * on backfill.parallelism threads (default 2). Within that, the subreddits of a multireddit are paged in
+ * parallel, each one page ahead. Posts recent enough to be kept in the seen-post index are recorded
+ * there and in the store, flushed in one bulk write, so the live scans do not send them again; every post
+ * summarized is also fingerprinted into the DuplicateIndex, so that a crosspost or repost of it is held back too.
+ */
+
+public class Backfill {
+    private static final int PAGE_SIZE = 100;           // posts per page (Reddit's maximum)
+    private static final int MAX_LISTED = 40;           // posts listed in a summary; the rest are counted
+    private static final int MAX_DESCRIPTION = 3500;    // characters of a summary's list (Discord allows 4096, and 6000 per message)
+
+    private final RedditSource source;      // searches, gated behind the live scans
+    private final PostStore store;          // where sent posts are recorded
+    private final SeenPostIndex seenPosts;  // posts already sent, per guild
+    private final DuplicateIndex sentRecently; // what each guild was sent recently, to leave out copies; null if off
+    private final DeliveryPipeline delivery;
+    private final ExecutorService workers;  // pages the listings
+    private final long maxWindow;           // longest lookback (ms)
+    private final int maxPages;             // most pages read per subreddit
+    private final AtomicInteger running;    // backfills started and not summarized yet
+
+    /**
+     * primary.Backfill constructor
+     * @param source where posts come from (only used for backfills, so it can be held back)
+     * @param store where sent posts are recorded
+     * @param seenPosts index of the posts already sent, per guild
+     * @param sentRecently what each guild was sent recently (shared with the live scans), or null to not look for copies
+     * @param delivery where summaries are sent
+     * @param parallelism listings paged at the same time, over all backfills
+     * @param maxWindow longest lookback (ms)
+     * @param maxPages most pages read per subreddit
+     */
+    public Backfill(RedditSource source, PostStore store, SeenPostIndex seenPosts, DuplicateIndex sentRecently,
+                    DeliveryPipeline delivery, int parallelism, long maxWindow, int maxPages) {
+        this.source = source;
+        this.store = store;
+        this.seenPosts = seenPosts;
+        this.sentRecently = sentRecently;
+        this.delivery = delivery;
+        this.maxWindow = maxWindow;
+        this.maxPages = maxPages;
+        workers = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "backfill");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        running = new AtomicInteger();
+        Metrics.gauge("backfill_running", running::get);
+    }
+
+    /**
+     * Gets the longest lookback a backfill may have.
+     * @return the lookback (ms)
+     */
+    public long getMaxWindow() {
+        return maxWindow;
+    }
+
+    /**
+     * Starts a backfill in the background. The summary is sent to every channel once all the pages are read.
+     * @param guildId unique ID of guild
+     * @param channels the guild's eligible channels
+     * @param key the (query, subreddit) pair added
+     * @param window how far back to look (ms); capped at getMaxWindow()
+     * @return the number of posts summarized, once done
+     */
+    public CompletableFuture<Integer> start(String guildId, List<String> channels, QueryKey key, long window) {
+        long lookback = Math.min(window, maxWindow);
+        long since = System.currentTimeMillis() - lookback;
+        long start = System.nanoTime();
+        running.incrementAndGet();
+        Metrics.increment("backfill_runs");
+
+        // A multireddit is one listing per subreddit to Reddit, so each is paged separately, in parallel
+        List<CompletableFuture<List<RedditPost>>> listings = new ArrayList<>();
+        for(String subreddit : key.getSubreddit().split("\\+")) {
+            listings.add(CompletableFuture.supplyAsync(() -> read(key.getQuery(), subreddit, lookback, since), workers));
+        }
+        return CompletableFuture.allOf(listings.toArray(new CompletableFuture[0]))
+                .thenApply(done -> {
+                    List<RedditPost> found = new ArrayList<>();
+                    for(CompletableFuture<List<RedditPost>> listing : listings) {
+                        found.addAll(listing.join());
+                    }
+                    List<RedditPost> posts = record(guildId, found);
+                    MessageEmbed summary = summarize(key, lookback, posts);
+                    for(String channelId : channels) {
+                        delivery.submit(channelId, summary, guildId, 0);
+                    }
+                    Metrics.add("backfill_posts", posts.size());
+                    return posts.size();
+                })
+                .whenComplete((count, error) -> {
+                    running.decrementAndGet();
+                    Metrics.observe("backfill_ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    if(error != null) {
+                        Metrics.increment("backfill_failures");
+                        System.err.println("Backfill of " + key.getQuery() + " in r/" + key.getSubreddit() + ": " + error);
+                    }
+                });
+    }
+
+    /**
+     * Reads one subreddit's results, newest first, back to since or up to maxPages pages.
+     */
+    private List<RedditPost> read(String query, String subreddit, long window, long since) {
+        List<RedditPost> posts = new ArrayList<>();
+        for(List<RedditPost> page : source.search(query, subreddit, false, PAGE_SIZE, window, maxPages, created -> created < since)) {
+            Metrics.increment("backfill_pages");
+            posts.addAll(page);
+        }
+        return posts;
+    }
+
+    /**
+     * Drops the posts the guild was sent already, and records the rest as sent; one bulk write for all of them.
+     * Posts past the seen-post retention are kept without being recorded: the live scans never reach back that far.
+     * Copies of a post the guild was sent recently (or of a newer one in this backfill) are recorded, but left out.
+     * @return the posts to summarize, newest first
+     */
+    private List<RedditPost> record(String guildId, List<RedditPost> found) {
+        found.sort(Comparator.comparingLong(RedditPost::getCreated).reversed());
+        long now = System.currentTimeMillis();
+        long recordedSince = now - SeenPostIndex.RETENTION;
+        Set<String> names = new HashSet<>();
+        List<RedditPost> posts = new ArrayList<>();
+        for(RedditPost post : found) {
+            if(!names.add(post.getFullName())) continue;
+            if(post.getCreated() > recordedSince) {
+                if(!seenPosts.add(guildId, post.getFullName(), post.getCreated())) continue; // sent by a live scan meanwhile
+                store.record(guildId, post);
+            }
+            if(sentRecently != null && sentRecently.check(guildId, DuplicateIndex.fingerprint(post), now) != null) continue;
+            posts.add(post);
+        }
+        store.flush();
+        return posts;
+    }
+
+    /**
+     * Builds the summary of a backfill: one line per post (title, subreddit and votes), newest first,
+     * as many as fit, then how many more there were.
+     * @param key the (query, subreddit) pair
+     * @param window the lookback (ms)
+     * @param posts the posts, newest first
+     * @return the embed
+     */
+    public static MessageEmbed summarize(QueryKey key, long window, List<RedditPost> posts) {
+        long hours = Math.max(1, TimeUnit.MILLISECONDS.toHours(window));
+        String title = posts.size() + (posts.size() == 1 ? " post" : " posts") + " for \"" + key.getQuery()
+                + "\" in r/" + key.getSubreddit() + " over the past " + hours + (hours == 1 ? " hour" : " hours");
+        if(title.length() > 253) { // max title length = 256
+            title = title.substring(0, 253) + "...";
+        }
+
+        StringBuilder list = new StringBuilder();
+        int listed = 0;
+        for(RedditPost post : posts) {
+            String postTitle = post.getTitle().replace("[", "(").replace("]", ")");
+            if(postTitle.length() > 100) postTitle = postTitle.substring(0, 97) + "...";
+            String line = "[" + postTitle + "](https://www.reddit.com" + post.getPermalink() + ") - r/"
+                    + post.getSubreddit() + ", " + post.getScore() + " votes\n";
+            if(listed == MAX_LISTED || list.length() + line.length() > MAX_DESCRIPTION) break;
+            list.append(line);
+            listed++;
+        }
+        if(listed < posts.size()) list.append("...and ").append(posts.size() - listed).append(" more");
+        if(posts.isEmpty()) list.append("No posts found that were not sent already.");
+
+        EmbedBuilder embd = new EmbedBuilder();
+        embd.setColor(0xffa500)
+            .setTitle(title)
+            .setDescription(list.toString())
+            .setFooter("Backfill of a new query")
+            .setTimestamp(Instant.now());
+        return embd.build();
+    }
+}
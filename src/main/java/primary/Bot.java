@@ -2,7 +2,12 @@ package primary;
 
 import java.time.*;
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.security.auth.login.LoginException;
 
 import net.dv8tion.jda.api.*;
@@ -12,7 +17,9 @@ import net.dv8tion.jda.api.events.guild.GuildJoinEvent;
 import net.dv8tion.jda.api.events.guild.GuildLeaveEvent;
 import net.dv8tion.jda.api.events.interaction.SlashCommandEvent;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
+import net.dv8tion.jda.api.interactions.commands.OptionMapping;
 import net.dv8tion.jda.api.interactions.commands.OptionType;
+import net.dv8tion.jda.api.interactions.commands.build.CommandData;
 import net.dv8tion.jda.internal.utils.PermissionUtil;
 
 /**
@@ -31,43 +38,81 @@ public class Bot extends ListenerAdapter {
     private static String REDDITUSERPASSWORD = Config.REDDITUSERPASSWORD;   // Reddit password of the bot's owner
     private static String MONGOURI = Config.MONGOURI;                       // Link that connects Bot to MongoDB database
 
-    private static Map<String, GuildWorker> map;    // { GuildId -> primary.GuildWorker }
+    private static ScanEngine engine;               // Runs the primary script for every guild that started it
     private static UpdateDB semaphore;              // All updates to database must be done on this object
-    private static JDA jda;                         // Discord API
+    private static Shards shards;                   // Discord API: the gateway shards this process runs
+    private static final ExecutorService commands = Executors.newFixedThreadPool(Settings.getInt("commands.threads", 4), r -> {
+        Thread t = new Thread(r, "commands");
+        t.setDaemon(true);
+        return t;
+    });                                             // Runs commands and guild events, off JDA's event thread
+    private static final CompletableFuture<Void> ready = new CompletableFuture<>(); // completed once every shard has loaded its guilds
+    private static final CompletableFuture<Void> initialized = new CompletableFuture<>(); // completed once the database, Reddit and scans are set up
+    private static final AtomicBoolean commandsRegistered = new AtomicBoolean();    // by the first shard ready
 
     /**
      * Driver: initializes config variables, formally turns on bot, and initializes slash commands.
+     * Logging in to Discord (every shard run here) happens in the background while the database and Reddit
+     * client are set up; once both are done, the guilds that were running before the restart are resumed.
+     * Commands and guild events that arrive before the setup is done wait for it (see whenInitialized).
      * @param args system stuff
      * @throws LoginException if provided DISCORDBOTTOKEN is invalid
      */
     public static void main(String[] args) throws LoginException {
         Config prop = new Config();
 
-        jda = JDABuilder.createDefault(DISCORDBOTTOKEN).build();
-        jda.getPresence().setStatus(OnlineStatus.IDLE);
-        jda.getPresence().setActivity(Activity.watching("Script not running currently"));
-        jda.addEventListener(new Bot());
-
-        jda.upsertCommand("ping", "Replies with pong!").queue();
-        jda.upsertCommand("start", "Starts the primary script for detecting new Reddit posts, and posting them on Discord.").queue();
-        jda.upsertCommand("stop", "Stops running the primary script.").queue();
-        jda.upsertCommand("addchannel", "Allows the bot to post in the channel in which the command was sent.").queue();
-        jda.upsertCommand("removechannel", "Revokes the bot's access to post in the channel in which the command was sent.").queue();
-        jda.upsertCommand("addquery", "Adds a new query to the search list attributed to the respective Discord server.")
-                .addOption(OptionType.STRING, "query-subreddit", "/addquery (query) (subreddit) - Subreddit is last space sep. keyword provided; default = all)", true).queue();
-        jda.upsertCommand("removequery", "Removes a query from the search list attributed to the respective Discord server.")
-                .addOption(OptionType.STRING, "query-subreddit", "/removequery (query) (subreddit) - Subreddit is last space sep. keyword provided; default = all)", true).queue();
-
-        map = new HashMap<>();
+        shards = new Shards();
+        shards.start(DISCORDBOTTOKEN, new Bot());
+
+        long initStart = System.currentTimeMillis();
         semaphore = new UpdateDB(REDDITUSERUSERNAME, REDDITUSERPASSWORD, REDDITBOTID, REDDITBOTSECRET, MONGOURI);
+        long initMs = System.currentTimeMillis() - initStart;
+        long startupMs = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        Metrics.gauge("startup_init_ms", () -> initMs);
+        Metrics.gauge("startup_ready_ms", () -> startupMs);
+        System.out.println("Database and Reddit ready in " + initMs + " ms (" + startupMs + " ms after start)");
+
+        engine = new ScanEngine(semaphore, Settings.getInt("scan.threads", 8), shards::isLocal);
+        engine.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(engine::shutdown)); // hand the leases back right away
+        initialized.complete(null); // let through the commands and events that came in meanwhile
+        ready.thenRun(Bot::resumeGuilds) // now, or when every shard is ready if they are not yet
+                .exceptionally(e -> {
+                    System.err.println(e);
+                    return null;
+                });
+
+        int metricsPort = Settings.getInt("metrics.port", 9400); // 0 = no metrics endpoint
+        if(metricsPort > 0) {
+            try {
+                new MetricsServer(Settings.get("metrics.host", "127.0.0.1"), metricsPort).start();
+            }
+            catch(IOException e) { // the bot works without it
+                System.err.println(e);
+            }
+        }
+    }
+
+    /**
+     * Runs a task on the commands executor once the database and Reddit client are set up (right away if they are).
+     * The shards log in while they are being set up, so commands and guild events can arrive before there is
+     * a primary.UpdateDB to handle them; they wait instead of being lost.
+     * @param task what to run
+     */
+    private static void whenInitialized(Runnable task) {
+        initialized.thenRunAsync(task, commands)
+                .exceptionally(e -> {
+                    System.err.println(e);
+                    return null;
+                });
     }
 
     /**
-     * Gets the singular JDA object.
-     * @return the singular JDA object
+     * Gets the gateway shards this process runs.
+     * @return the shards
      */
-    public static JDA getJDA() {
-        return jda;
+    public static Shards getShards() {
+        return shards;
     }
 
     /**
@@ -79,29 +124,100 @@ public class Bot extends ListenerAdapter {
     }
 
     /**
-     * Processes to run when bot first connects to Discord.
-     * @param event input that indicates JDA has finished loading all entities
+     * Processes to run when a shard first connects to Discord.
+     * The first one registers the slash commands (they belong to the application, not to a shard);
+     * the last one lets the running guilds resume.
+     * @param event input that indicates a shard has finished loading its entities
      */
     @Override
     public void onReady(ReadyEvent event) {
-        System.out.println("Bot ready");
+        System.out.println("Shard " + event.getJDA().getShardInfo().getShardId() + " ready");
+        if(commandsRegistered.compareAndSet(false, true)) registerCommands(event.getJDA());
+        if(shards.shardReady()) ready.complete(null);
+    }
+
+    /**
+     * Registers the slash commands, in one request for all of them.
+     * @param shard any shard
+     */
+    private static void registerCommands(JDA shard) {
+        shard.updateCommands().addCommands(
+                new CommandData("ping", "Replies with pong!"),
+                new CommandData("start", "Starts the primary script for detecting new Reddit posts, and posting them on Discord."),
+                new CommandData("stop", "Stops running the primary script."),
+                new CommandData("addchannel", "Allows the bot to post in the channel in which the command was sent."),
+                new CommandData("removechannel", "Revokes the bot's access to post in the channel in which the command was sent."),
+                new CommandData("addquery", "Adds a new query to the search list attributed to the respective Discord server.")
+                        .addOption(OptionType.STRING, "query-subreddit", "/addquery (query) (subreddit) - Subreddit is last space sep. keyword provided; default = all)", true)
+                        .addOption(OptionType.INTEGER, "backfill-hours", "Also sends a summary of the matching posts of the past hours (default = none)", false),
+                new CommandData("removequery", "Removes a query from the search list attributed to the respective Discord server.")
+                        .addOption(OptionType.STRING, "query-subreddit", "/removequery (query) (subreddit) - Subreddit is last space sep. keyword provided; default = all)", true)
+        ).queue();
+    }
+
+    /**
+     * Restarts the script in every guild that had it running before the bot went down.
+     * Waits for the shards to be ready, since posts can only be delivered to channels they know.
+     * Guilds that removed the bot in the meantime, and guilds on shards other processes run, are left alone.
+     */
+    private static void resumeGuilds() {
+        List<String> resumable = new ArrayList<>();
+        for(String guildId : semaphore.getRunningGuilds()) {
+            if(shards.getGuild(guildId) != null) resumable.add(guildId);
+        }
+        int resumed = engine.resume(resumable);
+        if(resumed > 0) {
+            shards.getManager().setActivity(Activity.watching("Script running currently!"));
+            System.out.println("Resumed the script in " + resumed + " servers");
+        }
     }
 
     /**
      * Processes to run when a slash command is received.
+     * Anything that touches the database is acknowledged right away (deferReply), run on the commands
+     * executor instead of JDA's event thread, and answered through the interaction hook once done,
+     * so a slow database can neither miss Discord's 3-second deadline nor hold up other events.
+     * Counts and times every command (command_<name>_ms, from receipt to reply), and counts the ones that threw (command_errors).
      * @param event information pertaining to a slash command usage
      */
     @Override
     public void onSlashCommand(SlashCommandEvent event) {
+        long received = System.nanoTime();
         if(event.getName().equals("ping")) {    // ping command
             long time = System.currentTimeMillis();
             event.reply("Pong!").setEphemeral(true) // reply or acknowledge
                     .flatMap(v ->
                             event.getHook().editOriginalFormat("Pong: %d ms", System.currentTimeMillis() - time) // then edit original
                     ).queue(); // Queue both reply and edit
+            Metrics.observe("command_ping_ms", (System.nanoTime() - received) / 1000000);
+            return;
         }
-        else if(event.getName().equals("start")) {  // starts running search script in the corresponding guild
-            if(map.containsKey(event.getGuild().getId())) {
+
+        event.deferReply().queue(); // "Bot is thinking..." until the hook is edited
+        whenInitialized(() -> {
+            Metrics.observe("command_queue_ms", (System.nanoTime() - received) / 1000000);
+            try {
+                event.getHook().editOriginalEmbeds(runSlashCommand(event)).queue();
+            }
+            catch(RuntimeException e) {
+                Metrics.increment("command_errors");
+                System.err.println(event.getName() + ": " + e);
+                event.getHook().editOriginal("Something went wrong; please try again.").queue();
+            }
+            finally {
+                Metrics.observe("command_" + event.getName() + "_ms", (System.nanoTime() - received) / 1000000);
+            }
+        });
+    }
+
+    /**
+     * Runs a slash command other than ping (on the commands executor).
+     * @param event information pertaining to a slash command usage
+     * @return the reply
+     */
+    private MessageEmbed runSlashCommand(SlashCommandEvent event) {
+        if(event.getName().equals("start")) {  // starts running search script in the corresponding guild
+            if(!engine.startGuild(event.getGuild().getId())) {
                 EmbedBuilder embd = new EmbedBuilder();
                 embd.setColor(0xe74c3c)
                         .setTitle("Failed to start script...")
@@ -109,13 +225,10 @@ public class Bot extends ListenerAdapter {
                         .setAuthor(event.getMember().getEffectiveName(), event.getMember().getUser().getAvatarUrl(), event.getMember().getUser().getAvatarUrl())
                         .setTimestamp(Instant.now());
 
-                event.replyEmbeds(Arrays.asList(embd.build())).queue();
+                return embd.build();
             }
             else {
-                jda.getPresence().setActivity(Activity.watching("Script running currently!"));
-
-                map.put(event.getGuild().getId(), new GuildWorker(event.getGuild().getId()));
-                map.get(event.getGuild().getId()).start();
+                shards.getManager().setActivity(Activity.watching("Script running currently!"));
 
                 EmbedBuilder embd = new EmbedBuilder();
                 embd.setColor(0x33cc66)
@@ -124,11 +237,11 @@ public class Bot extends ListenerAdapter {
                         .setAuthor(event.getMember().getEffectiveName(), event.getMember().getUser().getAvatarUrl(), event.getMember().getUser().getAvatarUrl())
                         .setTimestamp(Instant.now());
 
-                event.replyEmbeds(Arrays.asList(embd.build())).queue();
+                return embd.build();
             }
         }
         else if(event.getName().equals("stop")) {   // stops running search script in the corresponding guild
-            if(!map.containsKey(event.getGuild().getId())) {
+            if(!engine.stopGuild(event.getGuild().getId())) {
                 EmbedBuilder embd = new EmbedBuilder();
                 embd.setColor(0xe74c3c)
                         .setTitle("Failed to stop script...")
@@ -136,13 +249,10 @@ public class Bot extends ListenerAdapter {
                         .setAuthor(event.getMember().getEffectiveName(), event.getMember().getUser().getAvatarUrl(), event.getMember().getUser().getAvatarUrl())
                         .setTimestamp(Instant.now());
 
-                event.replyEmbeds(Arrays.asList(embd.build())).queue();
+                return embd.build();
             }
             else {
-                jda.getPresence().setActivity(Activity.watching("Script not running currently"));
-
-                map.get(event.getGuild().getId()).stopActive();
-                map.remove(event.getGuild().getId());
+                shards.getManager().setActivity(Activity.watching("Script not running currently"));
 
                 EmbedBuilder embd = new EmbedBuilder();
                 embd.setColor(0x33cc66)
@@ -151,7 +261,7 @@ public class Bot extends ListenerAdapter {
                         .setAuthor(event.getMember().getEffectiveName(), event.getMember().getUser().getAvatarUrl(), event.getMember().getUser().getAvatarUrl())
                         .setTimestamp(Instant.now());
 
-                event.replyEmbeds(Arrays.asList(embd.build())).queue();
+                return embd.build();
             }
         }
         else if(event.getName().equals("addchannel")) { // add channel to corresponding guild in the database
@@ -166,7 +276,7 @@ public class Bot extends ListenerAdapter {
                 .setAuthor(event.getMember().getEffectiveName(), event.getMember().getUser().getAvatarUrl(), event.getMember().getUser().getAvatarUrl())
                 .setTimestamp(Instant.now());
 
-            event.replyEmbeds(Arrays.asList(embd.build())).queue();
+            return embd.build();
         }
         else if(event.getName().equals("removechannel")) {  // remove channel from the corresponding guild in the database
             semaphore.removeChannel(event.getGuild().getId(), event.getChannel().getId());
@@ -180,7 +290,7 @@ public class Bot extends ListenerAdapter {
                     .setAuthor(event.getMember().getEffectiveName(), event.getMember().getUser().getAvatarUrl(), event.getMember().getUser().getAvatarUrl())
                     .setTimestamp(Instant.now());
 
-            event.replyEmbeds(Arrays.asList(embd.build())).queue();
+            return embd.build();
         }
         else if(event.getName().equals("addquery")) { // add query to corresponding guild in the database, if it does not already exist
             // Processes which search term and subreddit to look for
@@ -209,7 +319,7 @@ public class Bot extends ListenerAdapter {
                         .setAuthor(event.getMember().getEffectiveName(), event.getMember().getUser().getAvatarUrl(), event.getMember().getUser().getAvatarUrl())
                         .setTimestamp(Instant.now());
 
-                event.replyEmbeds(Arrays.asList(embd.build())).queue();
+                return embd.build();
             }
             else {
                 embd.setColor(0x33cc66)
@@ -220,7 +330,15 @@ public class Bot extends ListenerAdapter {
                         .setAuthor(event.getMember().getEffectiveName(), event.getMember().getUser().getAvatarUrl(), event.getMember().getUser().getAvatarUrl())
                         .setTimestamp(Instant.now());
 
-                event.replyEmbeds(Arrays.asList(embd.build())).queue();
+                // Optionally catch up on what the query would have found before it was added
+                OptionMapping backfill = event.getOption("backfill-hours");
+                long hours = backfill != null ? backfill.getAsLong() : Settings.getLong("backfill.hours", 0);
+                long searched = semaphore.backfillQuery(event.getGuild().getId(), queryStr.toString(), subredditStr.toString(), hours);
+                if(searched > 0) {
+                    embd.addField("Backfill", "A summary of the past " + searched + " hours is on its way.", false);
+                }
+
+                return embd.build();
             }
         }
         else if(event.getName().equals("removequery")) {    // remove query from corresponding guild in the database, if it exists
@@ -250,7 +368,7 @@ public class Bot extends ListenerAdapter {
                     .setAuthor(event.getMember().getEffectiveName(), event.getMember().getUser().getAvatarUrl(), event.getMember().getUser().getAvatarUrl())
                     .setTimestamp(Instant.now());
 
-                event.replyEmbeds(Arrays.asList(embd.build())).queue();
+                return embd.build();
             }
             else {
                 embd.setColor(0x33cc66)
@@ -261,9 +379,10 @@ public class Bot extends ListenerAdapter {
                     .setAuthor(event.getMember().getEffectiveName(), event.getMember().getUser().getAvatarUrl(), event.getMember().getUser().getAvatarUrl())
                     .setTimestamp(Instant.now());
 
-                event.replyEmbeds(Arrays.asList(embd.build())).queue();
+                return embd.build();
             }
         }
+        throw new IllegalArgumentException("Unknown command " + event.getName());
     }
 
     /**
@@ -272,6 +391,14 @@ public class Bot extends ListenerAdapter {
      */
     @Override
     public void onGuildJoin(GuildJoinEvent event) {
+        whenInitialized(() -> addGuild(event));
+    }
+
+    /**
+     * Adds a guild the Bot just joined to the database, with every text channel it can post in.
+     * @param event information pertaining the Bot being added
+     */
+    private void addGuild(GuildJoinEvent event) {
         List<String> channels = new ArrayList<>();
         for(GuildChannel c : event.getGuild().getChannels()) {
             if(c.getType().equals(ChannelType.TEXT)
@@ -291,10 +418,10 @@ public class Bot extends ListenerAdapter {
      */
     @Override
     public void onGuildLeave(GuildLeaveEvent event) {
-        semaphore.removeGuild(event.getGuild().getId());
-        if(map.containsKey(event.getGuild().getId())) {
-            map.get(event.getGuild().getId()).stopActive();
-            map.remove(event.getGuild().getId());
-        }
+        String guildId = event.getGuild().getId();
+        whenInitialized(() -> {
+            semaphore.removeGuild(guildId);
+            engine.stopGuild(guildId);
+        });
     }
 }
\ No newline at end of file
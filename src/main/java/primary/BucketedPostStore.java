@@ -0,0 +1,285 @@
+package primary;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.*;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+
+import java.io.ByteArrayOutputStream;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Compact persistence for the posts already sent to each guild (seen.store=buckets).
+ * Instead of one redditposts document per (post, guild), each guild gets one seenbuckets document per
+ * ten minutes of post creation time (seen.bucketMinutes): { _id: "guildId:start", guildId, start, expireAt, ids }.
+ * Post ids are Reddit's base36 fullnames decoded to longs, and every flush appends one chunk to ids:
+ * the new ids of the bucket, sorted and delta-encoded as varints (neighbouring posts have close ids,
+ * so most take one or two bytes). A TTL index on expireAt drops a whole bucket once all of its posts are past
+ * retention, so there is one index entry and one TTL delete per guild every ten minutes, however busy the guild is.
+ * Appending with $push keeps every write a single atomic upsert, so several nodes can write the same bucket.
+ */
+
+public class BucketedPostStore implements PostStore {
+    private static final long BUCKET = TimeUnit.MINUTES.toMillis(Settings.getLong("seen.bucketMinutes", 10)); // creation time covered by one document
+    private static final long MAX_DELAY = 5000;         // flush at least this often (ms)
+    private static final int MAX_PENDING = 50000;       // ids kept for retry while the database is failing
+
+    private final MongoCollection<Document> collection; // seenbuckets
+    private final Map<String, Bucket> pending;          // { document id -> ids not yet written }; guarded by this
+    private final ScheduledExecutorService timer;       // runs the time-based flush
+    private final Object flushing = new Object();       // one flush at a time, so a flush that returns has seen every earlier one finish
+    private int pendingIds;                             // ids in pending; guarded by this
+    private volatile int maxPending = MAX_PENDING;      // ids kept for retry; unbounded once journaled (see keepFailedWrites)
+
+    /**
+     * primary.BucketedPostStore constructor. Creates the indexes if needed.
+     * @param collection the seenbuckets collection
+     */
+    public BucketedPostStore(MongoCollection<Document> collection) {
+        this.collection = collection;
+        pending = new HashMap<>();
+        collection.createIndex(Indexes.ascending("expireAt"), new IndexOptions().expireAfter(0L, TimeUnit.SECONDS));
+        collection.createIndex(Indexes.ascending("guildId"));
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "seen-bucket-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleWithFixedDelay(this::flush, MAX_DELAY, MAX_DELAY, TimeUnit.MILLISECONDS);
+        Metrics.gauge("seen_store_pending", this::pendingCount);
+    }
+
+    /**
+     * Copies the redditposts documents that have not expired yet into buckets, the first time the
+     * compact store is used (when seenbuckets is still empty). The old documents are left to expire on their own.
+     * @param redditposts the redditposts collection
+     * @return number of documents copied
+     */
+    public long migrate(MongoCollection<Document> redditposts) {
+        if(collection.find().limit(1).first() != null) return 0; // already in use
+        long cutoff = System.currentTimeMillis() - SeenPostIndex.RETENTION;
+        Bson projection = Projections.fields(Projections.include("postId", "guildId", "date"), Projections.excludeId());
+        long[] copied = new long[1];
+        redditposts.find(Filters.gt("date", new Date(cutoff))).projection(projection).batchSize(1000).forEach(doc -> {
+            Date date = doc.getDate("date");
+            String postId = doc.getString("postId");
+            String guildId = doc.getString("guildId");
+            if(date == null || postId == null || guildId == null) return;
+            add(guildId, SeenPostIndex.decode(postId), date.getTime());
+            copied[0]++;
+        });
+        flush();
+        if(copied[0] > 0) System.out.println("Copied " + copied[0] + " redditposts entries into seenbuckets");
+        return copied[0];
+    }
+
+    /**
+     * Rebuilds a seen-post index from the buckets, in one streaming query.
+     * Every post is taken to be as new as the end of its bucket, so it is remembered up to one bucket longer than needed.
+     * @param index the index to fill
+     */
+    @Override
+    public void load(SeenPostIndex index) {
+        load(index, new Document());
+    }
+
+    /**
+     * Adds the posts sent to some guilds to a seen-post index.
+     * @param index the index to fill
+     * @param guildIds unique IDs of the guilds
+     */
+    @Override
+    public void load(SeenPostIndex index, Collection<String> guildIds) {
+        load(index, Filters.in("guildId", guildIds));
+    }
+
+    private void load(SeenPostIndex index, Bson filter) {
+        collection.find(filter).batchSize(100).forEach(doc -> {
+            String guildId = doc.getString("guildId");
+            Date start = doc.getDate("start");
+            List<?> chunks = doc.get("ids", List.class);
+            if(guildId == null || start == null || chunks == null) return;
+            long created = start.getTime() + BUCKET - 1;
+            for(Object chunk : chunks) {
+                for(long id : unpack(((Binary) chunk).getData())) {
+                    index.add(guildId, id, created);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues the id of a post sent to a guild.
+     * @param guildId unique ID of guild
+     * @param post the post
+     */
+    @Override
+    public void record(String guildId, RedditPost post) {
+        add(guildId, SeenPostIndex.decode(post.getFullName()), post.getCreated());
+    }
+
+    private synchronized void add(String guildId, long id, long created) {
+        long start = created - Math.floorMod(created, BUCKET);
+        pending.computeIfAbsent(guildId + ":" + start, k -> new Bucket(guildId, start)).add(id);
+        pendingIds++;
+    }
+
+    /**
+     * Appends the pending ids to their buckets, one upsert per bucket, in one round trip.
+     * @return true if they were written (or there were none); false if they were kept for the next flush
+     */
+    @Override
+    public boolean flush() {
+        synchronized(flushing) {
+            return write();
+        }
+    }
+
+    private boolean write() {
+        List<Bucket> batch;
+        synchronized(this) {
+            if(pending.isEmpty()) return true;
+            batch = new ArrayList<>(pending.values());
+            pending.clear();
+            pendingIds = 0;
+        }
+
+        List<WriteModel<Document>> models = new ArrayList<>(batch.size());
+        long bytes = 0;
+        for(Bucket bucket : batch) {
+            byte[] chunk = pack(bucket.sorted());
+            bytes += chunk.length;
+            models.add(new UpdateOneModel<>(Filters.eq("_id", bucket.guildId + ":" + bucket.start),
+                    Updates.combine(
+                            Updates.setOnInsert("guildId", bucket.guildId),
+                            Updates.setOnInsert("start", new Date(bucket.start)),
+                            Updates.setOnInsert("expireAt", new Date(bucket.start + BUCKET + SeenPostIndex.RETENTION)),
+                            Updates.push("ids", new Binary(chunk))),
+                    new UpdateOptions().upsert(true)));
+        }
+
+        long start = System.nanoTime();
+        try {
+            collection.bulkWrite(models, new BulkWriteOptions().ordered(false));
+        }
+        catch(MongoException e) {   // keep the ids for the next flush; a bucket written twice only repeats some ids
+            System.err.println(e);
+            Metrics.increment("seen_store_flush_failures");
+            requeue(batch);
+            return false;
+        }
+
+        Metrics.increment("seen_store_flushes");
+        Metrics.add("seen_store_bytes", bytes);
+        Metrics.observe("seen_store_buckets_per_flush", batch.size());
+        Metrics.observe("seen_store_flush_ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return true;
+    }
+
+    /**
+     * Stops the timer and writes everything still pending.
+     */
+    @Override
+    public void close() {
+        timer.shutdown();
+        flush();
+    }
+
+    @Override
+    public void keepFailedWrites() {
+        maxPending = Integer.MAX_VALUE;
+    }
+
+    private synchronized int pendingCount() {
+        return pendingIds;
+    }
+
+    private synchronized void requeue(List<Bucket> batch) {
+        for(Bucket bucket : batch) {
+            if(pendingIds + bucket.size > maxPending) {
+                Metrics.add("seen_store_dropped", bucket.size);
+                continue;
+            }
+            Bucket current = pending.computeIfAbsent(bucket.guildId + ":" + bucket.start, k -> new Bucket(bucket.guildId, bucket.start));
+            for(int i = 0; i < bucket.size; i++) {
+                current.add(bucket.ids[i]);
+            }
+            pendingIds += bucket.size;
+        }
+    }
+
+    /**
+     * Encodes ids as a chunk: sorted, with each stored as its difference from the previous one,
+     * in 7-bit groups (low first; the high bit set on every byte but the last). Repeated ids are dropped.
+     * @param sorted ids in ascending order, all positive
+     * @return the chunk
+     */
+    static byte[] pack(long[] sorted) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(sorted.length * 3);
+        long previous = 0;
+        for(long id : sorted) {
+            long delta = id - previous;
+            if(delta == 0) continue;
+            previous = id;
+            while((delta & ~0x7FL) != 0) {
+                out.write((int) (delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            out.write((int) delta);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a chunk written by pack.
+     * @param chunk the chunk
+     * @return the ids, in ascending order
+     */
+    static long[] unpack(byte[] chunk) {
+        long[] ids = new long[chunk.length];  // at least one byte per id
+        int count = 0;
+        long previous = 0;
+        for(int i = 0; i < chunk.length; ) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = chunk[i++];
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while(b < 0 && i < chunk.length);
+            previous += delta;
+            ids[count++] = previous;
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * The ids waiting to be appended to one bucket.
+     */
+    private static final class Bucket {
+        private final String guildId;
+        private final long start;       // start of the creation-time window (ms)
+        private long[] ids = new long[8];
+        private int size;
+
+        Bucket(String guildId, long start) {
+            this.guildId = guildId;
+            this.start = start;
+        }
+
+        void add(long id) {
+            if(size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = id;
+        }
+
+        long[] sorted() {
+            long[] copy = Arrays.copyOf(ids, size);
+            Arrays.sort(copy);
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package primary;
+
+import net.dean.jraw.http.HttpRequest;
+import net.dean.jraw.http.HttpResponse;
+import net.dean.jraw.http.NetworkAdapter;
+import net.dean.jraw.http.UserAgent;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NetworkAdapter that keeps every Reddit request within the shared RequestBudget.
+ * Reads Reddit's X-Ratelimit-* headers off every response to correct the budget, and retries
+ * 429 and 5xx responses with jittered exponential backoff (honouring Retry-After),
+ * instead of letting them abort a search in the middle of a page.
+ */
+
+public class BudgetedNetworkAdapter implements NetworkAdapter {
+    private static final int MAX_RETRIES = 4;           // retries after the first attempt
+    private static final long BASE_BACKOFF = 1000;      // ms; doubled every retry
+    private static final long MAX_BACKOFF = 60000;      // ms
+
+    private final NetworkAdapter delegate;  // does the actual HTTP
+    private final RequestBudget budget;     // shared by every request
+    private final AtomicInteger inFlight;   // requests sent and not answered yet
+
+    /**
+     * primary.BudgetedNetworkAdapter constructor
+     * @param delegate adapter that does the actual HTTP
+     * @param budget the shared request budget
+     */
+    public BudgetedNetworkAdapter(NetworkAdapter delegate, RequestBudget budget) {
+        this.delegate = delegate;
+        this.budget = budget;
+        inFlight = new AtomicInteger();
+    }
+
+    @Override
+    public UserAgent getUserAgent() {
+        return delegate.getUserAgent();
+    }
+
+    @Override
+    public void setUserAgent(UserAgent userAgent) {
+        delegate.setUserAgent(userAgent);
+    }
+
+    /**
+     * Executes a request, retrying on 429/5xx.
+     * (The RedditClient takes the permit for the first attempt; each retry takes its own.)
+     * @param r the request
+     * @return the last response received
+     */
+    @Override
+    public HttpResponse execute(HttpRequest r) {
+        for(int attempt = 0; ; attempt++) {
+            inFlight.incrementAndGet();
+            HttpResponse response;
+            int others;
+            try {
+                response = delegate.execute(r);
+            }
+            finally {
+                others = inFlight.decrementAndGet();
+            }
+            Metrics.increment("reddit_requests");
+            observeHeaders(response, others);
+
+            int code = response.getCode();
+            boolean retryable = code == 429 || code >= 500;
+            if(!retryable || attempt >= MAX_RETRIES) return response;
+
+            Metrics.increment(code == 429 ? "reddit_429" : "reddit_5xx");
+            long cap = Math.min(MAX_BACKOFF, BASE_BACKOFF << attempt);
+            long wait = ThreadLocalRandom.current().nextLong(cap / 2, cap + 1);  // jitter, so retries do not line up
+            String retryAfter = response.getRaw().header("Retry-After");
+            if(retryAfter != null) {
+                try {
+                    wait = Math.max(wait, Long.parseLong(retryAfter.trim()) * 1000);
+                }
+                catch(NumberFormatException e) {
+                    // HTTP-date form; keep the computed backoff
+                }
+            }
+            if(code == 429) budget.pause(wait); // everyone backs off, not just this search
+            response.getRaw().close();
+
+            try {
+                Thread.sleep(wait);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while backing off from Reddit", e);
+            }
+            Metrics.increment("reddit_retries");
+            budget.acquire();
+        }
+    }
+
+    @Override
+    public WebSocket connect(String url, WebSocketListener listener) {
+        return delegate.connect(url, listener);
+    }
+
+    /**
+     * Feeds Reddit's rate-limit headers, if present, into the budget. Requests still waiting for their answer
+     * already hold their permits but may not be counted in X-Ratelimit-Remaining yet, so they are taken off it.
+     * @param others requests in flight when this one was answered
+     */
+    private void observeHeaders(HttpResponse response, int others) {
+        String remaining = response.getRaw().header("X-Ratelimit-Remaining");
+        String reset = response.getRaw().header("X-Ratelimit-Reset");
+        if(remaining == null || reset == null) return;
+        try {
+            budget.observe(Double.parseDouble(remaining) - others, Double.parseDouble(reset));
+        }
+        catch(NumberFormatException e) {
+            // malformed header; ignore it
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package primary;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.InsertManyOptions;
+import org.bson.Document;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes sure a post is sent to a guild by one node only, in cluster mode: the first node to insert
+ * { _id: "postId:guildId" } in the claims collection sends it.
+ */
+
+public class DeliveryClaims {
+    private final MongoCollection<Document> collection; // claims
+    private final String nodeId;                        // this process
+
+    /**
+     * primary.DeliveryClaims constructor. Creates the TTL index if needed.
+     * @param collection the claims collection
+     * @param nodeId unique id of this process
+     */
+    public DeliveryClaims(MongoCollection<Document> collection, String nodeId) {
+        this.collection = collection;
+        this.nodeId = nodeId;
+        collection.createIndex(Indexes.ascending("expireAt"), new IndexOptions().expireAfter(0L, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Claims a post for guilds, in one round trip.
+     * @param postId fullname of the post
+     * @param guildIds unique IDs of the guilds about to be sent the post
+     * @return the guilds this node may send it to: those no node claimed it for before. All of them if the
+     *         database cannot be reached, since a post sent twice is better than one never sent
+     */
+    public Set<String> claim(String postId, Collection<String> guildIds) {
+        if(guildIds.isEmpty()) return Collections.emptySet();
+        List<String> ordered = new ArrayList<>(guildIds);
+        Date expireAt = new Date(System.currentTimeMillis() + SeenPostIndex.RETENTION);
+        List<Document> docs = new ArrayList<>(ordered.size());
+        for(String guildId : ordered) {
+            docs.add(new Document("_id", postId + ":" + guildId)
+                    .append("node", nodeId)
+                    .append("expireAt", expireAt));
+        }
+
+        Set<String> won = new LinkedHashSet<>(ordered);
+        try {
+            collection.insertMany(docs, new InsertManyOptions().ordered(false));
+        }
+        catch(MongoBulkWriteException e) {  // unordered: every other claim was still attempted
+            for(BulkWriteError error : e.getWriteErrors()) {
+                if(ErrorCategory.fromErrorCode(error.getCode()) == ErrorCategory.DUPLICATE_KEY) {
+                    won.remove(ordered.get(error.getIndex()));
+                }
+                else {
+                    System.err.println(error.getMessage());
+                    Metrics.increment("cluster_claim_failures");
+                }
+            }
+        }
+        catch(MongoException e) {
+            System.err.println(e);
+            Metrics.increment("cluster_claim_failures");
+        }
+        Metrics.add("cluster_claims_lost", ordered.size() - won.size());
+        return won;
+    }
+}
@@ -0,0 +1,229 @@
+package primary;
+
+import net.dv8tion.jda.api.entities.MessageEmbed;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends embeds to Discord channels, separately from the scans that find them.
+ * Each channel has its own bounded queue; embeds that land in the same short window are
+ * coalesced into one message (up to 10 embeds, Discord's limit), and each channel has at most
+ * one message in flight, so a burst becomes a few messages instead of one per post.
+ * When a queue is full, the overflow policy decides what gives.
+ * The time from a post's creation to its delivery is recorded per guild (delivery_latency_ms{guild=...}).
+ */
+
+public class DeliveryPipeline {
+    private static final int MAX_EMBEDS = 10;  // embeds per message allowed by Discord
+
+    /**
+     * What to do with an embed for a channel whose queue is full.
+     */
+    public enum Overflow {
+        DROP_NEWEST,    // discard the embed being added
+        DROP_OLDEST,    // discard the oldest queued embed to make room
+        BLOCK           // make the scan wait (up to a few seconds) for room, then discard
+    }
+
+    private final int capacity;                         // most embeds queued per channel
+    private final long window;                          // how long to gather embeds before sending (ms)
+    private final Overflow overflow;
+    private final DiscordSink sink;                     // does the actual sending
+    private final Map<String, ChannelQueue> channels;   // { channelId -> its queue }
+    private final ScheduledExecutorService timer;       // starts the sends
+    private final AtomicLong depth;                     // embeds queued over all channels
+
+    /**
+     * primary.DeliveryPipeline constructor
+     * @param capacity most embeds queued per channel
+     * @param window how long to gather embeds before sending (ms)
+     * @param overflow what to do when a channel's queue is full
+     * @param sink sends the messages
+     */
+    public DeliveryPipeline(int capacity, long window, Overflow overflow, DiscordSink sink) {
+        this.capacity = capacity;
+        this.window = window;
+        this.overflow = overflow;
+        this.sink = sink;
+        channels = new ConcurrentHashMap<>();
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "delivery");
+            t.setDaemon(true);
+            return t;
+        });
+        depth = new AtomicLong();
+
+        Metrics.gauge("delivery_queue_depth", depth::get);
+        Metrics.gauge("delivery_channels", channels::size);
+    }
+
+    /**
+     * Queues an embed for a channel. The same embed object can be queued for any number of channels.
+     * @param channelId id of the channel to send to
+     * @param embed the embed
+     */
+    public void submit(String channelId, MessageEmbed embed) {
+        submit(channelId, embed, null, 0);
+    }
+
+    /**
+     * Queues the embed of a post for a channel, recording its latency once it is delivered.
+     * @param channelId id of the channel to send to
+     * @param embed the embed
+     * @param guildId unique ID of the guild the channel is in, or null to record no latency
+     * @param createdMillis creation time of the post, or 0 to record no latency (ex. for a summary of several posts)
+     */
+    public void submit(String channelId, MessageEmbed embed, String guildId, long createdMillis) {
+        Item item = new Item(embed, guildId, createdMillis);
+        while(!channels.computeIfAbsent(channelId, ChannelQueue::new).offer(item)) {
+            // the queue went idle and was removed meanwhile; a new one takes its place
+        }
+    }
+
+    /**
+     * One channel's queue. At most one send per channel is scheduled or in flight at a time.
+     * Removed from channels once it is idle (empty, nothing in flight), so deleted channels do not linger.
+     */
+    private final class ChannelQueue {
+        private final String channelId;
+        private final ArrayDeque<Item> queue;           // guarded by this
+        private String guildId;                         // guild of the channel, so sends go through its shard; null if unknown; guarded by this
+        private boolean busy;                           // a send is scheduled or in flight; guarded by this
+        private boolean removed;                        // no longer in channels; guarded by this
+
+        ChannelQueue(String channelId) {
+            this.channelId = channelId;
+            queue = new ArrayDeque<>();
+        }
+
+        /**
+         * Adds an embed to the queue.
+         * @return true if it was queued (or dropped by the overflow policy); false if this queue was removed and the embed belongs in a new one
+         */
+        synchronized boolean offer(Item item) {
+            if(removed) return false;
+            if(guildId == null) guildId = item.guildId;
+            if(queue.size() >= capacity) {
+                if(overflow == Overflow.BLOCK) {
+                    long deadline = System.currentTimeMillis() + 5000;
+                    long left;
+                    while(queue.size() >= capacity && (left = deadline - System.currentTimeMillis()) > 0) {
+                        try {
+                            wait(left);
+                        }
+                        catch(InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                    }
+                }
+                if(queue.size() >= capacity) {
+                    Metrics.increment("delivery_dropped");
+                    if(overflow != Overflow.DROP_OLDEST) return true;
+                    queue.poll();
+                    depth.decrementAndGet();
+                }
+            }
+            queue.add(item);
+            depth.incrementAndGet();
+
+            if(!busy) {
+                busy = true;
+                timer.schedule(this::send, window, TimeUnit.MILLISECONDS);  // gather the rest of the burst
+            }
+            return true;
+        }
+
+        void send() {
+            List<Item> items = new ArrayList<>(MAX_EMBEDS);
+            String guildId;
+            synchronized(this) {
+                while(items.size() < MAX_EMBEDS && !queue.isEmpty()) {
+                    items.add(queue.poll());
+                }
+                depth.addAndGet(-items.size());
+                notifyAll();    // room for blocked scans
+                if(items.isEmpty()) {
+                    idle();
+                    return;
+                }
+                guildId = this.guildId;
+            }
+            List<MessageEmbed> batch = new ArrayList<>(items.size());
+            for(Item item : items) {
+                batch.add(item.embed);
+            }
+
+            long start = System.nanoTime();
+            boolean known = sink.send(guildId, channelId, batch,
+                    () -> {
+                        Metrics.increment("delivery_messages");
+                        Metrics.add("delivery_embeds", batch.size());
+                        Metrics.observe("delivery_send_ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                        delivered(items);
+                        sent();
+                    },
+                    error -> {
+                        System.err.println(channelId + ": " + error);
+                        Metrics.increment("delivery_failures");
+                        sent();
+                    });
+            if(!known) { // channel deleted, or bot removed from it
+                Metrics.add("delivery_unknown_channel", batch.size());
+                sent();
+            }
+        }
+
+        /**
+         * Records how long after their creation the posts of a message reached Discord.
+         */
+        void delivered(List<Item> items) {
+            long now = System.currentTimeMillis();
+            for(Item item : items) {
+                if(item.guildId == null || item.created == 0) continue;
+                long latency = Math.max(0, now - item.created);
+                Metrics.observe("delivery_latency_ms", latency);
+                Metrics.observe(Metrics.labelled("delivery_latency_ms", "guild", item.guildId), latency);
+            }
+        }
+
+        /**
+         * Called once the previous send is done: sends whatever queued up meanwhile, or goes idle.
+         */
+        void sent() {
+            synchronized(this) {
+                if(queue.isEmpty()) {
+                    idle();
+                    return;
+                }
+            }
+            timer.execute(this::send);
+        }
+
+        /**
+         * Stops sending, and removes the queue from channels. Caller must hold the lock on this.
+         */
+        private void idle() {
+            busy = false;
+            removed = true;
+            channels.remove(channelId, this);
+        }
+    }
+
+    /**
+     * A queued embed, with what is needed to record its latency.
+     */
+    private static final class Item {
+        private final MessageEmbed embed;
+        private final String guildId;   // null if no latency is recorded
+        private final long created;     // creation time of the post (ms); 0 if no latency is recorded
+
+        Item(MessageEmbed embed, String guildId, long created) {
+            this.embed = embed;
+            this.guildId = guildId;
+            this.created = created;
+        }
+    }
+}
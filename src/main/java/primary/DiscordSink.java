@@ -0,0 +1,24 @@
+package primary;
+
+import net.dv8tion.jda.api.entities.MessageEmbed;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Where embeds go. Sends are asynchronous: exactly one of the callbacks runs once the send is done,
+ * unless the channel is unknown, in which case neither does.
+ */
+
+public interface DiscordSink {
+    /**
+     * Sends embeds to a channel as one message.
+     * @param guildId id of the channel's guild, or null if unknown
+     * @param channelId id of the channel to send to
+     * @param embeds the embeds (at most 10)
+     * @param success run once the message was sent
+     * @param failure run with the cause if the message could not be sent
+     * @return false if the channel does not exist (or the bot cannot see it); true otherwise
+     */
+    boolean send(String guildId, String channelId, List<MessageEmbed> embeds, Runnable success, Consumer<Throwable> failure);
+}
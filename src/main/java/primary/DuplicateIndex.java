@@ -0,0 +1,359 @@
+package primary;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recognizes a post a guild was recently sent in another form: a crosspost, the same link, or a near-identical title.
+ * Thread-safe.
+ */
+
+public class DuplicateIndex {
+    private static final int MIN_TITLE_WORDS = 4;   // shorter titles are too alike to compare
+    private static final int BANDS = 4;             // 16-bit bands of a title hash; hashes at most 3 bits apart share one exactly
+
+    /**
+     * Why a post counts as a duplicate.
+     */
+    public enum Reason {
+        LINK,       // same canonical link
+        CROSSPOST,  // crosspost of (or crossposted as) a post already sent
+        TITLE       // near-identical title
+    }
+
+    private final long window;                      // how long a fingerprint is remembered (ms)
+    private final int maxEntries;                   // most fingerprints remembered
+    private final int maxDistance;                  // most differing bits between near-duplicate titles
+    private final KeyTable keys;                    // { guild-salted link, root or title band -> latest fingerprint with it }
+    private final ArrayDeque<Entry> entries;        // fingerprints, oldest first
+
+    /**
+     * primary.DuplicateIndex constructor
+     * @param window how long a fingerprint is remembered (ms)
+     * @param maxEntries most fingerprints remembered
+     * @param maxDistance most differing bits between near-duplicate titles (at most 3: see the bands); -1 to not compare titles
+     */
+    public DuplicateIndex(long window, int maxEntries, int maxDistance) {
+        this.window = window;
+        this.maxEntries = maxEntries;
+        this.maxDistance = Math.min(maxDistance, BANDS - 1);
+        keys = new KeyTable();
+        entries = new ArrayDeque<>();
+        Metrics.gauge("dedupe_entries", this::size);
+    }
+
+    /**
+     * Makes the index the settings ask for.
+     * @return the index, or null if dedupe.windowMinutes is 0
+     */
+    public static DuplicateIndex fromSettings() {
+        long window = TimeUnit.MINUTES.toMillis(Settings.getLong("dedupe.windowMinutes", 60));
+        if(window <= 0) return null;
+        return new DuplicateIndex(window, Settings.getInt("dedupe.maxEntries", 50000),
+                Settings.getInt("dedupe.titleDistance", 3));
+    }
+
+    /**
+     * Checks whether a guild was sent a duplicate of a post recently; if not, remembers the post as sent.
+     * @param guildId unique ID of guild
+     * @param print fingerprint of the post
+     * @param now the current time (ms)
+     * @return why the post is a duplicate, or null if it is not (and was remembered)
+     */
+    public synchronized Reason check(String guildId, Fingerprint print, long now) {
+        expire(now);
+        long salt = mix(guildId.hashCode() * 0x9E3779B97F4A7C15L + guildId.length());
+        Reason found = find(guildId, salt, print);
+        if(found != null) {
+            Metrics.increment("dedupe_suppressed");
+            Metrics.increment(Metrics.labelled("dedupe_suppressed", "reason", found.name().toLowerCase()));
+            return found;
+        }
+
+        Entry entry = new Entry(guildId, print, now, salt);
+        entries.add(entry);
+        for(long key : entry.keys) {
+            keys.put(key, entry);
+        }
+        if(entries.size() > maxEntries) remove(entries.poll());
+        return null;
+    }
+
+    private Reason find(String guildId, long salt, Fingerprint print) {
+        if(print.link != 0 && matches(keys.get(salt ^ mix(print.link)), guildId)) return Reason.LINK;
+        Entry root = keys.get(salt ^ mix(print.root + 1));
+        if(root != null && root.guildId.equals(guildId)) return Reason.CROSSPOST;
+        if(print.title != 0 && maxDistance >= 0) {
+            for(int band = 0; band < BANDS; band++) {
+                Entry other = keys.get(salt ^ mix(bandKey(print.title, band)));
+                if(matches(other, guildId) && Long.bitCount(other.print.title ^ print.title) <= maxDistance) return Reason.TITLE;
+            }
+        }
+        return null;
+    }
+
+    private static boolean matches(Entry entry, String guildId) {
+        return entry != null && entry.guildId.equals(guildId);
+    }
+
+    private void expire(long now) {
+        while(!entries.isEmpty() && now - entries.peek().sent > window) {
+            remove(entries.poll());
+        }
+    }
+
+    private void remove(Entry entry) {
+        for(long key : entry.keys) {
+            keys.remove(key, entry);
+        }
+    }
+
+    private synchronized long size() {
+        return entries.size();
+    }
+
+    /**
+     * Fingerprints a post.
+     * @param post the post
+     * @return its fingerprint
+     */
+    public static Fingerprint fingerprint(RedditPost post) {
+        String parent = post.getCrosspostParent();
+        long root = SeenPostIndex.decode(parent != null ? parent : post.getFullName());
+        String link = canonicalLink(post.getUrl());
+        return new Fingerprint(link == null ? 0 : hash(link, 0, link.length()), root, simHash(post.getTitle()));
+    }
+
+    /**
+     * Reduces a link to what identifies its target: no scheme, www./m./old. prefix, fragment, tracking
+     * parameters or trailing slash, and Reddit post links down to the post id.
+     * @param url the link, or null
+     * @return the canonical form, or null if there is no link
+     */
+    static String canonicalLink(String url) {
+        if(url == null || url.isEmpty()) return null;
+        String link = url.trim();
+        int fragment = link.indexOf('#');
+        if(fragment >= 0) link = link.substring(0, fragment);
+        int scheme = link.indexOf("://");
+        if(scheme >= 0) link = link.substring(scheme + 3);
+
+        int slash = link.indexOf('/');
+        String host = (slash < 0 ? link : link.substring(0, slash)).toLowerCase();
+        String rest = slash < 0 ? "" : link.substring(slash);
+        for(String prefix : new String[] { "www.", "m.", "old.", "new.", "np." }) {
+            if(host.startsWith(prefix)) {
+                host = host.substring(prefix.length());
+                break;
+            }
+        }
+
+        String path = rest;
+        String query = "";
+        int question = rest.indexOf('?');
+        if(question >= 0) {
+            path = rest.substring(0, question);
+            StringJoiner kept = new StringJoiner("&");
+            for(String param : rest.substring(question + 1).split("&")) {
+                String name = param.split("=", 2)[0].toLowerCase();
+                if(name.isEmpty() || name.startsWith("utm_") || name.equals("ref") || name.equals("ref_src")
+                        || name.equals("si") || name.equals("fbclid") || name.equals("gclid") || name.equals("share_id")) continue;
+                kept.add(param);
+            }
+            if(kept.length() > 0) query = "?" + kept;
+        }
+        while(path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+
+        if(host.equals("reddit.com")) { // /r/sub/comments/id/title -> /comments/id
+            int comments = path.indexOf("/comments/");
+            if(comments >= 0) {
+                int end = path.indexOf('/', comments + 10);
+                return "reddit.com" + path.substring(comments, end < 0 ? path.length() : end);
+            }
+        }
+        if(host.equals("youtu.be") && path.length() > 1) return "youtube.com/watch?v=" + path.substring(1);
+        return host + path + query;
+    }
+
+    /**
+     * Hashes the words of a title (letters and digits, case-insensitive) into a 64-bit SimHash:
+     * every bit is the majority vote of that bit over the hashes of the words, so titles sharing
+     * most of their words get hashes differing in few bits.
+     * @param title the title
+     * @return the hash, or 0 if the title has too few words to compare
+     */
+    static long simHash(String title) {
+        if(title == null) return 0;
+        int[] votes = new int[64];
+        int words = 0;
+        int start = -1;
+        for(int i = 0; i <= title.length(); i++) {
+            boolean inWord = i < title.length() && Character.isLetterOrDigit(title.charAt(i));
+            if(inWord) {
+                if(start < 0) start = i;
+                continue;
+            }
+            if(start < 0) continue;
+            long h = mix(hash(title, start, i));
+            for(int bit = 0; bit < 64; bit++) {
+                votes[bit] += (h >>> bit & 1) != 0 ? 1 : -1;
+            }
+            words++;
+            start = -1;
+        }
+        if(words < MIN_TITLE_WORDS) return 0;
+        long simHash = 0;
+        for(int bit = 0; bit < 64; bit++) {
+            if(votes[bit] > 0) simHash |= 1L << bit;
+        }
+        return simHash == 0 ? 1 : simHash; // 0 means no hash
+    }
+
+    /**
+     * FNV-1a over the lower-cased characters of s[from, to).
+     */
+    private static long hash(String s, int from, int to) {
+        long h = 0xcbf29ce484222325L;
+        for(int i = from; i < to; i++) {
+            h ^= Character.toLowerCase(s.charAt(i));
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Spreads the bits of a value (the finalizer of MurmurHash3).
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Key of one band of a title hash, distinct from links and roots.
+     */
+    private static long bandKey(long title, int band) {
+        return 0x7469746c65000000L | (long) band << 16 | (title >>> (band * 16) & 0xFFFF);
+    }
+
+    /**
+     * What a post is recognized by.
+     */
+    public static final class Fingerprint {
+        private final long link;    // hash of the canonical link; 0 if none
+        private final long root;    // base36 id of the crossposted post, or of the post itself
+        private final long title;   // SimHash of the title; 0 if too short
+
+        Fingerprint(long link, long root, long title) {
+            this.link = link;
+            this.root = root;
+            this.title = title;
+        }
+    }
+
+    /**
+     * A fingerprint sent to a guild, with the keys it is found under.
+     */
+    private final class Entry {
+        private final String guildId;
+        private final Fingerprint print;
+        private final long sent;    // when it was sent (ms)
+        private final long[] keys;
+
+        Entry(String guildId, Fingerprint print, long sent, long salt) {
+            this.guildId = guildId;
+            this.print = print;
+            this.sent = sent;
+            boolean titled = print.title != 0 && maxDistance >= 0;
+            long[] all = new long[2 + (titled ? BANDS : 0)];
+            int n = 0;
+            if(print.link != 0) all[n++] = salt ^ mix(print.link);
+            all[n++] = salt ^ mix(print.root + 1);
+            if(titled) {
+                for(int band = 0; band < BANDS; band++) {
+                    all[n++] = salt ^ mix(bandKey(print.title, band));
+                }
+            }
+            keys = n == all.length ? all : Arrays.copyOf(all, n);
+        }
+    }
+
+    /**
+     * Open-addressing (linear probing) map from key to entry, without boxing the keys.
+     * Keys are already well mixed; 0 marks an empty slot (a real key of 0 is nudged to 1).
+     * Removal shifts the following entries back, so probing never meets tombstones.
+     */
+    private static final class KeyTable {
+        private static final int MIN_CAPACITY = 1024;
+
+        private long[] keys = new long[MIN_CAPACITY];
+        private Entry[] values = new Entry[MIN_CAPACITY];
+        private int size;
+
+        Entry get(long key) {
+            key = key == 0 ? 1 : key;
+            int mask = keys.length - 1;
+            for(int i = (int) key & mask; keys[i] != 0; i = (i + 1) & mask) {
+                if(keys[i] == key) return values[i];
+            }
+            return null;
+        }
+
+        void put(long key, Entry value) {
+            key = key == 0 ? 1 : key;
+            if((size + 1) * 2 > keys.length) resize(keys.length * 2);
+            int mask = keys.length - 1;
+            int i = (int) key & mask;
+            while(keys[i] != 0 && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if(keys[i] == 0) size++;
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        /**
+         * Removes a key, unless a newer entry has taken it over.
+         */
+        void remove(long key, Entry value) {
+            key = key == 0 ? 1 : key;
+            int mask = keys.length - 1;
+            int i = (int) key & mask;
+            while(keys[i] != key) {
+                if(keys[i] == 0) return;
+                i = (i + 1) & mask;
+            }
+            if(values[i] != value) return;
+            // Shift back the entries after the hole that probed past it
+            for(int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+                int home = (int) keys[j] & mask;
+                if(((j - home) & mask) >= ((j - i) & mask)) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    i = j;
+                }
+            }
+            keys[i] = 0;
+            values[i] = null;
+            size--;
+            if(size * 8 < keys.length && keys.length > MIN_CAPACITY) resize(keys.length / 2);
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            Entry[] oldValues = values;
+            keys = new long[capacity];
+            values = new Entry[capacity];
+            size = 0;
+            for(int i = 0; i < oldKeys.length; i++) {
+                if(oldKeys[i] != 0) put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package primary;
+
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Decides which due scan job runs next, so that guilds with many queries cannot starve guilds with few.
+ * Deficit round robin over guilds: every guild with a job waiting gets a turn in order, and on each turn
+ * may start as many jobs as its weight (sched.weights, default 1). A job shared by several guilds waits in
+ * all of their queues and runs on whichever turn comes first, charged to that guild only; a guild with
+ * two queries therefore waits at most one round, however many queries the guild before it has.
+ * Optionally, a guild may start at most sched.maxCallsPerCycle jobs per housekeeping cycle; once it has,
+ * its turns are skipped until the next cycle (its shared jobs can still run on other guilds' turns).
+ */
+
+public class FairScheduler {
+    private final int slots;                        // jobs that may run at the same time
+    private final Executor executor;                // runs the jobs
+    private final Map<String, Integer> weights;     // { guildId -> jobs per turn }; others get 1
+    private final int maxCallsPerCycle;             // jobs a guild may start per cycle; 0 = no limit
+    private final Map<String, Flow> flows;          // { guildId -> its queue }; guarded by this
+    private final ArrayDeque<Flow> active;          // guilds with jobs waiting, in turn order; guarded by this
+    private int running;                            // jobs started and not finished; guarded by this
+    private int queued;                             // jobs waiting; guarded by this
+
+    /**
+     * primary.FairScheduler constructor
+     * @param slots jobs that may run at the same time
+     * @param executor runs the jobs
+     * @param weights { guildId -> jobs it may start per turn }; guilds not listed get 1
+     * @param maxCallsPerCycle jobs a guild may start per cycle (see newCycle), or 0 for no limit
+     */
+    public FairScheduler(int slots, Executor executor, Map<String, Integer> weights, int maxCallsPerCycle) {
+        this.slots = slots;
+        this.executor = executor;
+        this.weights = weights;
+        this.maxCallsPerCycle = maxCallsPerCycle;
+        flows = new HashMap<>();
+        active = new ArrayDeque<>();
+
+        Metrics.gauge("sched_queued", this::getQueued);
+        Metrics.gauge("sched_guilds_waiting", this::getWaitingGuilds);
+    }
+
+    /**
+     * Parses per-guild weights written as guildId:weight pairs (ex. the sched.weights setting).
+     * @param pairs the pairs
+     * @return { guildId -> weight }
+     */
+    public static Map<String, Integer> parseWeights(Collection<String> pairs) {
+        Map<String, Integer> weights = new HashMap<>();
+        for(String pair : pairs) {
+            int sep = pair.lastIndexOf(':');
+            if(sep < 0) continue;
+            try {
+                weights.put(pair.substring(0, sep).trim(), Math.max(1, Integer.parseInt(pair.substring(sep + 1).trim())));
+            }
+            catch(NumberFormatException e) {
+                System.err.println("Ignoring weight " + pair + ": " + e);
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * Queues a due job. It runs once one of its guilds' turn comes and a slot is free.
+     * @param job the job
+     * @param guildIds the guilds it runs for (if none, it is queued as a guild of its own)
+     */
+    public void submit(Runnable job, Collection<String> guildIds) {
+        synchronized(this) {
+            Task task = new Task(job);
+            for(String guildId : guildIds.isEmpty() ? Collections.singleton("") : guildIds) {
+                Flow flow = flows.computeIfAbsent(guildId, Flow::new);
+                flow.queue.add(task);
+                if(!flow.active) {
+                    flow.active = true;
+                    flow.deficit = weight(guildId); // a newly waiting guild can go on its first turn
+                    active.add(flow);
+                }
+            }
+            queued++;
+        }
+        dispatch();
+    }
+
+    /**
+     * Starts a new cycle: every guild may start up to maxCallsPerCycle jobs again.
+     * Also forgets guilds that have had nothing queued for a whole cycle.
+     */
+    public void newCycle() {
+        synchronized(this) {
+            flows.values().removeIf(flow -> !flow.active && flow.calls == 0);
+            for(Flow flow : flows.values()) {
+                flow.calls = 0;
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * Starts jobs while slots are free.
+     */
+    private void dispatch() {
+        while(true) {
+            Task task;
+            synchronized(this) {
+                if(running >= slots) return;
+                task = next();
+                if(task == null) return;
+                running++;
+                queued--;
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        task.job.run();
+                    }
+                    finally {
+                        finished();
+                    }
+                });
+            }
+            catch(RejectedExecutionException e) { // shutting down
+                synchronized(this) {
+                    running--;
+                }
+                return;
+            }
+        }
+    }
+
+    private void finished() {
+        synchronized(this) {
+            running--;
+        }
+        dispatch();
+    }
+
+    /**
+     * Takes the next job, in deficit round robin order. Caller must hold the lock.
+     * @return the job, or null if none can start (nothing waiting, or every waiting guild is at its cap)
+     */
+    private Task next() {
+        int capped = 0; // guilds passed over in a row because of their cap
+        while(!active.isEmpty() && capped < active.size()) {
+            Flow flow = active.peekFirst();
+            Task task = flow.queue.peekFirst();
+            if(task == null) {  // nothing left: leave the rotation
+                active.pollFirst();
+                flow.active = false;
+                flow.deficit = 0;
+                continue;
+            }
+            if(task.claimed) {  // already started on another guild's turn
+                flow.queue.pollFirst();
+                continue;
+            }
+            if(maxCallsPerCycle > 0 && flow.calls >= maxCallsPerCycle) {
+                Metrics.increment("sched_capped");
+                active.addLast(active.pollFirst());
+                capped++;
+                continue;
+            }
+            if(flow.deficit >= 1) {
+                flow.queue.pollFirst();
+                flow.deficit--;
+                flow.calls++;
+                task.claimed = true;
+                return task;
+            }
+            flow.deficit += weight(flow.guildId); // turn over: top up for the next one
+            active.addLast(active.pollFirst());
+            capped = 0;
+        }
+        return null;
+    }
+
+    private int weight(String guildId) {
+        return weights.getOrDefault(guildId, 1);
+    }
+
+    private synchronized long getQueued() {
+        return queued;
+    }
+
+    private synchronized long getWaitingGuilds() {
+        return active.size();
+    }
+
+    /**
+     * One guild's place in the rotation.
+     */
+    private static final class Flow {
+        private final String guildId;
+        private final ArrayDeque<Task> queue = new ArrayDeque<>();  // its due jobs, oldest first
+        private boolean active;     // in the rotation
+        private int deficit;        // jobs it may still start on its current turn
+        private int calls;          // jobs started this cycle
+
+        Flow(String guildId) {
+            this.guildId = guildId;
+        }
+    }
+
+    /**
+     * A due job, queued under every guild it runs for.
+     */
+    private static final class Task {
+        private final Runnable job;
+        private boolean claimed;    // started (on some guild's turn)
+
+        Task(Runnable job) {
+            this.job = job;
+        }
+    }
+}
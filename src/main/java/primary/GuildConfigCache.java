@@ -0,0 +1,346 @@
+package primary;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import org.bson.BsonDocument;
+import org.bson.BsonObjectId;
+import org.bson.BsonValue;
+import org.bson.Document;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+
+/**
+ * In-memory copy of every guild's configuration (channels, queries, and whether its script is running) from the serverposts collection,
+ * plus the reverse index from each (query, subreddit) pair to the guilds that watch it.
+ * Loaded once on startup, then kept current by a MongoDB change stream - or, on deployments without
+ * change streams (standalone servers), by reloading the collection every interval. The stream is always
+ * opened before a full load, so a change made while the collection is being read is replayed rather than
+ * missed, and a stream that fails is resumed after the last change applied. Writes made through
+ * UpdateDB are also applied here directly, so they are visible immediately. Reads never lock;
+ * writes are rare and serialised.
+ */
+
+public class GuildConfigCache {
+    private static final long POLL_INTERVAL = 30000;   // ms between reloads when change streams are unavailable
+    private static final long RETRY_INTERVAL = 5000;   // ms before reopening a change stream that failed
+
+    private final MongoCollection<Document> collection;     // serverposts
+    private final Map<String, GuildConfig> guilds;          // { guildId -> configuration }
+    private final Map<QueryKey, Set<String>> watchers;      // { (query, subreddit) -> guildIds }
+    private final Map<BsonValue, String> documents;         // { serverposts _id -> guildId }, to resolve deletes
+    private MongoChangeStreamCursor<ChangeStreamDocument<Document>> stream; // open change stream, or null (watcher thread only)
+    private BsonDocument resumeToken;                       // resume token of the last change applied, or null
+
+    /**
+     * primary.GuildConfigCache constructor. Loads the whole collection.
+     * @param collection the serverposts collection
+     */
+    public GuildConfigCache(MongoCollection<Document> collection) {
+        this.collection = collection;
+        guilds = new ConcurrentHashMap<>();
+        watchers = new ConcurrentHashMap<>();
+        documents = new ConcurrentHashMap<>();
+        try {
+            stream = open(null); // before the load, so that changes made during it are not missed
+        }
+        catch(MongoException e) {
+            System.err.println(e); // retried by watch(), along with a reload
+        }
+        reload();
+
+        Metrics.gauge("config_guilds", guilds::size);
+        Metrics.gauge("config_queries", watchers::size);
+    }
+
+    /**
+     * Starts keeping the cache current in the background.
+     */
+    public void watch() {
+        Thread watcher = new Thread(this::follow, "config-watch");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Gets a guild's configuration.
+     * @param guildId unique ID of guild
+     * @return the configuration, or null if the guild has none
+     */
+    public GuildConfig get(String guildId) {
+        return guilds.get(guildId);
+    }
+
+    /**
+     * Gets the guilds whose script is turned on, as stored in the database.
+     * @return ids of the running guilds
+     */
+    public List<String> runningGuilds() {
+        List<String> running = new ArrayList<>();
+        guilds.forEach((guildId, config) -> {
+            if(config.isRunning()) running.add(guildId);
+        });
+        return running;
+    }
+
+    /**
+     * Gets the guilds watching a (query, subreddit) pair.
+     * @param key the (query, subreddit) pair
+     * @return ids of the guilds (possibly empty; do not modify)
+     */
+    public Set<String> watchers(QueryKey key) {
+        return watchers.getOrDefault(key, Collections.emptySet());
+    }
+
+    /**
+     * Replaces a guild's configuration.
+     * @param guildId unique ID of guild
+     * @param config the new configuration
+     */
+    public synchronized void put(String guildId, GuildConfig config) {
+        GuildConfig old = guilds.put(guildId, config);
+        reindex(guildId, old, config);
+    }
+
+    /**
+     * Changes a guild's configuration, starting from an empty one if it has none.
+     * @param guildId unique ID of guild
+     * @param change computes the new configuration from the current one
+     */
+    public synchronized void update(String guildId, UnaryOperator<GuildConfig> change) {
+        GuildConfig current = guilds.get(guildId);
+        put(guildId, change.apply(current == null ? GuildConfig.EMPTY : current));
+    }
+
+    /**
+     * Forgets a guild.
+     * @param guildId unique ID of guild
+     */
+    public synchronized void remove(String guildId) {
+        GuildConfig old = guilds.remove(guildId);
+        reindex(guildId, old, null);
+    }
+
+    /**
+     * Replaces the whole cache with the current contents of the collection.
+     */
+    private synchronized void reload() {
+        Set<String> present = new HashSet<>();
+        collection.find().forEach(doc -> {
+            apply(doc);
+            present.add(doc.getString("guildId"));
+        });
+        for(String guildId : new ArrayList<>(guilds.keySet())) {
+            if(!present.contains(guildId)) remove(guildId);
+        }
+        documents.values().retainAll(present);
+    }
+
+    /**
+     * Applies the current state of one serverposts document.
+     */
+    private void apply(Document doc) {
+        String guildId = doc.getString("guildId");
+        if(guildId == null) return;
+        documents.put(new BsonObjectId(doc.getObjectId("_id")), guildId);
+        put(guildId, GuildConfig.from(doc));
+    }
+
+    /**
+     * Follows the change stream for as long as the process lives, reopening it whenever it fails: after
+     * the last change applied if the server still has it, otherwise from now, followed by a full reload
+     * to catch up on anything missed. Falls back to polling if change streams are not supported by the deployment.
+     */
+    private void follow() {
+        while(true) {
+            try {
+                if(stream == null) {
+                    stream = open(resumeToken);
+                    if(resumeToken == null) reload();
+                }
+                while(stream.hasNext()) {
+                    ChangeStreamDocument<Document> change = stream.next();
+                    resumeToken = change.getResumeToken();
+                    apply(change);
+                }
+            }
+            catch(MongoCommandException e) {
+                if(e.getErrorCode() == 40573) { // change streams need a replica set
+                    System.err.println("Change streams unavailable; polling serverposts every " + POLL_INTERVAL + " ms");
+                    poll();
+                    return;
+                }
+                System.err.println(e);
+                resumeToken = null; // e.g. the oplog no longer reaches back to it: start over
+            }
+            catch(MongoException e) {
+                System.err.println(e);
+            }
+            if(stream != null) {
+                stream.close();
+                stream = null;
+            }
+
+            try {
+                Thread.sleep(RETRY_INTERVAL);
+            }
+            catch(InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Opens the change stream. It starts from the moment it is opened, whether or not it is read yet.
+     * @param after resume token to resume after, or null to start from now
+     */
+    private MongoChangeStreamCursor<ChangeStreamDocument<Document>> open(BsonDocument after) {
+        ChangeStreamIterable<Document> changes = collection.watch().fullDocument(FullDocument.UPDATE_LOOKUP);
+        if(after != null) changes.resumeAfter(after);
+        return changes.cursor();
+    }
+
+    private void apply(ChangeStreamDocument<Document> change) {
+        Metrics.increment("config_changes");
+        switch(change.getOperationType()) {
+            case INSERT:
+            case UPDATE:
+            case REPLACE:
+                if(change.getFullDocument() != null) apply(change.getFullDocument());
+                break;
+            case DELETE:
+                String guildId = documents.remove(change.getDocumentKey().get("_id"));
+                if(guildId != null) remove(guildId);
+                break;
+            default:    // drop/rename/invalidate: the stream ends here; start over from a full load
+                resumeToken = null;
+        }
+    }
+
+    private void poll() {
+        while(true) {
+            try {
+                Thread.sleep(POLL_INTERVAL);
+                reload();
+            }
+            catch(InterruptedException e) {
+                return;
+            }
+            catch(MongoException e) {
+                System.err.println(e);
+            }
+        }
+    }
+
+    /**
+     * Moves a guild between reverse-index entries after its configuration changed. Caller must hold the lock.
+     */
+    private void reindex(String guildId, GuildConfig old, GuildConfig latest) {
+        Set<QueryKey> before = old == null ? Collections.emptySet() : old.queries;
+        Set<QueryKey> after = latest == null ? Collections.emptySet() : latest.queries;
+        for(QueryKey key : before) {
+            if(after.contains(key)) continue;
+            watchers.computeIfPresent(key, (k, ids) -> {
+                ids.remove(guildId);
+                return ids.isEmpty() ? null : ids;
+            });
+        }
+        for(QueryKey key : after) {
+            if(!before.contains(key)) watchers.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(guildId);
+        }
+    }
+
+    /**
+     * A guild's configuration. Immutable; changes make a new one.
+     */
+    public static final class GuildConfig {
+        static final GuildConfig EMPTY = new GuildConfig(Collections.emptyList(), Collections.emptySet(), false);
+
+        private final List<String> channels;    // ids of channels the bot posts in
+        private final Set<QueryKey> queries;    // (query, subreddit) pairs the guild watches
+        private final boolean running;          // the guild's script is turned on
+
+        GuildConfig(List<String> channels, Set<QueryKey> queries, boolean running) {
+            this.channels = Collections.unmodifiableList(channels);
+            this.queries = Collections.unmodifiableSet(queries);
+            this.running = running;
+        }
+
+        static GuildConfig from(Document doc) {
+            List<String> channels = new ArrayList<>();
+            Object storedChannels = doc.get("channels");
+            if(storedChannels instanceof List) {
+                for(Object channel : (List<?>) storedChannels) {
+                    channels.add((String) channel);
+                }
+            }
+            Set<QueryKey> queries = new LinkedHashSet<>();
+            Object storedQueries = doc.get("queries");
+            if(storedQueries instanceof List) {
+                for(Object q : (List<?>) storedQueries) {
+                    Document query = (Document) q;
+                    queries.add(new QueryKey(query.getString("query"), query.getString("subreddit")));
+                }
+            }
+            return new GuildConfig(channels, queries, doc.getBoolean("running", false));
+        }
+
+        /**
+         * Gets the ids of the channels the bot posts in.
+         * @return the channel ids
+         */
+        public List<String> getChannels() {
+            return channels;
+        }
+
+        /**
+         * Gets the (query, subreddit) pairs the guild watches.
+         * @return the pairs
+         */
+        public Set<QueryKey> getQueries() {
+            return queries;
+        }
+
+        /**
+         * Checks whether the guild's script is turned on.
+         * @return true if it is running; false otherwise
+         */
+        public boolean isRunning() {
+            return running;
+        }
+
+        GuildConfig withRunning(boolean running) {
+            return new GuildConfig(new ArrayList<>(channels), new LinkedHashSet<>(queries), running);
+        }
+
+        GuildConfig withChannel(String channelId) {
+            List<String> next = new ArrayList<>(channels);
+            next.add(channelId);
+            return new GuildConfig(next, new LinkedHashSet<>(queries), running);
+        }
+
+        GuildConfig withoutChannel(String channelId) {
+            List<String> next = new ArrayList<>(channels);
+            next.removeAll(Collections.singleton(channelId));
+            return new GuildConfig(next, new LinkedHashSet<>(queries), running);
+        }
+
+        GuildConfig withQuery(QueryKey key) {
+            Set<QueryKey> next = new LinkedHashSet<>(queries);
+            next.add(key);
+            return new GuildConfig(new ArrayList<>(channels), next, running);
+        }
+
+        GuildConfig withoutQuery(QueryKey key) {
+            Set<QueryKey> next = new LinkedHashSet<>(queries);
+            next.remove(key);
+            return new GuildConfig(new ArrayList<>(channels), next, running);
+        }
+    }
+}
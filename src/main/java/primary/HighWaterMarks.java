@@ -0,0 +1,225 @@
+package primary;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The newest post seen so far for each (query, subreddit) pair.
+ * Searches are sorted newest first, so once a search reaches its mark everything after it
+ * has already been handled, and paginating can stop. Marks are kept in the querymarks
+ * collection, so a restart picks up where it left off.
+ */
+
+public class HighWaterMarks {
+    // Reddit's search index can surface a post a little after newer ones; read this far past the mark
+    private static final long GRACE = TimeUnit.MINUTES.toMillis(10);
+
+    private final MongoCollection<Document> collection; // querymarks; null if the marks are not persisted
+    private final Map<QueryKey, Mark> marks;            // { (query, subreddit) -> newest post seen }
+    private final Set<QueryKey> dirty;                  // marks changed since the last flush
+    private final Set<QueryKey> removed;                // marks forgotten since the last flush
+    private volatile Journal journal;                   // where moved marks are appended first; null if none
+
+    /**
+     * primary.HighWaterMarks constructor. Loads the stored marks.
+     * @param collection the querymarks collection
+     */
+    public HighWaterMarks(MongoCollection<Document> collection) {
+        this.collection = collection;
+        marks = new ConcurrentHashMap<>();
+        dirty = ConcurrentHashMap.newKeySet();
+        removed = ConcurrentHashMap.newKeySet();
+
+        collection.find().forEach(doc -> {
+            Date date = doc.getDate("date");
+            if(date != null) {
+                QueryKey key = new QueryKey(doc.getString("query"), doc.getString("subreddit"));
+                marks.put(key, new Mark(doc.getString("postId"), date.getTime()));
+            }
+        });
+    }
+
+    /**
+     * primary.HighWaterMarks constructor, for marks that are only kept in memory (ex. benchmarks).
+     */
+    public HighWaterMarks() {
+        collection = null;
+        marks = new ConcurrentHashMap<>();
+        dirty = ConcurrentHashMap.newKeySet();
+        removed = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Gets the mark of a pair.
+     * @param key the (query, subreddit) pair
+     * @return the newest post seen for the pair, or null if it has never been searched
+     */
+    public Mark get(QueryKey key) {
+        return marks.get(key);
+    }
+
+    /**
+     * Moves the mark of a pair forward, if the given post is newer than it.
+     * @param key the (query, subreddit) pair
+     * @param fullName fullname of the newest post in the latest search
+     * @param createdMillis creation time of that post
+     */
+    public void advance(QueryKey key, String fullName, long createdMillis) {
+        Mark next = new Mark(fullName, createdMillis);
+        Mark merged = marks.merge(key, next, (old, latest) -> latest.created > old.created ? latest : old);
+        if(merged == next) {
+            Journal j = journal;
+            if(j != null) j.mark(key, fullName, createdMillis, () -> dirty.add(key));
+            else dirty.add(key);
+        }
+    }
+
+    /**
+     * Starts the mark of a pair from the marks of the pairs it replaces (ex. a search regrouped with others),
+     * so that its first run does not read the whole window again. The oldest of them is taken: only what
+     * every one of them has handled is handled for the new pair. Nothing changes if the pair has a mark
+     * already, or if one of them has none.
+     * @param key the (query, subreddit) pair
+     * @param from the marks it replaces
+     */
+    public void inherit(QueryKey key, Collection<QueryKey> from) {
+        if(from.isEmpty() || marks.containsKey(key)) return;
+        Mark oldest = null;
+        for(QueryKey previous : from) {
+            Mark mark = marks.get(previous);
+            if(mark == null) return;
+            if(oldest == null || mark.created < oldest.created) oldest = mark;
+        }
+        advance(key, oldest.fullName, oldest.created);
+    }
+
+    /**
+     * Reads the stored mark of a pair again (ex. when taking over a job another node was running),
+     * keeping the one in memory if it is newer.
+     * @param key the (query, subreddit) pair
+     */
+    public void reload(QueryKey key) {
+        if(collection == null) return;
+        Document doc = collection.find(filter(key)).first();
+        Date date = doc == null ? null : doc.getDate("date");
+        if(date != null) advance(key, doc.getString("postId"), date.getTime());
+    }
+
+    /**
+     * Forgets the mark of a pair (ex. when no guild searches it anymore). It is deleted from the database at the next flush.
+     * @param key the (query, subreddit) pair
+     */
+    public void remove(QueryKey key) {
+        marks.remove(key);
+        dirty.remove(key);
+        if(collection != null) removed.add(key);
+    }
+
+    /**
+     * Appends every mark that moves from now on to a journal, before it is flushed.
+     * @param journal the journal
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Writes the marks changed and deletes the marks forgotten since the last flush, in one round trip.
+     * @return true if they were written (or there were none); false if they were kept for the next flush
+     */
+    public synchronized boolean flush() {
+        if(collection == null) {
+            dirty.clear();
+            return true;
+        }
+        List<WriteModel<Document>> models = new ArrayList<>();
+        List<QueryKey> deleted = new ArrayList<>();
+        for(Iterator<QueryKey> it = removed.iterator(); it.hasNext(); ) {
+            QueryKey key = it.next();
+            it.remove();
+            if(marks.containsKey(key)) continue;    // searched again since; written below
+            deleted.add(key);
+            models.add(new DeleteOneModel<>(filter(key)));
+        }
+        List<QueryKey> keys = new ArrayList<>();
+        for(Iterator<QueryKey> it = dirty.iterator(); it.hasNext(); ) {
+            QueryKey key = it.next();
+            it.remove();
+            Mark mark = marks.get(key);
+            if(mark == null) continue;
+            keys.add(key);
+            models.add(new ReplaceOneModel<>(filter(key), new Document()
+                    .append("query", key.getQuery())
+                    .append("subreddit", key.getSubreddit())
+                    .append("postId", mark.fullName)
+                    .append("date", new Date(mark.created)),
+                    new ReplaceOptions().upsert(true)));
+        }
+        if(models.isEmpty()) return true;
+
+        try {
+            collection.bulkWrite(models);
+            return true;
+        }
+        catch(MongoException e) {   // try again at the next flush
+            System.err.println(e);
+            removed.addAll(deleted);
+            dirty.addAll(keys);
+            return false;
+        }
+    }
+
+    private static Bson filter(QueryKey key) {
+        return Filters.and(Filters.eq("query", key.getQuery()), Filters.eq("subreddit", key.getSubreddit()));
+    }
+
+    /**
+     * The newest post seen for a pair.
+     */
+    public static final class Mark {
+        private final String fullName;  // fullname of the post
+        private final long created;     // creation time of the post (ms)
+
+        Mark(String fullName, long created) {
+            this.fullName = fullName;
+            this.created = created;
+        }
+
+        /**
+         * Checks whether a search result is far enough past this mark that everything from it onwards
+         * was already handled. (Not just the marked post itself: a post indexed late sorts after it.)
+         * @param createdMillis creation time of the result
+         * @return true if paginating can stop; false otherwise
+         */
+        public boolean isReachedBy(long createdMillis) {
+            return createdMillis < created - GRACE;
+        }
+
+        /**
+         * Gets the creation time of the marked post.
+         * @return the creation time (ms)
+         */
+        public long getCreated() {
+            return created;
+        }
+
+        /**
+         * Gets the fullname of the marked post.
+         * @return the fullname
+         */
+        public String getFullName() {
+            return fullName;
+        }
+    }
+}
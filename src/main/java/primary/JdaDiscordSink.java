@@ -0,0 +1,27 @@
+package primary;
+
+import net.dv8tion.jda.api.entities.MessageEmbed;
+import net.dv8tion.jda.api.entities.TextChannel;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * DiscordSink backed by the bot's gateway shards: each message goes out through the shard its guild is on.
+ */
+
+public class JdaDiscordSink implements DiscordSink {
+    @Override
+    public boolean send(String guildId, String channelId, List<MessageEmbed> embeds, Runnable success, Consumer<Throwable> failure) {
+        TextChannel channel = Bot.getShards().getTextChannel(guildId, channelId);
+        if(channel == null) return false; // channel deleted, bot removed from it, or its shard is run elsewhere
+
+        try {
+            channel.sendMessageEmbeds(embeds).queue(message -> success.run(), failure);
+        }
+        catch(RuntimeException e) { // ex. missing permissions, checked before queueing
+            failure.accept(e);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,185 @@
+package primary;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.*;
+import org.bson.Document;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.or;
+
+/**
+ * Splits the scan jobs between the bot processes sharing one database (cluster mode), through expiring leases.
+ * Outside cluster mode there is one node, which holds every job without touching the database.
+ */
+
+public class JobLeases {
+    private static final long TTL = TimeUnit.SECONDS.toMillis(Settings.getLong("cluster.leaseSeconds", 90)); // lease length
+
+    private final MongoCollection<Document> leases;     // { _id: job name, owner, expiresAt }; null outside cluster mode
+    private final MongoCollection<Document> nodes;      // { _id: node id, seen }
+    private final String nodeId;                        // this process
+    private final Map<String, Long> held;               // { job name whose lease this node holds -> when the lease runs out (ms) }
+
+    /**
+     * primary.JobLeases constructor, for a single node: every job is always held.
+     */
+    public JobLeases() {
+        leases = null;
+        nodes = null;
+        nodeId = "local";
+        held = Collections.emptyMap();
+    }
+
+    /**
+     * primary.JobLeases constructor, for cluster mode.
+     * @param leases the leases collection
+     * @param nodes the nodes collection
+     * @param nodeId unique id of this process (cluster.nodeId; defaults to pid@host)
+     */
+    public JobLeases(MongoCollection<Document> leases, MongoCollection<Document> nodes, String nodeId) {
+        this.leases = leases;
+        this.nodes = nodes;
+        this.nodeId = nodeId;
+        held = new ConcurrentHashMap<>();
+        nodes.createIndex(Indexes.ascending("seen"), new IndexOptions().expireAfter(1L, TimeUnit.DAYS));
+        Metrics.gauge("cluster_leases_held", held::size);
+    }
+
+    /**
+     * Gets the default id of this process.
+     * @return pid@host, as reported by the JVM
+     */
+    public static String defaultNodeId() {
+        return ManagementFactory.getRuntimeMXBean().getName();
+    }
+
+    /**
+     * Checks whether this node should run a job. A lease this node has not managed to renew in time
+     * (ex. the database was unreachable) no longer counts, since another node may have taken it over.
+     * @param job name of the job
+     * @return true if this node holds the job's lease and it has not run out (always, outside cluster mode)
+     */
+    public boolean holds(String job) {
+        if(leases == null) return true;
+        Long expiresAt = held.get(job);
+        return expiresAt != null && System.currentTimeMillis() < expiresAt;
+    }
+
+    /**
+     * Checks whether leases are in use.
+     * @return true in cluster mode; false otherwise
+     */
+    public boolean isClustered() {
+        return leases != null;
+    }
+
+    /**
+     * Renews this node's leases, lets go of those it should not hold anymore, and takes over free ones
+     * up to its fair share. Call well within the lease length (ex. every housekeeping run).
+     * Before letting go of anything, beforeRelease runs, so the next owner finds everything written.
+     * @param wanted names of every job that should be running, cluster-wide
+     * @param beforeRelease run before any lease is given up
+     * @return names of the jobs this node has just taken over (empty outside cluster mode)
+     */
+    public Set<String> sync(Collection<String> wanted, Runnable beforeRelease) {
+        if(leases == null) return Collections.emptySet();
+        long now = System.currentTimeMillis();
+        Date expiresAt = new Date(now + TTL);
+
+        nodes.replaceOne(eq("_id", nodeId), new Document("_id", nodeId).append("seen", new Date(now)),
+                new ReplaceOptions().upsert(true));
+        long liveNodes = Math.max(1, nodes.countDocuments(gt("seen", new Date(now - TTL))));
+        int share = (int) ((wanted.size() + liveNodes - 1) / liveNodes);
+
+        // Renew, then read back what is really ours (a lease can be lost to a takeover after a long pause)
+        leases.updateMany(eq("owner", nodeId), Updates.set("expiresAt", expiresAt));
+        Set<String> owned = new HashSet<>();
+        leases.find(eq("owner", nodeId)).projection(Projections.include("_id"))
+                .forEach(doc -> owned.add(doc.getString("_id")));
+
+        // Let go of jobs nobody wants anymore, and of anything over the fair share
+        Set<String> wantedSet = new HashSet<>(wanted);
+        List<String> release = new ArrayList<>();
+        List<String> keep = new ArrayList<>();
+        for(String job : owned) {
+            if(wantedSet.contains(job)) keep.add(job);
+            else release.add(job);
+        }
+        Collections.sort(keep);
+        while(keep.size() > share) {
+            release.add(keep.remove(keep.size() - 1));
+        }
+        if(!release.isEmpty()) {
+            beforeRelease.run();
+            leases.deleteMany(and(in("_id", release), eq("owner", nodeId)));
+            Metrics.add("cluster_leases_released", release.size());
+        }
+
+        // Take free or expired leases, in random order so nodes do not all go for the same ones
+        Set<String> acquired = new HashSet<>();
+        Set<String> kept = new HashSet<>(keep);
+        List<String> candidates = new ArrayList<>();
+        for(String job : wanted) {
+            if(!kept.contains(job)) candidates.add(job);
+        }
+        Collections.shuffle(candidates);
+        for(String job : candidates) {
+            if(keep.size() + acquired.size() >= share) break;
+            if(tryAcquire(job, now, expiresAt)) acquired.add(job);
+        }
+        Metrics.add("cluster_leases_acquired", acquired.size());
+
+        held.keySet().retainAll(kept);
+        for(String job : kept) {
+            held.put(job, expiresAt.getTime()); // as of before the renewal, so never later than the stored expiry
+        }
+        for(String job : acquired) {
+            held.put(job, expiresAt.getTime());
+        }
+        return acquired;
+    }
+
+    /**
+     * Takes a job's lease if nobody holds it, or its holder let it expire.
+     * @return true if this node now holds it
+     */
+    private boolean tryAcquire(String job, long now, Date expiresAt) {
+        try {
+            leases.updateOne(and(eq("_id", job), or(lt("expiresAt", new Date(now)), eq("owner", nodeId))),
+                    Updates.combine(Updates.set("owner", nodeId), Updates.set("expiresAt", expiresAt)),
+                    new UpdateOptions().upsert(true));
+            return true;
+        }
+        catch(MongoWriteException e) { // held by someone else: the upsert collided with the existing _id
+            if(e.getError().getCategory() == ErrorCategory.DUPLICATE_KEY) return false;
+            throw e;
+        }
+    }
+
+    /**
+     * Gives up every lease this node holds (ex. on shutdown), so other nodes can take over right away.
+     */
+    public void releaseAll() {
+        if(leases == null) return;
+        try {
+            leases.deleteMany(eq("owner", nodeId));
+            nodes.deleteOne(eq("_id", nodeId));
+        }
+        catch(MongoException e) {
+            System.err.println(e);
+        }
+        held.clear();
+    }
+}
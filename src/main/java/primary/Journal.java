@@ -0,0 +1,517 @@
+package primary;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.UpdateOptions;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Local write-ahead journal of posts sent, marks moved and configuration changes not yet in the database,
+ * in memory-mapped segment files (journal.dir); replayed from the last checkpoint after a crash.
+ */
+
+public class Journal {
+    private static final long SEGMENT_SIZE = Settings.getLong("journal.segmentMB", 16) << 20;
+    private static final int HEADER = 4 + 1 + 8 + 8;    // length (0 = end of segment), type, sequence number, time; then payload, CRC32 from type on
+    private static final byte SEEN = 1;                 // a post sent to a guild
+    private static final byte MARK = 2;                 // a high-water mark moved
+    private static final byte WRITE = 3;                // a configuration change waiting for the database
+    private static final byte WRITE_DONE = 4;           // that change has been applied
+    private static final byte CHECKPOINT = 5;           // everything up to a sequence number is in the database
+
+    private final File dir;
+    private final List<Segment> segments;               // oldest first; the last one is appended to; guarded by this
+    private final LinkedHashMap<Long, Write> pending;   // { sequence number -> configuration change not yet applied }; guarded by this
+    private final Map<Long, Long> copies;               // { sequence number of a pending change -> that of its latest WRITE record }; guarded by this
+    private long sequence;                              // last sequence number used; guarded by this
+    private long checkpoint;                            // last checkpointed sequence number; guarded by this
+    private volatile long recoveryMs;                   // how long the last recovery took
+
+    /**
+     * primary.Journal constructor. Opens (or creates) the journal directory; call recover before appending.
+     * @param dir directory of the segment files
+     */
+    public Journal(File dir) {
+        this.dir = dir;
+        segments = new ArrayList<>();
+        pending = new LinkedHashMap<>();
+        copies = new HashMap<>();
+        if(!dir.isDirectory() && !dir.mkdirs()) throw new IllegalStateException("Cannot create journal directory " + dir);
+
+        Metrics.gauge("journal_segments", this::segmentCount);
+        Metrics.gauge("journal_bytes", this::byteCount);
+        Metrics.gauge("journal_writes_pending", this::pendingCount);
+        Metrics.gauge("journal_recovery_ms", () -> recoveryMs);
+    }
+
+    /**
+     * Replays the journal after a restart: posts sent and marks moved since the last checkpoint are put back
+     * into the index, the store (to be written again) and the marks, and the configuration changes never applied
+     * are queued again (see pendingWrites). Torn or corrupt records at the end of a segment (a crash mid-append) are skipped.
+     * @param index the seen-post index
+     * @param store the store the posts are written to
+     * @param marks the high-water marks
+     * @return number of records replayed
+     */
+    public synchronized long recover(SeenPostIndex index, PostStore store, HighWaterMarks marks) {
+        long start = System.currentTimeMillis();
+        File[] files = dir.listFiles((d, name) -> name.startsWith("segment-") && name.endsWith(".log"));
+        if(files == null) files = new File[0];
+        Arrays.sort(files); // names are zero-padded first sequence numbers
+
+        // First pass: read everything, since the checkpoint and the WRITE_DONE records can come after what they cover
+        List<Record> records = new ArrayList<>();
+        for(File file : files) {
+            try {
+                Segment segment = Segment.open(file);
+                segment.read(records);
+                segments.add(segment);
+            }
+            catch(IOException e) {
+                System.err.println(file + ": " + e);
+            }
+        }
+
+        long replayed = 0;
+        Set<Long> done = new HashSet<>();
+        for(Record record : records) {
+            sequence = Math.max(sequence, record.seq);
+            if(record.type == CHECKPOINT) checkpoint = Math.max(checkpoint, record.payload.getLong());
+            if(record.type == WRITE_DONE) done.add(record.payload.getLong());
+        }
+        for(Record record : records) {
+            if(record.type == WRITE) {
+                long seq = record.payload.getLong(); // the change's own number (copies made by compact keep it)
+                if(!done.contains(seq)) {
+                    if(!pending.containsKey(seq)) {
+                        pending.put(seq, Write.read(seq, record.payload));
+                        replayed++;
+                    }
+                    copies.put(seq, record.seq); // records are in order, so the last one read is the latest copy
+                }
+            }
+            if(record.seq <= checkpoint) continue;
+            if(record.type == SEEN) {
+                String guildId = Long.toString(record.payload.getLong());
+                RedditPost post = new RedditPost(getString(record.payload), "", null, "",
+                        getString(record.payload), getString(record.payload), 0, 0, record.payload.getLong());
+                if(index.add(guildId, post.getFullName(), post.getCreated())) store.record(guildId, post);
+                replayed++;
+            }
+            else if(record.type == MARK) {
+                long created = record.payload.getLong();
+                String fullName = getString(record.payload);
+                marks.advance(new QueryKey(getString(record.payload), getString(record.payload)), fullName, created);
+                replayed++;
+            }
+        }
+        if(segments.isEmpty() || segments.get(segments.size() - 1).remaining() < HEADER + 4) roll();
+
+        recoveryMs = System.currentTimeMillis() - start;
+        System.out.println("Journal: replayed " + replayed + " of " + records.size() + " records from "
+                + files.length + " segments in " + recoveryMs + " ms");
+        return replayed;
+    }
+
+    /**
+     * Appends a post sent to a guild, then queues it for the database.
+     * @param guildId unique ID of guild
+     * @param post the post
+     * @param queue queues the post for the database; run under the journal's lock, so position() never covers a post not queued yet
+     */
+    public synchronized void seen(String guildId, RedditPost post, Runnable queue) {
+        byte[] fullName = bytes(post.getFullName()), subreddit = bytes(post.getSubreddit()), permalink = bytes(post.getPermalink());
+        append(SEEN, 8 + 12 + fullName.length + subreddit.length + permalink.length + 8, buffer -> {
+            buffer.putLong(Long.parseLong(guildId));
+            putBytes(buffer, fullName);
+            putBytes(buffer, subreddit);
+            putBytes(buffer, permalink);
+            buffer.putLong(post.getCreated());
+        });
+        queue.run();
+    }
+
+    /**
+     * Appends a high-water mark that moved, then queues it for the database.
+     * @param key the (query, subreddit) pair
+     * @param fullName fullname of the newest post
+     * @param createdMillis creation time of that post
+     * @param queue queues the mark for the database; run under the journal's lock, like seen's
+     */
+    public synchronized void mark(QueryKey key, String fullName, long createdMillis, Runnable queue) {
+        byte[] name = bytes(fullName), query = bytes(key.getQuery()), subreddit = bytes(key.getSubreddit());
+        append(MARK, 8 + 12 + name.length + query.length + subreddit.length, buffer -> {
+            buffer.putLong(createdMillis);
+            putBytes(buffer, name);
+            putBytes(buffer, query);
+            putBytes(buffer, subreddit);
+        });
+        queue.run();
+    }
+
+    /**
+     * Appends a configuration change the database could not take, to be applied later (see pendingWrites).
+     * @param write the change
+     */
+    public synchronized void write(Write write) {
+        long seq = sequence + 1; // the number append is about to use
+        write = write.numbered(seq);
+        byte[] encoded = write.encode();
+        append(WRITE, encoded.length, buffer -> buffer.put(encoded));
+        pending.put(seq, write);
+        copies.put(seq, seq);
+    }
+
+    /**
+     * Checks whether configuration changes are waiting. While they are, new ones must wait behind them.
+     * @return true if any change has not been applied yet
+     */
+    public synchronized boolean hasPendingWrites() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * Gets the configuration changes not applied yet, oldest first.
+     * @return the changes
+     */
+    public synchronized List<Write> pendingWrites() {
+        return new ArrayList<>(pending.values());
+    }
+
+    /**
+     * Records that a configuration change has been applied.
+     * @param write the change
+     */
+    public synchronized void applied(Write write) {
+        if(pending.remove(write.seq) == null) return;
+        copies.remove(write.seq);
+        append(WRITE_DONE, 8, buffer -> buffer.putLong(write.seq));
+    }
+
+    /**
+     * Gets the sequence number of the last record appended, to checkpoint once everything until then is written.
+     * Every post and mark up to it has been queued for the database already (see seen and mark).
+     * @return the sequence number
+     */
+    public synchronized long position() {
+        return sequence;
+    }
+
+    /**
+     * Records that everything up to a position is in the database, forces the journal to disk,
+     * and deletes the segments nothing needs anymore.
+     * @param upTo the position, from position()
+     */
+    public synchronized void checkpoint(long upTo) {
+        if(upTo > checkpoint) {
+            checkpoint = upTo;
+            append(CHECKPOINT, 8, buffer -> buffer.putLong(upTo));
+        }
+        for(Segment segment : segments) {
+            segment.force();
+        }
+        compact();
+    }
+
+    /**
+     * Deletes every segment but the current one whose records are all past retention: the database would
+     * have expired those posts by now, and no scan looks that far back. Configuration changes still waiting
+     * in such a segment are copied to the current one first. A copy keeps the change's own number (what
+     * WRITE_DONE refers to, and what recovery tells copies apart by), but is found again by where it now is.
+     */
+    private void compact() {
+        long expired = System.currentTimeMillis() - SeenPostIndex.RETENTION;
+        for(Segment segment : new ArrayList<>(segments)) { // a copy can roll a new segment
+            if(segment == current() || segment.newest > expired) continue;
+
+            for(Write write : pending.values()) {
+                long at = copies.get(write.seq);
+                if(at >= segment.firstSeq && at <= segment.lastSeq) {
+                    byte[] encoded = write.encode();
+                    copies.put(write.seq, append(WRITE, encoded.length, buffer -> buffer.put(encoded)));
+                }
+            }
+            segment.close();
+            if(!segment.file.delete()) System.err.println("Cannot delete " + segment.file);
+            segments.remove(segment);
+            Metrics.increment("journal_segments_deleted");
+        }
+    }
+
+    private interface Payload {
+        void write(MappedByteBuffer buffer);
+    }
+
+    /**
+     * Appends one record.
+     * @return its sequence number
+     */
+    private synchronized long append(byte type, int size, Payload payload) {
+        int length = HEADER + size + 4;
+        if(length + 4 > SEGMENT_SIZE) throw new IllegalArgumentException("Journal record too large: " + length);
+        if(current() == null || current().remaining() < length + 4) roll(); // keep room for the end marker
+
+        Segment segment = current();
+        MappedByteBuffer buffer = segment.buffer;
+        int start = buffer.position();
+        long seq = ++sequence;
+        long now = System.currentTimeMillis();
+        buffer.putInt(length);
+        buffer.put(type);
+        buffer.putLong(seq);
+        buffer.putLong(now);
+        payload.write(buffer);
+
+        buffer.putInt((int) checksum(buffer, start + 4, buffer.position()));
+        segment.appended(seq, now);
+        return seq;
+    }
+
+    /**
+     * Computes the CRC32 of part of a buffer in one call, without moving the buffer's position.
+     * @param from index of the first byte
+     * @param to index after the last byte
+     */
+    private static long checksum(ByteBuffer buffer, int from, int to) {
+        ByteBuffer range = buffer.duplicate();
+        range.limit(to);
+        range.position(from);
+        CRC32 crc = new CRC32();
+        crc.update(range);
+        return crc.getValue();
+    }
+
+    private Segment current() {
+        return segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    }
+
+    /**
+     * Starts a new segment.
+     */
+    private void roll() {
+        File file = new File(dir, String.format("segment-%020d.log", sequence + 1));
+        try {
+            segments.add(Segment.create(file));
+        }
+        catch(IOException e) {
+            throw new IllegalStateException("Cannot create journal segment " + file, e);
+        }
+    }
+
+    private synchronized long segmentCount() {
+        return segments.size();
+    }
+
+    private synchronized long byteCount() {
+        long bytes = 0;
+        for(Segment segment : segments) {
+            bytes += segment.buffer.position();
+        }
+        return bytes;
+    }
+
+    private synchronized long pendingCount() {
+        return pending.size();
+    }
+
+    private static byte[] bytes(String s) {
+        return (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putBytes(MappedByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A configuration change to the serverposts collection, kept until the database takes it.
+     * Applying one twice (after a crash between applying and recording it) must be harmless.
+     */
+    public static final class Write {
+        /**
+         * What the change does.
+         */
+        public enum Kind { INSERT, UPDATE, UPSERT, DELETE }
+
+        private final long seq;         // sequence number of its WRITE record; 0 until journaled
+        private final Kind kind;
+        private final Document filter;  // which documents (unused for INSERT)
+        private final Document change;  // the update, or the document to insert
+
+        private Write(long seq, Kind kind, Document filter, Document change) {
+            this.seq = seq;
+            this.kind = kind;
+            this.filter = filter;
+            this.change = change;
+        }
+
+        /**
+         * Builds a change.
+         * @param kind what it does
+         * @param filter which documents it applies to (ignored for INSERT)
+         * @param change the update, or the document to insert (ignored for DELETE)
+         * @return the change
+         */
+        public static Write of(Kind kind, Bson filter, Bson change) {
+            return new Write(0, kind, toDocument(filter), toDocument(change));
+        }
+
+        /**
+         * Applies the change.
+         * @param database the database
+         */
+        public void apply(MongoDatabase database) {
+            switch(kind) {
+                case INSERT: database.getCollection("serverposts").replaceOne(new Document("_id", change.get("_id")), change,
+                        new ReplaceOptions().upsert(true)); break; // replayable, unlike insertOne
+                case UPDATE: database.getCollection("serverposts").updateOne(filter, change); break;
+                case UPSERT: database.getCollection("serverposts").updateOne(filter, change, new UpdateOptions().upsert(true)); break;
+                case DELETE: database.getCollection("serverposts").deleteOne(filter); break;
+            }
+        }
+
+        private Write numbered(long seq) {
+            return new Write(seq, kind, filter, change);
+        }
+
+        private byte[] encode() {
+            byte[] filterJson = bytes(filter.toJson()), changeJson = bytes(change.toJson());
+            ByteBuffer buffer = ByteBuffer.allocate(8 + 1 + 8 + filterJson.length + changeJson.length);
+            buffer.putLong(seq);
+            buffer.put((byte) kind.ordinal());
+            buffer.putInt(filterJson.length);
+            buffer.put(filterJson);
+            buffer.putInt(changeJson.length);
+            buffer.put(changeJson);
+            return buffer.array();
+        }
+
+        private static Write read(long seq, ByteBuffer buffer) {
+            Kind kind = Kind.values()[buffer.get()];
+            Document filter = Document.parse(getString(buffer));
+            Document change = Document.parse(getString(buffer));
+            return new Write(seq, kind, filter, change);
+        }
+
+        private static Document toDocument(Bson bson) {
+            if(bson == null) return new Document();
+            return Document.parse(bson.toBsonDocument(Document.class, MongoClientSettings.getDefaultCodecRegistry()).toJson());
+        }
+    }
+
+    /**
+     * One record read back during recovery.
+     */
+    private static final class Record {
+        private final byte type;
+        private final long seq;
+        private final ByteBuffer payload;
+
+        Record(byte type, long seq, ByteBuffer payload) {
+            this.type = type;
+            this.seq = seq;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * One memory-mapped segment file.
+     */
+    private static final class Segment {
+        private final File file;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer buffer;  // position = end of the last record
+        private long firstSeq = Long.MAX_VALUE; // sequence numbers it holds
+        private long lastSeq;
+        private long newest;                    // time of its newest record (ms)
+
+        private Segment(File file, RandomAccessFile raf, MappedByteBuffer buffer) {
+            this.file = file;
+            this.raf = raf;
+            this.buffer = buffer;
+        }
+
+        static Segment create(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(SEGMENT_SIZE);
+            return new Segment(file, raf, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE));
+        }
+
+        static Segment open(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            return new Segment(file, raf, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length()));
+        }
+
+        /**
+         * Reads the records of the segment, stopping at the end marker or at the first torn or corrupt record,
+         * and leaves the buffer positioned there for further appends.
+         */
+        void read(List<Record> out) {
+            buffer.position(0);
+            while(buffer.remaining() >= HEADER + 4) {
+                int start = buffer.position();
+                int length = buffer.getInt(start);
+                if(length < HEADER + 4 || length > buffer.remaining()) break;
+
+                if((int) checksum(buffer, start + 4, start + length - 4) != buffer.getInt(start + length - 4)) {
+                    Metrics.increment("journal_corrupt_records");
+                    break;
+                }
+
+                byte type = buffer.get(start + 4);
+                long seq = buffer.getLong(start + 5);
+                long time = buffer.getLong(start + 13);
+                ByteBuffer payload = buffer.duplicate();
+                payload.position(start + HEADER).limit(start + length - 4);
+                out.add(new Record(type, seq, payload.slice()));
+                appended(seq, time);
+                buffer.position(start + length);
+            }
+            // Clear whatever is past the last good record, so a later append is not read back as part of it
+            for(int i = buffer.position(); i < Math.min(buffer.limit(), buffer.position() + HEADER + 4); i++) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+
+        void appended(long seq, long time) {
+            firstSeq = Math.min(firstSeq, seq);
+            lastSeq = Math.max(lastSeq, seq);
+            newest = Math.max(newest, time);
+        }
+
+        int remaining() {
+            return buffer.remaining();
+        }
+
+        void force() {
+            buffer.force();
+        }
+
+        void close() {
+            try {
+                raf.close();
+            }
+            catch(IOException e) {
+                System.err.println(e);
+            }
+        }
+    }
+}
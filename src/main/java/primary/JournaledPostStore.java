@@ -0,0 +1,51 @@
+package primary;
+
+import java.util.Collection;
+
+/**
+ * PostStore that appends every post to the Journal before handing it to the store that writes it to the database,
+ * so a post sent just before a crash, or during a database outage, is still remembered after a restart.
+ * Both happen under the journal's lock, so every record up to Journal.position() is queued by the time it is read;
+ * and the store keeps what it fails to write instead of dropping it, so a flush that succeeds covers all of them.
+ */
+
+public class JournaledPostStore implements PostStore {
+    private final PostStore store;      // writes to the database
+    private final Journal journal;
+
+    /**
+     * primary.JournaledPostStore constructor
+     * @param store the store that writes to the database
+     * @param journal the journal
+     */
+    public JournaledPostStore(PostStore store, Journal journal) {
+        this.store = store;
+        this.journal = journal;
+        store.keepFailedWrites();
+    }
+
+    @Override
+    public void load(SeenPostIndex index) {
+        store.load(index);
+    }
+
+    @Override
+    public void load(SeenPostIndex index, Collection<String> guildIds) {
+        store.load(index, guildIds);
+    }
+
+    @Override
+    public void record(String guildId, RedditPost post) {
+        journal.seen(guildId, post, () -> store.record(guildId, post));
+    }
+
+    @Override
+    public boolean flush() {
+        return store.flush();
+    }
+
+    @Override
+    public void close() {
+        store.close();
+    }
+}
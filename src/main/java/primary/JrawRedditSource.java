@@ -0,0 +1,100 @@
+package primary;
+
+import net.dean.jraw.RedditClient;
+import net.dean.jraw.models.Listing;
+import net.dean.jraw.models.SearchSort;
+import net.dean.jraw.models.Submission;
+import net.dean.jraw.models.SubredditSort;
+import net.dean.jraw.models.TimePeriod;
+import net.dean.jraw.pagination.Paginator;
+import net.dean.jraw.pagination.SearchPaginator;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongPredicate;
+
+/**
+ * RedditSource backed by the Reddit API, through JRAW: every page is deserialized into complete
+ * Submission models first (reddit.reader=jraw). See LeanRedditSource for the default reader.
+ * A gate can be run before every request, as with LeanRedditSource.
+ */
+
+public class JrawRedditSource implements RedditSource {
+    private static final Metrics.Histogram PAGE_MS = Metrics.histogram("reddit_page_ms"); // time to fetch one page
+
+    private final RedditClient reddit;
+    private final Runnable gate;    // run before each request
+
+    /**
+     * primary.JrawRedditSource constructor
+     * @param reddit an authenticated client
+     */
+    public JrawRedditSource(RedditClient reddit) {
+        this(reddit, () -> {});
+    }
+
+    /**
+     * primary.JrawRedditSource constructor
+     * @param reddit an authenticated client
+     * @param gate run before each request, on the thread about to make it; may block
+     */
+    public JrawRedditSource(RedditClient reddit, Runnable gate) {
+        this.reddit = reddit;
+        this.gate = gate;
+    }
+
+    @Override
+    public Iterable<List<RedditPost>> search(String query, String subreddit, boolean lucene, int limit, long window,
+                                             int maxPages, LongPredicate handled) {
+        SearchPaginator paginator = reddit.subreddit(subreddit).search()
+                .limit(limit)
+                .sorting(SearchSort.NEW)
+                .timePeriod(TimePeriod.valueOf(RedditSource.period(window).toUpperCase()))
+                .syntax(lucene ? SearchPaginator.QuerySyntax.LUCENE : SearchPaginator.QuerySyntax.PLAIN)
+                .query(query)
+                .build();
+        return pages(paginator, maxPages, handled);
+    }
+
+    @Override
+    public Iterable<List<RedditPost>> newPosts(String subreddit, int limit, LongPredicate handled) {
+        return pages(reddit.subreddit(subreddit).posts()
+                .sorting(SubredditSort.NEW)
+                .limit(limit)
+                .build(), Integer.MAX_VALUE, handled);
+    }
+
+    /**
+     * Converts each page as it is fetched, timing the fetch, up to the first handled post or maxPages pages.
+     */
+    private Iterable<List<RedditPost>> pages(Paginator<Submission> paginator, int maxPages, LongPredicate handled) {
+        return () -> new Iterator<List<RedditPost>>() {
+            private final Iterator<Listing<Submission>> listings = paginator.iterator();
+            private boolean stopped;    // a handled post was reached
+            private int read;           // pages read so far
+
+            @Override
+            public boolean hasNext() {
+                return !stopped && read < maxPages && listings.hasNext();
+            }
+
+            @Override
+            public List<RedditPost> next() {
+                gate.run();
+                long start = System.nanoTime();
+                Listing<Submission> listing = listings.next(); // the request happens here
+                read++;
+                PAGE_MS.observe(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                List<RedditPost> page = new ArrayList<>(listing.size());
+                for(Submission s : listing) {
+                    if(handled.test(s.getCreated().getTime())) {
+                        stopped = true;
+                        break;
+                    }
+                    page.add(RedditPost.from(s));
+                }
+                return page;
+            }
+        };
+    }
+}
@@ -0,0 +1,146 @@
+package primary;
+
+import net.dean.jraw.RedditClient;
+import net.dean.jraw.http.HttpRequest;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.LongPredicate;
+
+/**
+ * RedditSource backed by the Reddit API, reading listings with a ListingParser instead of JRAW's models
+ * (reddit.reader=lean, the default). Requests still go through the RedditClient, so they are authenticated,
+ * rate limited and counted against the budget like any other; only the JSON of each page is read differently:
+ * just the fields of a RedditPost are decoded, and reading stops at the first post handled already.
+ * Pages are fetched on a pool of their own (reddit.maxInFlight threads, which bounds the requests in flight),
+ * one page ahead: once a page turns out not to reach a handled post, the next one is requested right away, so
+ * it is on its way while the caller dedupes and delivers the current one. No page is fetched that reading
+ * page by page would not have fetched, so the request budget sees the same requests, only sooner.
+ * A gate can be run before every request (ex. to hold backfills back until live scans have left spare permits).
+ */
+
+public class LeanRedditSource implements RedditSource {
+    private static final Metrics.Histogram PAGE_MS = Metrics.histogram("reddit_page_ms");       // time to fetch one page
+    private static final Metrics.Histogram PARSE_US = Metrics.histogram("reddit_parse_us");     // time to read one page
+    private static final Metrics.Histogram WAIT_MS = Metrics.histogram("reddit_page_wait_ms");  // time a scan waited for a page
+
+    private final RedditClient reddit;
+    private final ExecutorService fetcher;  // does the requests
+    private final Runnable gate;            // run before each request
+
+    /**
+     * primary.LeanRedditSource constructor
+     * @param reddit an authenticated client
+     * @param maxInFlight requests that may be in flight at the same time
+     */
+    public LeanRedditSource(RedditClient reddit, int maxInFlight) {
+        this(reddit, maxInFlight, () -> {});
+    }
+
+    /**
+     * primary.LeanRedditSource constructor
+     * @param reddit an authenticated client
+     * @param maxInFlight requests that may be in flight at the same time
+     * @param gate run before each request, on the thread about to make it; may block
+     */
+    public LeanRedditSource(RedditClient reddit, int maxInFlight, Runnable gate) {
+        this.reddit = reddit;
+        this.gate = gate;
+        fetcher = Executors.newFixedThreadPool(maxInFlight, r -> {
+            Thread t = new Thread(r, "reddit-fetch");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public Iterable<List<RedditPost>> search(String query, String subreddit, boolean lucene, int limit, long window,
+                                             int maxPages, LongPredicate handled) {
+        Map<String, String> params = new HashMap<>();
+        params.put("q", query);
+        params.put("sort", "new");
+        params.put("t", RedditSource.period(window));
+        params.put("syntax", lucene ? "lucene" : "plain");
+        params.put("restrict_sr", "true");
+        return pages("/r/{subreddit}/search", subreddit, params, limit, maxPages, handled);
+    }
+
+    @Override
+    public Iterable<List<RedditPost>> newPosts(String subreddit, int limit, LongPredicate handled) {
+        return pages("/r/{subreddit}/new", subreddit, new HashMap<>(), limit, Integer.MAX_VALUE, handled);
+    }
+
+    /**
+     * Fetches and reads the pages of a listing, following after, up to the first handled post or maxPages pages.
+     */
+    private Iterable<List<RedditPost>> pages(String path, String subreddit, Map<String, String> params, int limit,
+                                             int maxPages, LongPredicate handled) {
+        params.put("limit", Integer.toString(limit));
+        params.put("raw_json", "1");   // text as written, not HTML-escaped
+        return () -> new Iterator<List<RedditPost>>() {
+            private final ListingParser parser = new ListingParser();
+            private Future<String> pending; // the next page, requested but maybe not received yet
+            private boolean done;           // last page read, a handled post reached, or maxPages pages read
+            private int read;               // pages read so far
+
+            @Override
+            public boolean hasNext() {
+                return !done;
+            }
+
+            @Override
+            public List<RedditPost> next() {
+                if(done) throw new NoSuchElementException();
+                if(pending == null) pending = fetch(path, subreddit, params);
+                long start = System.nanoTime();
+                String body = await(pending);
+                long received = System.nanoTime();
+                WAIT_MS.observe(TimeUnit.NANOSECONDS.toMillis(received - start));
+
+                List<RedditPost> page = parser.parse(body, handled);
+                PARSE_US.observe(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - received));
+                String after = parser.getAfter();
+                done = parser.isStopped() || after == null || ++read >= maxPages;
+                if(!done) {
+                    Map<String, String> query = new HashMap<>(params);
+                    query.put("after", after);
+                    pending = fetch(path, subreddit, query);
+                }
+                return page;
+            }
+        };
+    }
+
+    /**
+     * Requests a page on the fetch pool.
+     * @return the JSON of the page, once received
+     */
+    private Future<String> fetch(String path, String subreddit, Map<String, String> query) {
+        return fetcher.submit(() -> {
+            gate.run();
+            long start = System.nanoTime();
+            HttpRequest request = reddit.requestStub().path(path, subreddit).query(query).build();
+            String body = reddit.request(request).getBody();
+            PAGE_MS.observe(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return body;
+        });
+    }
+
+    /**
+     * Waits for a page, rethrowing whatever its request threw.
+     */
+    private static String await(Future<String> page) {
+        try {
+            return page.get();
+        }
+        catch(InterruptedException e) {
+            page.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for a page", e);
+        }
+        catch(ExecutionException e) {
+            if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
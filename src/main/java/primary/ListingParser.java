@@ -0,0 +1,325 @@
+package primary;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongPredicate;
+
+/**
+ * Reads the posts out of one page of a Reddit listing (the JSON of /search or /new), keeping only what a
+ * RedditPost needs. It makes a single pass over the page: every other field, and every nested object
+ * (preview, media, awards, ...), is stepped over without being decoded. The fields of a post are only
+ * located while reading it; nothing is decoded until the whole post has been read, its creation time checked,
+ * and the post found not to have been handled already. Reusable, but not thread-safe: one parser per reader.
+ */
+
+public class ListingParser {
+    // Fields kept, in the order of their slots below
+    private static final String[] STRING_FIELDS = { "name", "title", "selftext", "author", "subreddit", "permalink",
+            "url", "crosspost_parent" };
+    private static final int NAME = 0, TITLE = 1, SELFTEXT = 2, AUTHOR = 3, SUBREDDIT = 4, PERMALINK = 5, URL = 6, CROSSPOST_PARENT = 7;
+
+    private String json;                // the page being read
+    private int pos;                    // next character to read
+    private int keyStart, keyEnd;       // span of the last member name read
+    private int valueStart, valueEnd;   // span of the last string read, without its quotes
+    private boolean valueEscaped;       // whether that string has escapes
+    private final int[] start = new int[STRING_FIELDS.length];          // span of each string field of the current post; -1 if null or missing
+    private final int[] end = new int[STRING_FIELDS.length];
+    private final boolean[] escaped = new boolean[STRING_FIELDS.length];
+    private int score, commentCount;    // numeric fields of the current post
+    private long created;               // creation time of the current post (ms)
+
+    private List<RedditPost> posts;     // posts of the page, newest first
+    private String after;               // fullname to continue from; null on the last page
+    private boolean stopped;            // a handled post was reached
+
+    /**
+     * Reads one page.
+     * @param page the JSON of the page, as Reddit sent it (with raw_json=1, so text is not HTML-escaped)
+     * @param handled given a post's creation time (ms), whether that post and every older one were handled already.
+     *                Reading stops at the first such post, which is not decoded (see isStopped)
+     * @return the posts before that one, newest first
+     * @throws IllegalArgumentException if the page is not a listing
+     */
+    public List<RedditPost> parse(String page, LongPredicate handled) {
+        json = page;
+        pos = 0;
+        posts = new ArrayList<>();
+        after = null;
+        stopped = false;
+        try {
+            for(boolean more = open('{', '}'); more; more = next('}')) {
+                key();
+                if(keyIs("data")) listing(handled);
+                else skipValue();
+                if(stopped) break;
+            }
+        }
+        catch(StringIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated listing", e);
+        }
+        finally {
+            json = null;
+        }
+        return posts;
+    }
+
+    /**
+     * Gets where the page read last ends.
+     * @return the fullname to pass as after for the next page, or null if it was the last one
+     */
+    public String getAfter() {
+        return after;
+    }
+
+    /**
+     * Checks whether reading the last page stopped at a post handled already.
+     * @return true if so; the following pages need not be read either
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Reads the data of the listing: { after, children: [ { kind, data }, ... ], ... }.
+     */
+    private void listing(LongPredicate handled) {
+        for(boolean more = open('{', '}'); more; more = next('}')) {
+            key();
+            if(keyIs("after")) {
+                if(json.charAt(pos) == 'n') skipValue();
+                else {
+                    string();
+                    after = decode(valueStart, valueEnd, valueEscaped);
+                }
+            }
+            else if(keyIs("children")) {
+                for(boolean child = open('[', ']'); child; child = next(']')) {
+                    for(boolean member = open('{', '}'); member; member = next('}')) {
+                        key();
+                        if(keyIs("data")) post(handled);
+                        else skipValue();
+                        if(stopped) return;
+                    }
+                }
+            }
+            else {
+                skipValue();
+            }
+        }
+    }
+
+    /**
+     * Reads one post, and adds it to the page unless it was handled already.
+     */
+    private void post(LongPredicate handled) {
+        for(int i = 0; i < start.length; i++) {
+            start[i] = -1;
+        }
+        score = 0;
+        commentCount = 0;
+        created = 0;
+
+        for(boolean more = open('{', '}'); more; more = next('}')) {
+            key();
+            int field = stringField();
+            if(field >= 0) {
+                if(json.charAt(pos) == '"') {
+                    string();
+                    start[field] = valueStart;
+                    end[field] = valueEnd;
+                    escaped[field] = valueEscaped;
+                }
+                else {
+                    skipValue();
+                }
+            }
+            else if(keyIs("score")) score = (int) number(1);
+            else if(keyIs("num_comments")) commentCount = (int) number(1);
+            else if(keyIs("created_utc")) created = number(1000);
+            else skipValue();
+        }
+
+        if(start[NAME] < 0) return; // not a post
+        if(handled.test(created)) {
+            stopped = true;
+            return;
+        }
+        posts.add(new RedditPost(field(NAME), field(TITLE), field(SELFTEXT), field(AUTHOR), field(SUBREDDIT),
+                field(PERMALINK), score, commentCount, created, field(URL), field(CROSSPOST_PARENT)));
+    }
+
+    /**
+     * Finds which kept string field the last member name is.
+     * @return its slot, or -1 if it is not kept
+     */
+    private int stringField() {
+        for(int i = 0; i < STRING_FIELDS.length; i++) {
+            if(keyIs(STRING_FIELDS[i])) return i;
+        }
+        return -1;
+    }
+
+    private String field(int slot) {
+        return start[slot] < 0 ? null : decode(start[slot], end[slot], escaped[slot]);
+    }
+
+    /**
+     * Reads a member name and the colon after it.
+     */
+    private void key() {
+        skipWhitespace();
+        string();
+        keyStart = valueStart;
+        keyEnd = valueEnd;
+        skipWhitespace();
+        expect(':');
+        skipWhitespace();
+    }
+
+    private boolean keyIs(String name) {
+        return keyEnd - keyStart == name.length() && json.startsWith(name, keyStart);
+    }
+
+    /**
+     * Enters an object or array.
+     * @return true if it has a first element
+     */
+    private boolean open(char open, char close) {
+        skipWhitespace();
+        expect(open);
+        skipWhitespace();
+        if(json.charAt(pos) == close) {
+            pos++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Moves past the element just read.
+     * @return true if another one follows; false if the object or array has ended
+     */
+    private boolean next(char close) {
+        skipWhitespace();
+        if(json.charAt(pos) == ',') {
+            pos++;
+            return true;
+        }
+        expect(close);
+        return false;
+    }
+
+    /**
+     * Locates the string starting at pos, without decoding it.
+     */
+    private void string() {
+        expect('"');
+        valueStart = pos;
+        valueEscaped = false;
+        while(true) {
+            char c = json.charAt(pos);
+            if(c == '"') break;
+            if(c == '\\') {
+                valueEscaped = true;
+                pos++;
+            }
+            pos++;
+        }
+        valueEnd = pos++;
+    }
+
+    /**
+     * Reads an integer part, ignoring any fraction or exponent (Reddit sends times as 1617000000.0).
+     * @param scale what to multiply it by
+     * @return the number times scale; 0 for null
+     */
+    private long number(long scale) {
+        if(json.charAt(pos) == 'n') {
+            skipValue();
+            return 0;
+        }
+        boolean negative = json.charAt(pos) == '-';
+        if(negative) pos++;
+        long value = 0;
+        char c;
+        while((c = json.charAt(pos)) >= '0' && c <= '9') {
+            value = value * 10 + (c - '0');
+            pos++;
+        }
+        skipValue(); // the rest of the number, if any
+        return (negative ? -value : value) * scale;
+    }
+
+    /**
+     * Steps over a value of any kind.
+     */
+    private void skipValue() {
+        char c = json.charAt(pos);
+        if(c == '"') {
+            string();
+            return;
+        }
+        if(c == '{' || c == '[') {
+            int depth = 0;
+            do {
+                c = json.charAt(pos);
+                if(c == '"') {
+                    string();
+                    continue;
+                }
+                if(c == '{' || c == '[') depth++;
+                else if(c == '}' || c == ']') depth--;
+                pos++;
+            } while(depth > 0);
+            return;
+        }
+        while(pos < json.length() && (c = json.charAt(pos)) != ',' && c != '}' && c != ']'
+                && c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+            pos++;
+        }
+    }
+
+    private void skipWhitespace() {
+        char c;
+        while(pos < json.length() && ((c = json.charAt(pos)) == ' ' || c == '\n' || c == '\r' || c == '\t')) {
+            pos++;
+        }
+    }
+
+    private void expect(char c) {
+        if(json.charAt(pos) != c) {
+            throw new IllegalArgumentException("Expected '" + c + "' at " + pos + " of the listing, found '" + json.charAt(pos) + "'");
+        }
+        pos++;
+    }
+
+    /**
+     * Decodes a string located by string().
+     */
+    private String decode(int from, int to, boolean hasEscapes) {
+        if(!hasEscapes) return json.substring(from, to);
+        StringBuilder out = new StringBuilder(to - from);
+        for(int i = from; i < to; i++) {
+            char c = json.charAt(i);
+            if(c != '\\') {
+                out.append(c);
+                continue;
+            }
+            c = json.charAt(++i);
+            switch(c) {
+                case 'n': out.append('\n'); break;
+                case 't': out.append('\t'); break;
+                case 'r': out.append('\r'); break;
+                case 'b': out.append('\b'); break;
+                case 'f': out.append('\f'); break;
+                case 'u':
+                    out.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16)); // surrogate pairs come as two escapes
+                    i += 4;
+                    break;
+                default: out.append(c); // \" \\ \/
+            }
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,283 @@
+package primary;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide counters, gauges and histograms for the bot.
+ * Counters only ever go up; gauges are read from a supplier whenever they are asked for;
+ * histograms count observations into fixed buckets.
+ */
+
+public class Metrics {
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();   // { name -> running total }
+    private static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();  // { name -> current value }
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>(); // { name -> distribution }
+
+    /**
+     * Adds one to a counter.
+     * @param name name of the counter
+     */
+    public static void increment(String name) {
+        add(name, 1);
+    }
+
+    /**
+     * Adds to a counter, creating it if needed.
+     * @param name name of the counter
+     * @param amount amount to add
+     */
+    public static void add(String name, long amount) {
+        counter(name).add(amount);
+    }
+
+    /**
+     * Gets a counter, creating it if needed. Hot paths can hold on to it instead of looking it up every time.
+     * @param name name of the counter
+     * @return the counter
+     */
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    /**
+     * Gets the current total of a counter.
+     * @param name name of the counter
+     * @return the total, or 0 if nothing was ever added
+     */
+    public static long get(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /**
+     * Registers (or replaces) a gauge.
+     * @param name name of the gauge
+     * @param supplier called whenever the gauge is read
+     */
+    public static void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /**
+     * Unregisters a gauge (ex. one labelled with a job that no longer exists).
+     * @param name name of the gauge
+     */
+    public static void removeGauge(String name) {
+        gauges.remove(name);
+    }
+
+    /**
+     * Builds the name of one labelled series of a metric, ex. poll_interval_ms{job="search x @ r/y"}.
+     * @param name name of the metric
+     * @param label name of the label
+     * @param value value of the label (escaped here)
+     * @return the series name, to pass to gauge/increment/observe
+     */
+    public static String labelled(String name, String label, String value) {
+        String escaped = value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        return name + "{" + label + "=\"" + escaped + "\"}";
+    }
+
+    /**
+     * Records one observation in a histogram, creating it if needed.
+     * @param name name of the histogram (include the unit, ex. flush_ms)
+     * @param value the observed value
+     */
+    public static void observe(String name, long value) {
+        histogram(name).observe(value);
+    }
+
+    /**
+     * Gets a histogram, creating it if needed. Hot paths can hold on to it instead of looking it up every time.
+     * @param name name of the histogram (include the unit, ex. flush_ms)
+     * @return the histogram
+     */
+    public static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    /**
+     * Takes a snapshot of every counter and gauge, and the count/sum of every histogram, sorted by name.
+     * @return { name -> value }
+     */
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> out = new TreeMap<>();
+        counters.forEach((name, counter) -> out.put(name, counter.sum()));
+        gauges.forEach((name, supplier) -> out.put(name, supplier.getAsLong()));
+        histograms.forEach((name, histogram) -> {
+            out.put(name + "_count", histogram.count());
+            out.put(name + "_sum", histogram.sum());
+        });
+        return out;
+    }
+
+    /**
+     * Writes every counter, gauge and histogram in the Prometheus text exposition format, sorted by name.
+     * Counters get a _total suffix; histogram buckets are cumulative, as Prometheus expects.
+     * @param prefix prepended to every name (ex. notifier_)
+     * @param out where to write
+     */
+    public static void writePrometheus(String prefix, StringBuilder out) {
+        String[] lastType = new String[1]; // series of one metric are adjacent when sorted; TYPE goes before the first
+        new TreeMap<>(counters).forEach((name, counter) -> {
+            String metric = prefix + sanitize(base(name)) + "_total";
+            type(out, lastType, metric, "counter");
+            out.append(metric).append(labels(name)).append(' ').append(counter.sum()).append('\n');
+        });
+        new TreeMap<>(gauges).forEach((name, supplier) -> {
+            long value;
+            try {
+                value = supplier.getAsLong();
+            }
+            catch(RuntimeException e) { // a broken gauge should not take the others down with it
+                return;
+            }
+            String metric = prefix + sanitize(base(name));
+            type(out, lastType, metric, "gauge");
+            out.append(metric).append(labels(name)).append(' ').append(value).append('\n');
+        });
+        long[] bounds = Histogram.BOUNDS;
+        new TreeMap<>(histograms).forEach((name, histogram) -> {
+            String metric = prefix + sanitize(base(name));
+            String labels = labels(name);
+            String bucketLabels = labels.isEmpty() ? "{le=\"" : labels.substring(0, labels.length() - 1) + ",le=\"";
+            long[] counts = histogram.counts();
+            type(out, lastType, metric, "histogram");
+            long cumulative = 0;
+            for(int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                out.append(metric).append("_bucket").append(bucketLabels);
+                if(i < bounds.length) out.append(bounds[i]);
+                else out.append("+Inf");
+                out.append("\"} ").append(cumulative).append('\n');
+            }
+            out.append(metric).append("_sum").append(labels).append(' ').append(histogram.sum()).append('\n');
+            out.append(metric).append("_count").append(labels).append(' ').append(cumulative).append('\n');
+        });
+    }
+
+    /**
+     * Writes the TYPE line of a metric, unless it was just written for a previous series of the same metric.
+     */
+    private static void type(StringBuilder out, String[] lastType, String metric, String type) {
+        if(metric.equals(lastType[0])) return;
+        lastType[0] = metric;
+        out.append("# TYPE ").append(metric).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Gets the metric name of a series name (the part before any labels).
+     */
+    private static String base(String name) {
+        int brace = name.indexOf('{');
+        return brace < 0 ? name : name.substring(0, brace);
+    }
+
+    /**
+     * Gets the labels of a series name, braces included, or "" if it has none.
+     */
+    private static String labels(String name) {
+        int brace = name.indexOf('{');
+        return brace < 0 ? "" : name.substring(brace);
+    }
+
+    /**
+     * Replaces characters Prometheus does not allow in metric names.
+     */
+    private static String sanitize(String name) {
+        StringBuilder out = new StringBuilder(name.length());
+        for(int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean ok = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == ':';
+            out.append(ok ? c : '_');
+        }
+        return out.toString();
+    }
+
+    /**
+     * Distribution of observed values over fixed 1-2-5 buckets (1, 2, 5, 10, 20, 50, ...).
+     * Observing is lock-free and allocation-free.
+     */
+    public static final class Histogram {
+        private static final long[] BOUNDS = bounds();  // upper bound (inclusive) of each bucket but the last
+
+        private final LongAdder[] buckets;  // buckets[i] counts values <= BOUNDS[i]; the last one counts the rest
+        private final LongAdder sum;
+
+        Histogram() {
+            buckets = new LongAdder[BOUNDS.length + 1];
+            for(int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+            sum = new LongAdder();
+        }
+
+        /**
+         * Records one observation.
+         * @param value the observed value
+         */
+        public void observe(long value) {
+            int i = 0;
+            while(i < BOUNDS.length && value > BOUNDS[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sum.add(value);
+        }
+
+        /**
+         * Gets the upper bounds of the buckets (the last bucket is unbounded).
+         * @return a copy of the bounds
+         */
+        public static long[] getBounds() {
+            return BOUNDS.clone();
+        }
+
+        /**
+         * Gets the number of observations in each bucket (not cumulative).
+         * @return counts, one longer than getBounds()
+         */
+        public long[] counts() {
+            long[] out = new long[buckets.length];
+            for(int i = 0; i < buckets.length; i++) {
+                out[i] = buckets[i].sum();
+            }
+            return out;
+        }
+
+        /**
+         * Gets the number of observations.
+         * @return the number of observations
+         */
+        public long count() {
+            long total = 0;
+            for(LongAdder bucket : buckets) {
+                total += bucket.sum();
+            }
+            return total;
+        }
+
+        /**
+         * Gets the sum of all observed values.
+         * @return the sum
+         */
+        public long sum() {
+            return sum.sum();
+        }
+
+        private static long[] bounds() {
+            long[] out = new long[21];  // 1 .. 5,000,000
+            long decade = 1;
+            for(int i = 0; i < out.length; i += 3) {
+                out[i] = decade;
+                if(i + 1 < out.length) out[i + 1] = 2 * decade;
+                if(i + 2 < out.length) out[i + 2] = 5 * decade;
+                decade *= 10;
+            }
+            return out;
+        }
+    }
+}
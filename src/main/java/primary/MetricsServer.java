@@ -0,0 +1,71 @@
+package primary;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves Metrics at /metrics in the Prometheus text format, from the JDK's built-in HTTP server.
+ * Listens on localhost only unless told otherwise; there is no authentication.
+ */
+
+public class MetricsServer {
+    private static final String PREFIX = "notifier_";  // prepended to every metric name
+
+    private final HttpServer server;
+
+    /**
+     * primary.MetricsServer constructor. Binds the port but does not start serving.
+     * @param host address to listen on (ex. 127.0.0.1)
+     * @param port port to listen on
+     * @throws IOException if the port cannot be bound
+     */
+    public MetricsServer(String host, int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext("/metrics", this::handle);
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "metrics-http");
+            t.setDaemon(true);
+            return t;
+        }));
+    }
+
+    /**
+     * Starts serving, in the background.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops serving.
+     */
+    public void stop() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if(!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            StringBuilder text = new StringBuilder(8192);
+            Metrics.writePrometheus(PREFIX, text);
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try(OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+        finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package primary;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How often each scan job finds new posts, and from that, how often it should run.
+ * Each job keeps a moving average of its arrival rate (new posts per hour, weighted towards the last
+ * twenty minutes or so). Its interval aims for about one new post per run, within [poll.minMs, poll.maxMs]:
+ * busy queries are polled more often, and a query that stops finding anything backs off exponentially.
+ * If the intervals together would need more Reddit calls than the budget allows, all of them are
+ * stretched by the same factor; the calls dead queries no longer make are what lets busy ones go fast.
+ * Rates are kept in the queryrates collection, so a restart does not start over.
+ */
+
+public class PollRates {
+    private static final long MIN_INTERVAL = Settings.getLong("poll.minMs", 10000);      // fastest a job runs (ms)
+    private static final long MAX_INTERVAL = Settings.getLong("poll.maxMs", 600000);     // slowest a job runs (ms)
+    private static final double TARGET = Settings.getInt("poll.targetPosts", 1);          // new posts wanted per run
+    private static final long HALF_LIFE = TimeUnit.MINUTES.toMillis(20);  // how fast old observations fade
+    private static final long WINDOW = TimeUnit.HOURS.toMillis(1);        // scans never look further back than this
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long KEEP = TimeUnit.DAYS.toMillis(7);           // stored rates unused this long are dropped
+
+    private final MongoCollection<Document> collection; // queryrates; null if the rates are not persisted
+    private final double callsPerMs;                    // Reddit calls the jobs may make, over all jobs
+    private final Map<String, Rate> rates;              // { job name -> its rate }
+    private final Set<String> dirty;                    // rates changed since the last flush
+    private volatile double stretch;                    // factor every interval is multiplied by (>= 1)
+
+    /**
+     * primary.PollRates constructor. Loads the stored rates.
+     * @param collection the queryrates collection, or null to keep rates in memory only
+     * @param callsPerMinute Reddit calls per minute the scan jobs may use between them
+     */
+    public PollRates(MongoCollection<Document> collection, double callsPerMinute) {
+        this.collection = collection;
+        callsPerMs = callsPerMinute / TimeUnit.MINUTES.toMillis(1);
+        rates = new ConcurrentHashMap<>();
+        dirty = ConcurrentHashMap.newKeySet();
+        stretch = 1;
+        Metrics.gauge("poll_stretch_pct", () -> Math.round(stretch * 100));
+
+        if(collection != null) {
+            collection.createIndex(Indexes.ascending("updated"), new IndexOptions().expireAfter(KEEP, TimeUnit.MILLISECONDS));
+            collection.find().forEach(doc -> {
+                Date updated = doc.getDate("updated");
+                Number perHour = (Number) doc.get("perHour");
+                if(updated != null && perHour != null) {
+                    rates.put(doc.getString("job"), new Rate(perHour.doubleValue() / HOUR, updated.getTime()));
+                }
+            });
+        }
+    }
+
+    /**
+     * Records one run of a job.
+     * @param job name of the job
+     * @param found new posts the run found
+     */
+    public void observe(String job, int found) {
+        long now = System.currentTimeMillis();
+        rates.compute(job, (k, old) -> {
+            if(old == null) return new Rate((double) found / WINDOW, now); // a first run covers the whole window
+            long elapsed = Math.max(1, Math.min(WINDOW, now - old.updated));
+            double weight = 1 - Math.pow(0.5, (double) elapsed / HALF_LIFE); // share of the new observation
+            return new Rate(weight * found / elapsed + (1 - weight) * old.perMs, now);
+        });
+        dirty.add(job);
+    }
+
+    /**
+     * Starts the rate of a new job from the jobs it replaces (ex. when searches are regrouped): the sum of
+     * their rates, each weighted by the share of its pairs the new job takes over. Nothing changes if the
+     * job has a rate already, or if none of them has one.
+     * @param job name of the new job
+     * @param from { name of a job it replaces -> share of that job's pairs it takes over }
+     */
+    public void inherit(String job, Map<String, Double> from) {
+        if(rates.containsKey(job)) return;
+        double perMs = 0;
+        long updated = 0;
+        for(Map.Entry<String, Double> share : from.entrySet()) {
+            Rate rate = rates.get(share.getKey());
+            if(rate == null) continue;
+            perMs += rate.perMs * share.getValue();
+            updated = Math.max(updated, rate.updated);
+        }
+        if(updated == 0) return;
+        rates.putIfAbsent(job, new Rate(perMs, updated));
+        dirty.add(job);
+    }
+
+    /**
+     * Gets how long a job should wait before its next run.
+     * @param job name of the job
+     * @return the interval (ms)
+     */
+    public long interval(String job) {
+        return Math.min(MAX_INTERVAL, (long) (base(job) * stretch));
+    }
+
+    /**
+     * Gets the arrival rate of a job.
+     * @param job name of the job
+     * @return new posts per hour, or 0 if the job never ran
+     */
+    public double perHour(String job) {
+        Rate rate = rates.get(job);
+        return rate == null ? 0 : rate.perMs * HOUR;
+    }
+
+    /**
+     * Works out again how much every interval has to be stretched to stay within the budget.
+     * @param jobs names of the jobs that are scheduled
+     */
+    public void rebalance(Collection<String> jobs) {
+        double demand = 0; // calls per ms if every job ran at its base interval
+        for(String job : jobs) {
+            demand += 1.0 / base(job);
+        }
+        stretch = Math.max(1, demand / callsPerMs);
+    }
+
+    /**
+     * Writes the rates changed since the last flush, in one round trip.
+     */
+    public void flush() {
+        if(collection == null) {
+            dirty.clear();
+            return;
+        }
+
+        List<WriteModel<Document>> models = new ArrayList<>();
+        List<String> jobs = new ArrayList<>();
+        for(Iterator<String> it = dirty.iterator(); it.hasNext(); ) {
+            String job = it.next();
+            it.remove();
+            Rate rate = rates.get(job);
+            if(rate == null) continue;
+            jobs.add(job);
+            models.add(new ReplaceOneModel<>(Filters.eq("job", job), new Document()
+                    .append("job", job)
+                    .append("perHour", rate.perMs * HOUR)
+                    .append("updated", new Date(rate.updated)),
+                    new ReplaceOptions().upsert(true)));
+        }
+        if(models.isEmpty()) return;
+
+        try {
+            collection.bulkWrite(models);
+        }
+        catch(MongoException e) {   // try again at the next flush
+            System.err.println(e);
+            dirty.addAll(jobs);
+        }
+    }
+
+    /**
+     * Gets a job's interval before stretching: about TARGET new posts per run, within the bounds.
+     */
+    private long base(String job) {
+        Rate rate = rates.get(job);
+        if(rate == null) return MIN_INTERVAL; // never ran; find out quickly
+        if(rate.perMs <= 0) return MAX_INTERVAL;
+        return Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, (long) (TARGET / rate.perMs)));
+    }
+
+    /**
+     * A job's arrival rate as of its last run.
+     */
+    private static final class Rate {
+        private final double perMs;     // new posts per ms
+        private final long updated;     // when it was last observed (ms)
+
+        Rate(double perMs, long updated) {
+            this.perMs = perMs;
+            this.updated = updated;
+        }
+    }
+}
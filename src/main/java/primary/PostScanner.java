@@ -0,0 +1,246 @@
+package primary;
+
+import net.dv8tion.jda.api.EmbedBuilder;
+import net.dv8tion.jda.api.entities.MessageEmbed;
+import net.dean.jraw.pagination.Paginator;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongPredicate;
+
+/**
+ * The scan itself: reads posts from a RedditSource, drops the ones each guild has already seen,
+ * records the rest in a PostStore and hands their embeds to the DeliveryPipeline.
+ * Knows nothing about JRAW, MongoDB or JDA, so it runs just as well against in-process fakes.
+ */
+
+public class PostScanner {
+    private static final int INCREMENTAL_LIMIT = 25; // page size once a pair has a mark (most cycles only find a few new posts)
+
+    private final RedditSource source;          // Where posts come from
+    private final PostStore store;              // Posts already sent, per guild (persisted copy of seenPosts)
+    private final SeenPostIndex seenPosts;      // Posts already sent, per guild (checked on every result)
+    private final HighWaterMarks marks;         // Newest post seen per (query, subreddit), so scans can stop early
+    private final DeliveryPipeline delivery;    // Queues, coalesces and sends embeds to Discord channels
+    private final DuplicateIndex sentRecently;  // What each guild was sent recently, to hold back reposts and crossposts; null if off
+    private final DeliveryClaims claims;        // Which node sends each post to each guild; null outside cluster mode
+
+    // Looked up once, since they are updated for every post and guild
+    private final LongAdder searchResults = Metrics.counter("reddit_search_results");   // posts read from searches
+    private final LongAdder streamResults = Metrics.counter("reddit_stream_results");   // posts read from /new
+    private final LongAdder newMatches = Metrics.counter("scan_new_matches");           // (post, guild) pairs sent
+    private final LongAdder duplicates = Metrics.counter("scan_duplicates");            // (post, guild) pairs already seen
+    private final Metrics.Histogram seenCheck = Metrics.histogram("seen_check_ns");     // time of one seen-post check
+
+    /**
+     * primary.PostScanner constructor
+     * @param source where posts come from
+     * @param store where sent posts are recorded
+     * @param seenPosts index of the posts already sent, per guild
+     * @param marks newest post seen per (query, subreddit)
+     * @param delivery where embeds are sent
+     */
+    public PostScanner(RedditSource source, PostStore store, SeenPostIndex seenPosts,
+                       HighWaterMarks marks, DeliveryPipeline delivery) {
+        this(source, store, seenPosts, marks, delivery, null);
+    }
+
+    /**
+     * primary.PostScanner constructor
+     * @param source where posts come from
+     * @param store where sent posts are recorded
+     * @param seenPosts index of the posts already sent, per guild
+     * @param marks newest post seen per (query, subreddit)
+     * @param delivery where embeds are sent
+     * @param sentRecently what each guild was sent recently, so copies of a post (same link, crossposts,
+     *                     near-identical titles) are not sent again; null to send every new post
+     */
+    public PostScanner(RedditSource source, PostStore store, SeenPostIndex seenPosts,
+                       HighWaterMarks marks, DeliveryPipeline delivery, DuplicateIndex sentRecently) {
+        this(source, store, seenPosts, marks, delivery, sentRecently, null);
+    }
+
+    /**
+     * primary.PostScanner constructor
+     * @param source where posts come from
+     * @param store where sent posts are recorded
+     * @param seenPosts index of the posts already sent, per guild
+     * @param marks newest post seen per (query, subreddit)
+     * @param delivery where embeds are sent
+     * @param sentRecently what each guild was sent recently, or null to send every new post
+     * @param claims where each post is claimed for each guild before it is sent, so that only one node of
+     *               a cluster sends it; null if this is the only node
+     */
+    public PostScanner(RedditSource source, PostStore store, SeenPostIndex seenPosts, HighWaterMarks marks,
+                       DeliveryPipeline delivery, DuplicateIndex sentRecently, DeliveryClaims claims) {
+        this.source = source;
+        this.store = store;
+        this.seenPosts = seenPosts;
+        this.marks = marks;
+        this.delivery = delivery;
+        this.sentRecently = sentRecently;
+        this.claims = claims;
+    }
+
+    /**
+     * Runs one search (of a single pair, or several combined by the QueryPlanner) once,
+     * and post the results to each elligible channel of every guild subscribed to a pair they match.
+     * Only results newer than the search's mark are handled: paginating stops as soon as it is reached.
+     * @param batch the search
+     * @param subscribers { (query, subreddit) -> { guildId -> eligible channels } } for the pairs of the search
+     * @return number of results newer than the mark (all of them, the first time)
+     */
+    public int search(QueryPlanner.Batch batch, Map<QueryKey, Map<String, List<String>>> subscribers) {
+        QueryKey markKey = batch.getMarkKey();
+        HighWaterMarks.Mark mark = marks.get(markKey);
+        int limit = mark == null ? Paginator.RECOMMENDED_MAX_LIMIT : INCREMENTAL_LIMIT;
+
+        // double for loop here = for each result from the Reddit search (newest first)
+        RedditPost newest = null;
+        int found = 0;
+        BitSet scratch = new BitSet();
+        List<QueryKey> matched = new ArrayList<>();
+        LongPredicate handled = created -> mark != null && mark.isReachedBy(created); // the rest was handled last time
+        for(List<RedditPost> nextPage : source.search(batch.getQuery(), batch.getSubreddit(), batch.isLucene(), limit, handled)) {
+            Metrics.increment("reddit_search_pages");
+            for(RedditPost post : nextPage) {
+                if(newest == null) newest = post;
+                if(mark == null || post.getCreated() > mark.getCreated()) found++;
+                searchResults.increment();
+                batch.matches(post, scratch, matched);
+                for(QueryKey key : matched) {
+                    Map<String, List<String>> guilds = subscribers.get(key);
+                    if(guilds != null) notifySubscribers(post, guilds);
+                }
+            }
+        }
+
+        if(newest != null) marks.advance(markKey, newest.getFullName(), newest.getCreated());
+        return found;
+    }
+
+    /**
+     * For the given subreddit, read its /new listing once, match every post against all the queries
+     * watched in the subreddit, and post the matches to each elligible channel of every guild subscribed
+     * to a matching query. Costs one listing call however many queries there are.
+     * (Matching is a case-insensitive, whole-word match on the title and selftext, rather than Reddit's search.)
+     * @param subreddit the subreddit to read
+     * @param matcher matcher built from the queries, in the same order as keys
+     * @param keys the (query, subreddit) pairs watched in the subreddit
+     * @param subscribers { (query, subreddit) -> { guildId -> eligible channels } } for the keys
+     * @return number of posts in the listing newer than its mark (all of the past hour, the first time)
+     */
+    public int stream(String subreddit, AhoCorasick matcher, List<QueryKey> keys,
+                       Map<QueryKey, Map<String, List<String>>> subscribers) {
+        QueryKey listing = new QueryKey("", subreddit); // the mark of the listing itself
+        HighWaterMarks.Mark mark = marks.get(listing);
+        int limit = mark == null ? Paginator.RECOMMENDED_MAX_LIMIT : INCREMENTAL_LIMIT;
+
+        RedditPost newest = null;
+        int newPosts = 0;
+        BitSet found = new BitSet(keys.size());
+        long cutoff = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1); // same window as the searches
+        LongPredicate handled = created -> created < cutoff || (mark != null && mark.isReachedBy(created));
+        for(List<RedditPost> nextPage : source.newPosts(subreddit, limit, handled)) {
+            Metrics.increment("reddit_stream_pages");
+            for(RedditPost post : nextPage) {
+                if(newest == null) newest = post;
+                long created = post.getCreated();
+                if(mark == null || created > mark.getCreated()) newPosts++;
+                streamResults.increment();
+                found.clear();
+                matcher.match(post.getTitle(), found);
+                if(post.getSelfText() != null) matcher.match(post.getSelfText(), found);
+                for(int i = found.nextSetBit(0); i >= 0; i = found.nextSetBit(i + 1)) {
+                    Map<String, List<String>> guilds = subscribers.get(keys.get(i));
+                    if(guilds != null) notifySubscribers(post, guilds);
+                }
+            }
+        }
+
+        if(newest != null) marks.advance(listing, newest.getFullName(), newest.getCreated());
+        return newPosts;
+    }
+
+    /**
+     * Sends a post to every subscribed guild that has not seen it yet, and records it as seen.
+     * A guild that was recently sent a copy of the post (see DuplicateIndex) only has it recorded.
+     * In cluster mode, the post is claimed for the guilds first, and only sent to those no other node claimed it for.
+     * @param post the post
+     * @param subscribers { guildId -> eligible channels }
+     */
+    public void notifySubscribers(RedditPost post, Map<String, List<String>> subscribers) {
+        MessageEmbed embed = null; // built once, for all guilds and channels
+        DuplicateIndex.Fingerprint print = null; // likewise
+        List<String> unclaimed = null; // guilds to claim the post for before sending it (cluster mode)
+        for(Map.Entry<String, List<String>> subscriber : subscribers.entrySet()) {
+            String guildId = subscriber.getKey();
+
+            // Check if results has been searched for, and from the current server.
+            // (The index is loaded from the store on startup; the store is only written to.)
+            long start = System.nanoTime();
+            boolean added = seenPosts.add(guildId, post.getFullName(), post.getCreated());
+            seenCheck.observe(System.nanoTime() - start);
+            if(!added) { // entry already exists
+                duplicates.increment();
+                continue;
+            }
+            newMatches.increment();
+
+            store.record(guildId, post);
+
+            if(sentRecently != null) {
+                if(print == null) print = DuplicateIndex.fingerprint(post);
+                if(sentRecently.check(guildId, print, System.currentTimeMillis()) != null) continue;
+            }
+
+            if(claims != null) {
+                if(unclaimed == null) unclaimed = new ArrayList<>();
+                unclaimed.add(guildId);
+                continue;
+            }
+
+            // For each elligible channel in the Discord server, send query results
+            if(embed == null) embed = buildEmbed(post);
+            for(String channelId : subscriber.getValue()) {
+                delivery.submit(channelId, embed, guildId, post.getCreated());
+            }
+        }
+        if(unclaimed == null) return;
+
+        // Claimed all at once: one round trip per post, however many guilds it goes to
+        for(String guildId : claims.claim(post.getFullName(), unclaimed)) {
+            if(embed == null) embed = buildEmbed(post);
+            for(String channelId : subscribers.get(guildId)) {
+                delivery.submit(channelId, embed, guildId, post.getCreated());
+            }
+        }
+    }
+
+    /**
+     * Builds the Discord embed for a post.
+     * @param post the post
+     * @return the embed
+     */
+    public static MessageEmbed buildEmbed(RedditPost post) {
+        String title = post.getTitle();
+        if(title.length() > 253) { // For Reddit posts, max character length = 256
+            title = title.substring(0, 253) + "...";
+        }
+        String authorURL = "https://www.reddit.com/u/" + URLEncoder.encode(post.getAuthor(), StandardCharsets.UTF_8);
+        String titleURL = "https://www.reddit.com" + post.getPermalink();
+
+        EmbedBuilder embd = new EmbedBuilder();
+        embd.setColor(0xffa500)
+            .setAuthor(post.getAuthor(), authorURL)
+            .setTitle(title, titleURL)
+            .setDescription(post.getScore() + " votes and " + post.getCommentCount() + " comments so far")
+            .setFooter("On r/" + post.getSubreddit())
+            .setTimestamp(Instant.ofEpochMilli(post.getCreated()));
+        return embd.build();
+    }
+}
@@ -0,0 +1,48 @@
+package primary;
+
+import java.util.Collection;
+
+/**
+ * Where the record of posts already sent to each guild is kept, so it survives a restart.
+ */
+
+public interface PostStore {
+    /**
+     * Fills an index with every post on record that has not expired yet.
+     * @param index the index to fill
+     */
+    void load(SeenPostIndex index);
+
+    /**
+     * Adds the posts on record for some guilds to an index (ex. posts another node sent, when taking over its jobs).
+     * @param index the index to fill
+     * @param guildIds unique IDs of the guilds
+     */
+    void load(SeenPostIndex index, Collection<String> guildIds);
+
+    /**
+     * Records that a post was sent to a guild. May be written later; see flush.
+     * @param guildId unique ID of guild
+     * @param post the post
+     */
+    void record(String guildId, RedditPost post);
+
+    /**
+     * Writes everything recorded so far.
+     * @return true if everything recorded before the call is now written; false if some of it has to be retried
+     */
+    boolean flush();
+
+    /**
+     * Keeps every record a flush failed to write for the next one, however many pile up, instead of dropping
+     * the oldest past a limit. For a store behind the journal: the journal is checkpointed once the store has
+     * written everything recorded until then, so a record dropped here would be lost to both.
+     */
+    default void keepFailedWrites() {
+    }
+
+    /**
+     * Writes everything recorded so far, and stops any background writing.
+     */
+    void close();
+}
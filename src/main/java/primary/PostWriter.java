@@ -0,0 +1,214 @@
+package primary;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Write-behind persistence for the redditposts collection (seen.store=documents, the default):
+ * one full document per (post, guild), which doubles as an audit trail of what was sent where.
+ * New post documents are collected and written with one unordered bulkWrite, either when
+ * enough of them pile up, when a scan cycle ends, or after a short delay - whichever comes first.
+ * A unique index on (postId, guildId) turns duplicate inserts into duplicate-key errors,
+ * which are counted and otherwise ignored.
+ */
+
+public class PostWriter implements PostStore {
+    private static final int MAX_BATCH = 500;       // flush as soon as this many documents are pending
+    private static final long MAX_DELAY = 5000;     // flush at least this often (ms)
+    private static final int MAX_PENDING = 10 * MAX_BATCH; // documents kept for retry while the database is failing
+
+    private final MongoCollection<Document> collection; // redditposts
+    private final List<Document> pending;               // documents not yet written; guarded by this
+    private final ScheduledExecutorService timer;       // runs the flushes
+    private final Object flushing = new Object();       // one flush at a time, so a flush that returns has seen every earlier one finish
+    private volatile int maxPending = MAX_PENDING;      // documents kept for retry; unbounded once journaled (see keepFailedWrites)
+
+    /**
+     * primary.PostWriter constructor
+     * @param collection the redditposts collection
+     */
+    public PostWriter(MongoCollection<Document> collection) {
+        this.collection = collection;
+        pending = new ArrayList<>();
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "post-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleWithFixedDelay(this::flush, MAX_DELAY, MAX_DELAY, TimeUnit.MILLISECONDS);
+        Metrics.gauge("posts_pending", this::pendingCount);
+    }
+
+    /**
+     * Rebuilds a seen-post index from the collection, in one streaming query.
+     * @param index the index to fill
+     */
+    @Override
+    public void load(SeenPostIndex index) {
+        load(index, new Document());
+    }
+
+    /**
+     * Adds the posts sent to some guilds to a seen-post index (ex. posts another node sent, when taking over its jobs).
+     * @param index the index to fill
+     * @param guildIds unique IDs of the guilds
+     */
+    @Override
+    public void load(SeenPostIndex index, Collection<String> guildIds) {
+        load(index, Filters.in("guildId", guildIds));
+    }
+
+    private void load(SeenPostIndex index, Bson filter) {
+        Bson projection = Projections.fields(Projections.include("postId", "guildId", "date"), Projections.excludeId());
+        collection.find(filter).projection(projection).batchSize(1000).forEach(doc -> {
+            Date date = doc.getDate("date");
+            if(date != null) {
+                index.add(doc.getString("guildId"), doc.getString("postId"), date.getTime());
+            }
+        });
+    }
+
+    /**
+     * Queues the redditposts document of a post sent to a guild.
+     * @param guildId unique ID of guild
+     * @param post the post
+     */
+    @Override
+    public void record(String guildId, RedditPost post) {
+        add(new Document()
+            .append("_id", new ObjectId())
+            .append("postId", post.getFullName())
+            .append("subreddit", post.getSubreddit())
+            .append("url", "https://www.reddit.com" + post.getPermalink())
+            .append("date", new Date(post.getCreated()))
+            .append("guildId", guildId)
+            .append("createdAt", new Date(System.currentTimeMillis()))
+            .append("expireAt", new Date(System.currentTimeMillis() + 60 * 60 * 1000))); // expire in 60 minutes
+    }
+
+    /**
+     * Queues a document for insertion. Starts a flush (on the timer thread, so the caller never waits on the database) if the batch is full.
+     * @param doc the redditposts document
+     */
+    public void add(Document doc) {
+        boolean full;
+        synchronized(this) {
+            pending.add(doc);
+            full = pending.size() == MAX_BATCH;
+        }
+        if(full) {
+            try {
+                timer.execute(this::flush);
+            }
+            catch(RejectedExecutionException e) { // closed; close() flushes what is left
+            }
+        }
+    }
+
+    /**
+     * Writes everything pending, in one round trip.
+     * @return true if it was written (or there was nothing to write); false if it was kept for the next flush
+     */
+    @Override
+    public boolean flush() {
+        synchronized(flushing) {
+            List<Document> batch;
+            synchronized(this) {
+                batch = drain();
+            }
+            return write(batch);
+        }
+    }
+
+    /**
+     * Stops the timer and writes everything still pending.
+     */
+    @Override
+    public void close() {
+        timer.shutdown();
+        flush();
+    }
+
+    @Override
+    public void keepFailedWrites() {
+        maxPending = Integer.MAX_VALUE;
+    }
+
+    private synchronized int pendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Takes the pending documents. Caller must hold the lock.
+     */
+    private List<Document> drain() {
+        if(pending.isEmpty()) return Collections.emptyList();
+        List<Document> batch = new ArrayList<>(pending);
+        pending.clear();
+        return batch;
+    }
+
+    private boolean write(List<Document> batch) {
+        if(batch.isEmpty()) return true;
+
+        List<WriteModel<Document>> models = new ArrayList<>(batch.size());
+        for(Document doc : batch) {
+            models.add(new InsertOneModel<>(doc));
+        }
+
+        long start = System.nanoTime();
+        long inserted = 0, duplicates = 0;
+        try {
+            inserted = collection.bulkWrite(models, new BulkWriteOptions().ordered(false)).getInsertedCount();
+        }
+        catch(MongoBulkWriteException e) {  // unordered: every other document was still attempted
+            inserted = e.getWriteResult().getInsertedCount();
+            for(BulkWriteError error : e.getWriteErrors()) {
+                if(ErrorCategory.fromErrorCode(error.getCode()) == ErrorCategory.DUPLICATE_KEY) {
+                    duplicates++;
+                }
+                else {
+                    System.err.println(error.getMessage());
+                    Metrics.increment("posts_write_errors");
+                }
+            }
+        }
+        catch(MongoException e) {   // whole batch failed (ex. database unreachable); keep it for the next flush
+            System.err.println(e);
+            Metrics.increment("posts_flush_failures");
+            requeue(batch);
+            return false;
+        }
+
+        Metrics.increment("posts_flushes");
+        Metrics.add("posts_inserted", inserted);
+        Metrics.add("posts_duplicates", duplicates);
+        Metrics.observe("posts_batch_size", batch.size());
+        Metrics.observe("posts_flush_ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return true;
+    }
+
+    private synchronized void requeue(List<Document> batch) {
+        int room = maxPending - pending.size();
+        if(room < batch.size()) {
+            Metrics.add("posts_dropped", batch.size() - Math.max(room, 0));
+        }
+        if(room > 0) {
+            pending.addAll(0, batch.subList(0, Math.min(room, batch.size())));
+        }
+    }
+}
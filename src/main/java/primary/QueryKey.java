@@ -0,0 +1,55 @@
+package primary;
+
+/**
+ * A single (query, subreddit) pair that one or more guilds are subscribed to.
+ * Used as a map key, so that identical searches from different guilds collapse into one.
+ */
+
+public final class QueryKey {
+    private final String query;     // search term
+    private final String subreddit; // subreddit to search the term under
+
+    /**
+     * primary.QueryKey constructor
+     * @param query search term
+     * @param subreddit subreddit to search the term under
+     */
+    public QueryKey(String query, String subreddit) {
+        this.query = query;
+        this.subreddit = subreddit;
+    }
+
+    /**
+     * Gets the search term.
+     * @return the search term
+     */
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * Gets the subreddit the term is searched under.
+     * @return the subreddit
+     */
+    public String getSubreddit() {
+        return subreddit;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) return true;
+        if(!(o instanceof QueryKey)) return false;
+        QueryKey other = (QueryKey) o;
+        return query.equals(other.query) && subreddit.equals(other.subreddit);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * query.hashCode() + subreddit.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return query + " @ r/" + subreddit;
+    }
+}
@@ -0,0 +1,215 @@
+package primary;
+
+import java.util.*;
+import java.util.function.ToIntFunction;
+
+/**
+ * Packs (query, subreddit) pairs into as few Reddit searches as possible.
+ * Queries watched in the same subreddit are OR-ed together into one lucene search
+ * ("a" OR "b" OR ...), and a query watched alone in several subreddits is searched once over
+ * the multireddit (r/a+b+...), both within Reddit's length limits. Since a combined search
+ * returns the results of all of its pairs together, each result is matched back to its pairs
+ * locally (see Batch.matches). Pairs that cannot be combined stay searches of their own.
+ */
+
+public class QueryPlanner {
+    private static final int MAX_QUERY_LENGTH = 512;        // longest q Reddit accepts
+    private static final int MAX_MULTIREDDIT_LENGTH = 512;  // longest sub1+sub2+... allowed in one search
+    private static final boolean ENABLED = !Settings.get("search.batching", "true").equalsIgnoreCase("false");
+
+    /**
+     * Plans the searches for a set of pairs. The same pairs always give the same batches.
+     * @param keys the (query, subreddit) pairs to search for
+     * @return the searches; every pair is in exactly one
+     */
+    public static List<Batch> plan(Collection<QueryKey> keys) {
+        List<QueryKey> sorted = new ArrayList<>(keys);
+        sorted.sort(Comparator.comparing(QueryKey::getSubreddit).thenComparing(QueryKey::getQuery));
+        List<Batch> batches = new ArrayList<>();
+        if(!ENABLED) {
+            for(QueryKey key : sorted) {
+                batches.add(new Batch(Collections.singletonList(key)));
+            }
+            return batches;
+        }
+
+        // Several queries in one subreddit: OR them together
+        Map<String, List<QueryKey>> bySubreddit = new LinkedHashMap<>();
+        for(QueryKey key : sorted) {
+            bySubreddit.computeIfAbsent(key.getSubreddit(), k -> new ArrayList<>()).add(key);
+        }
+        List<QueryKey> leftover = new ArrayList<>();
+        for(List<QueryKey> group : bySubreddit.values()) {
+            pack(group, QueryPlanner::orLength, MAX_QUERY_LENGTH, batches, leftover);
+        }
+
+        // One query in several subreddits: search the multireddit (r/all is already everything)
+        Map<String, List<QueryKey>> byQuery = new LinkedHashMap<>();
+        for(QueryKey key : leftover) {
+            if(key.getSubreddit().equals("all")) batches.add(new Batch(Collections.singletonList(key)));
+            else byQuery.computeIfAbsent(key.getQuery(), k -> new ArrayList<>()).add(key);
+        }
+        List<QueryKey> alone = new ArrayList<>();
+        for(List<QueryKey> group : byQuery.values()) {
+            pack(group, key -> key.getSubreddit().length() + 1, MAX_MULTIREDDIT_LENGTH, batches, alone);
+        }
+
+        for(QueryKey key : alone) {
+            batches.add(new Batch(Collections.singletonList(key)));
+        }
+        return batches;
+    }
+
+    /**
+     * Fills batches from a group in order, starting a new one whenever the next pair would not fit.
+     * Batches that end up with a single pair are handed back instead.
+     */
+    private static void pack(List<QueryKey> group, ToIntFunction<QueryKey> cost, int limit,
+                             List<Batch> batches, List<QueryKey> leftover) {
+        List<QueryKey> current = new ArrayList<>();
+        int length = 0;
+        for(QueryKey key : group) {
+            int size = cost.applyAsInt(key);
+            if(!current.isEmpty() && length + size > limit) {
+                finish(current, batches, leftover);
+                current = new ArrayList<>();
+                length = 0;
+            }
+            current.add(key);
+            length += size;
+        }
+        finish(current, batches, leftover);
+    }
+
+    private static void finish(List<QueryKey> keys, List<Batch> batches, List<QueryKey> leftover) {
+        if(keys.size() == 1) leftover.addAll(keys);
+        else if(keys.size() > 1) batches.add(new Batch(keys));
+    }
+
+    /**
+     * Length a query adds to an OR search: the quoted term plus " OR ".
+     */
+    private static int orLength(QueryKey key) {
+        return quote(key.getQuery()).length() + 4;
+    }
+
+    private static String quote(String term) {
+        return "\"" + term.replace("\"", "") + "\"";
+    }
+
+    /**
+     * One Reddit search covering one or more pairs: either several queries in one subreddit,
+     * or one query in several subreddits.
+     */
+    public static final class Batch {
+        private final List<QueryKey> keys;      // the pairs covered
+        private final String query;             // what is searched for
+        private final String subreddit;         // where: one subreddit, or sub1+sub2+...
+        private final boolean lucene;           // query is an OR of quoted terms
+        private final int[] termOf;             // termOf[i] = matcher pattern of keys[i]
+        private final AhoCorasick matcher;      // over terms; null if there is only one
+        private final Set<String> subreddits;   // distinct subreddits, lower case
+
+        Batch(List<QueryKey> keys) {
+            this.keys = Collections.unmodifiableList(new ArrayList<>(keys));
+            Set<String> distinctTerms = new LinkedHashSet<>();
+            Set<String> distinctSubreddits = new LinkedHashSet<>();
+            for(QueryKey key : keys) {
+                distinctTerms.add(key.getQuery());
+                distinctSubreddits.add(key.getSubreddit().toLowerCase());
+            }
+            List<String> terms = new ArrayList<>(distinctTerms);
+            termOf = new int[keys.size()];
+            for(int i = 0; i < termOf.length; i++) {
+                termOf[i] = terms.indexOf(keys.get(i).getQuery());
+            }
+            subreddits = distinctSubreddits;
+            lucene = terms.size() > 1;
+            matcher = lucene ? new AhoCorasick(terms) : null;
+
+            if(lucene) {
+                StringJoiner or = new StringJoiner(" OR ");
+                for(String term : terms) {
+                    or.add(quote(term));
+                }
+                query = or.toString();
+            }
+            else {
+                query = terms.get(0);
+            }
+            subreddit = String.join("+", distinctSubreddits);
+        }
+
+        /**
+         * Gets the pairs this search covers.
+         * @return the pairs
+         */
+        public List<QueryKey> getKeys() {
+            return keys;
+        }
+
+        /**
+         * Gets what is searched for.
+         * @return the query, in lucene syntax if isLucene()
+         */
+        public String getQuery() {
+            return query;
+        }
+
+        /**
+         * Gets where it is searched.
+         * @return a subreddit, or a multireddit (sub1+sub2+...)
+         */
+        public String getSubreddit() {
+            return subreddit;
+        }
+
+        /**
+         * Checks whether the query has to be sent with the lucene syntax.
+         * @return true for an OR of several queries; false for a single plain query
+         */
+        public boolean isLucene() {
+            return lucene;
+        }
+
+        /**
+         * Gets the pair whose high-water mark this search uses. For a search of a single pair, that is the pair itself.
+         * @return the pair to keep the mark under
+         */
+        public QueryKey getMarkKey() {
+            return keys.size() == 1 ? keys.get(0) : new QueryKey(query, subreddit);
+        }
+
+        /**
+         * Finds the pairs of this search a result belongs to. A search of a single pair trusts Reddit;
+         * otherwise the result must be in the pair's subreddit and contain its query
+         * as whole words (case-insensitive, in the title or selftext; see AhoCorasick).
+         * @param post a result of this search
+         * @param found scratch space, reused between calls
+         * @param out receives the matching pairs (cleared first)
+         */
+        public void matches(RedditPost post, BitSet found, List<QueryKey> out) {
+            out.clear();
+            if(keys.size() == 1) {
+                out.add(keys.get(0));
+                return;
+            }
+            found.clear();
+            if(matcher != null) {
+                matcher.match(post.getTitle(), found);
+                if(post.getSelfText() != null) matcher.match(post.getSelfText(), found);
+            }
+            for(int i = 0; i < keys.size(); i++) {
+                QueryKey key = keys.get(i);
+                if(subreddits.size() > 1 && !key.getSubreddit().equalsIgnoreCase(post.getSubreddit())) continue;
+                if(matcher != null && !found.get(termOf[i])) continue;
+                out.add(key);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return query + " @ r/" + subreddit;
+        }
+    }
+}
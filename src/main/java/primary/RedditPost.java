@@ -0,0 +1,166 @@
+package primary;
+
+import net.dean.jraw.models.Submission;
+
+/**
+ * The parts of a Reddit post the bot uses: enough to match it, dedupe it and build its embed.
+ * Immutable, and cheap to make, so sources other than Reddit itself (ex. benchmarks) can produce them.
+ */
+
+public final class RedditPost {
+    private final String fullName;  // ex. t3_abc123
+    private final String title;
+    private final String selfText;  // null for link posts
+    private final String author;
+    private final String subreddit;
+    private final String permalink; // path only, ex. /r/java/comments/abc123/...
+    private final int score;
+    private final int commentCount;
+    private final long created;     // creation time (ms)
+    private final String url;       // what the post links to (its own page, for self posts); null if unknown
+    private final String crosspostParent; // fullname of the post this one crossposts; null if it is not a crosspost
+
+    /**
+     * primary.RedditPost constructor
+     * @param fullName fullname of the post
+     * @param title title of the post
+     * @param selfText body of the post, or null for link posts
+     * @param author username of the author
+     * @param subreddit subreddit the post is in
+     * @param permalink path of the post on reddit.com
+     * @param score votes so far
+     * @param commentCount comments so far
+     * @param created creation time (ms)
+     */
+    public RedditPost(String fullName, String title, String selfText, String author, String subreddit,
+                      String permalink, int score, int commentCount, long created) {
+        this(fullName, title, selfText, author, subreddit, permalink, score, commentCount, created, null, null);
+    }
+
+    /**
+     * primary.RedditPost constructor, with what duplicate detection uses
+     * @param fullName fullname of the post
+     * @param title title of the post
+     * @param selfText body of the post, or null for link posts
+     * @param author username of the author
+     * @param subreddit subreddit the post is in
+     * @param permalink path of the post on reddit.com
+     * @param score votes so far
+     * @param commentCount comments so far
+     * @param created creation time (ms)
+     * @param url what the post links to, or null if unknown
+     * @param crosspostParent fullname of the crossposted post, or null if it is not a crosspost
+     */
+    public RedditPost(String fullName, String title, String selfText, String author, String subreddit,
+                      String permalink, int score, int commentCount, long created, String url, String crosspostParent) {
+        this.fullName = fullName;
+        this.title = title;
+        this.selfText = selfText;
+        this.author = author;
+        this.subreddit = subreddit;
+        this.permalink = permalink;
+        this.score = score;
+        this.commentCount = commentCount;
+        this.created = created;
+        this.url = url;
+        this.crosspostParent = crosspostParent;
+    }
+
+    /**
+     * Copies the fields the bot uses out of a JRAW submission. (JRAW does not expose crosspost parents.)
+     * @param s the submission
+     * @return the post
+     */
+    public static RedditPost from(Submission s) {
+        return new RedditPost(s.getFullName(), s.getTitle(), s.getSelfText(), s.getAuthor(), s.getSubreddit(),
+                s.getPermalink(), s.getScore(), s.getCommentCount(), s.getCreated().getTime(), s.getUrl(), null);
+    }
+
+    /**
+     * Gets the fullname of the post.
+     * @return the fullname, ex. t3_abc123
+     */
+    public String getFullName() {
+        return fullName;
+    }
+
+    /**
+     * Gets the title of the post.
+     * @return the title
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * Gets the body of the post.
+     * @return the body, or null for link posts
+     */
+    public String getSelfText() {
+        return selfText;
+    }
+
+    /**
+     * Gets the username of the author.
+     * @return the username
+     */
+    public String getAuthor() {
+        return author;
+    }
+
+    /**
+     * Gets the subreddit the post is in.
+     * @return the subreddit name
+     */
+    public String getSubreddit() {
+        return subreddit;
+    }
+
+    /**
+     * Gets the path of the post on reddit.com.
+     * @return the path
+     */
+    public String getPermalink() {
+        return permalink;
+    }
+
+    /**
+     * Gets the votes the post had when it was read.
+     * @return the score
+     */
+    public int getScore() {
+        return score;
+    }
+
+    /**
+     * Gets the comments the post had when it was read.
+     * @return the comment count
+     */
+    public int getCommentCount() {
+        return commentCount;
+    }
+
+    /**
+     * Gets the creation time of the post.
+     * @return the creation time (ms)
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * Gets what the post links to.
+     * @return the URL (the post's own page, for self posts), or null if unknown
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Gets the post this one is a crosspost of.
+     * @return its fullname, or null if this is not a crosspost (or it is unknown)
+     */
+    public String getCrosspostParent() {
+        return crosspostParent;
+    }
+}
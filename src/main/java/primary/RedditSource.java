@@ -0,0 +1,64 @@
+package primary;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongPredicate;
+
+/**
+ * Where posts come from. Pages are fetched lazily, newest first, so a caller that stops iterating
+ * early does not pay for the pages it did not read. Reading also stops at the first post the caller
+ * has handled already (see the handled parameter), so sources can skip decoding it and everything after it.
+ */
+
+public interface RedditSource {
+    /**
+     * Searches a subreddit (or multireddit) for a query, over the past hour.
+     * @param query what to search for
+     * @param subreddit where to search: a subreddit, or sub1+sub2+...
+     * @param lucene true if the query uses the lucene syntax (ex. "a" OR "b"); false for a plain query
+     * @param limit posts per page
+     * @param handled given a post's creation time (ms), whether that post and every older one were handled already
+     * @return the pages of results, newest first, up to the first handled one
+     */
+    default Iterable<List<RedditPost>> search(String query, String subreddit, boolean lucene, int limit, LongPredicate handled) {
+        return search(query, subreddit, lucene, limit, TimeUnit.HOURS.toMillis(1), Integer.MAX_VALUE, handled);
+    }
+
+    /**
+     * Searches a subreddit (or multireddit) for a query, over a longer past (ex. to backfill a new query).
+     * @param query what to search for
+     * @param subreddit where to search: a subreddit, or sub1+sub2+...
+     * @param lucene true if the query uses the lucene syntax (ex. "a" OR "b"); false for a plain query
+     * @param limit posts per page
+     * @param window how far back to search (ms); rounded up to one of Reddit's time periods (see period)
+     * @param maxPages most pages to fetch
+     * @param handled given a post's creation time (ms), whether that post and every older one were handled already
+     * @return the pages of results, newest first, up to the first handled one or maxPages pages
+     */
+    Iterable<List<RedditPost>> search(String query, String subreddit, boolean lucene, int limit, long window, int maxPages,
+                                      LongPredicate handled);
+
+    /**
+     * Reads a subreddit's /new listing.
+     * @param subreddit the subreddit to read
+     * @param limit posts per page
+     * @param handled given a post's creation time (ms), whether that post and every older one were handled already
+     * @return the pages of posts, newest first, up to the first handled one
+     */
+    Iterable<List<RedditPost>> newPosts(String subreddit, int limit, LongPredicate handled);
+
+    /**
+     * Gets the shortest of Reddit's search time periods that covers a window.
+     * @param window how far back to search (ms)
+     * @return hour, day, week, month, year or all
+     */
+    static String period(long window) {
+        long hours = TimeUnit.MILLISECONDS.toHours(window - 1) + 1;
+        if(hours <= 1) return "hour";
+        if(hours <= 24) return "day";
+        if(hours <= 24 * 7) return "week";
+        if(hours <= 24 * 31) return "month";
+        if(hours <= 24 * 366) return "year";
+        return "all";
+    }
+}
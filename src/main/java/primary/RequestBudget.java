@@ -0,0 +1,196 @@
+package primary;
+
+import net.dean.jraw.ratelimit.RateLimiter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Global budget for requests to the Reddit API, shared by every guild and query.
+ * A token bucket sized to the OAuth quota; permits are handed out first come, first served
+ * (waiters queue on a fair lock), so no single search can starve the others. Installed as the RedditClient's
+ * rate limiter, so every request - including each SearchPaginator page - takes a permit.
+ * The bucket is corrected from Reddit's X-Ratelimit-* response headers, and can be paused
+ * outright after a 429.
+ */
+
+public class RequestBudget implements RateLimiter {
+    private final long capacity;        // most permits that can be saved up
+    private final double defaultRate;   // permits per millisecond when Reddit has not said otherwise
+
+    private final ReentrantLock queue;  // fair: waiting threads get permits in arrival order
+    private double tokens;              // permits currently available (this and below are guarded by this)
+    private double rate;                // permits added per millisecond
+    private long lastRefill;            // when tokens was last topped up (ms)
+    private long pausedUntil;           // no permits before this time (ms)
+    private long rateResetAt;           // when to go back to defaultRate (ms)
+    private volatile double snapshot;   // tokens as of the last refill; readable without the lock
+
+    /**
+     * primary.RequestBudget constructor
+     * @param requests number of requests allowed per period
+     * @param period length of the period
+     * @param unit unit of period
+     */
+    public RequestBudget(long requests, long period, TimeUnit unit) {
+        capacity = requests;
+        defaultRate = (double) requests / unit.toMillis(period);
+        queue = new ReentrantLock(true);
+        tokens = requests;
+        rate = defaultRate;
+        lastRefill = System.currentTimeMillis();
+
+        snapshot = tokens;
+        Metrics.gauge("reddit_budget_tokens", () -> available());
+    }
+
+    /**
+     * Gets the number of permits the budget hands out per minute, as configured (before any header corrections).
+     * @return permits per minute
+     */
+    public double perMinute() {
+        return defaultRate * TimeUnit.MINUTES.toMillis(1);
+    }
+
+    /**
+     * Blocks until a permit is available, then takes it.
+     * @throws IllegalStateException if interrupted while waiting (the interrupt flag is kept)
+     */
+    @Override
+    public void acquire() {
+        long start = System.nanoTime();
+        try {
+            queue.lockInterruptibly(); // only the head of the queue waits on the bucket; everyone else waits behind it
+            try {
+                long wait;
+                while((wait = take()) > 0) {
+                    Thread.sleep(wait);
+                }
+            }
+            finally {
+                queue.unlock();
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a Reddit request permit", e);
+        }
+        Metrics.observe("reddit_permit_wait_ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Takes a permit if one is available right now.
+     * @return true if a permit was taken; false otherwise
+     */
+    @Override
+    public boolean tryAcquire() {
+        if(!queue.tryLock()) return false; // never jump ahead of threads already waiting
+        try {
+            return take() == 0;
+        }
+        finally {
+            queue.unlock();
+        }
+    }
+
+    /**
+     * Blocks until the bucket holds more than a reserve of permits, without taking any, so low-priority
+     * work (ex. backfills) only makes requests when live scans would still have the reserve left.
+     * @param reserve permits to leave to everything else (capped below the bucket's capacity)
+     * @throws IllegalStateException if interrupted while waiting (the interrupt flag is kept)
+     */
+    public void awaitSpare(int reserve) {
+        long start = System.nanoTime();
+        try {
+            long wait;
+            while((wait = spareWait(Math.min(reserve, capacity - 1))) > 0) {
+                Thread.sleep(wait);
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for spare Reddit request permits", e);
+        }
+        Metrics.observe("reddit_spare_wait_ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Corrects the bucket from Reddit's rate-limit headers.
+     * @param remaining X-Ratelimit-Remaining: requests left in the current window
+     * @param resetSeconds X-Ratelimit-Reset: seconds until the window ends
+     */
+    public synchronized void observe(double remaining, double resetSeconds) {
+        long now = System.currentTimeMillis();
+        refill(now);
+        tokens = Math.min(tokens, Math.max(remaining, 0));
+        if(resetSeconds > 0) {
+            long resetAt = now + (long) (resetSeconds * 1000);
+            if(remaining < 1) {
+                pausedUntil = Math.max(pausedUntil, resetAt);
+            }
+            else {
+                rate = remaining / (resetSeconds * 1000);   // spread what is left evenly over the window
+                rateResetAt = resetAt;
+            }
+        }
+    }
+
+    /**
+     * Hands out no permits for a while (ex. after a 429).
+     * @param millis how long to pause for
+     */
+    public synchronized void pause(long millis) {
+        pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + millis);
+    }
+
+    /**
+     * Gets the number of permits that were available the last time the bucket was touched.
+     * Does not wait for the lock, so it is safe to call from metrics.
+     * @return the number of whole permits available
+     */
+    public int available() {
+        return (int) snapshot;
+    }
+
+    /**
+     * Takes a permit if one is available.
+     * @return 0 if a permit was taken; otherwise how long to wait before trying again (ms)
+     */
+    private synchronized long take() {
+        long now = System.currentTimeMillis();
+        refill(now);
+        if(now < pausedUntil) return pausedUntil - now;
+        if(tokens < 1) return Math.max(1, (long) Math.ceil((1 - tokens) / rate));
+        tokens -= 1;
+        snapshot = tokens;
+        return 0;
+    }
+
+    /**
+     * Checks whether the bucket holds more than a reserve of permits.
+     * @return 0 if it does; otherwise how long to wait before checking again (ms)
+     */
+    private synchronized long spareWait(long reserve) {
+        long now = System.currentTimeMillis();
+        refill(now);
+        if(now < pausedUntil) return pausedUntil - now;
+        double missing = reserve + 1 - tokens;
+        if(missing <= 0) return 0;
+        return Math.max(1, (long) Math.ceil(missing / rate));
+    }
+
+    /**
+     * Tops up tokens for the time passed since the last refill. Caller must hold the lock on this.
+     */
+    private void refill(long now) {
+        if(rateResetAt != 0 && now >= rateResetAt) {
+            rate = defaultRate;
+            rateResetAt = 0;
+        }
+        if(now > lastRefill) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * rate);
+            lastRefill = now;
+        }
+        snapshot = tokens;
+    }
+}
@@ -0,0 +1,571 @@
+package primary;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Runs the primary script for every guild that has it turned on.
+ * The queries of all running guilds are merged into the set of distinct (query, subreddit) pairs;
+ * each pair is a job that searches Reddit and hands the results to every running guild subscribed
+ * to it, then waits for the interval its PollRates entry asks for (short for busy queries, long for
+ * quiet ones) before running again. All jobs share one small, fixed-size thread pool, and new jobs'
+ * first runs are spread over the housekeeping interval so they do not all fire in the same second.
+ * When more jobs are due than the pool can run, a FairScheduler picks which go first, taking turns by guild.
+ * Subreddits with many queries are instead read through their /new listing: one job per subreddit
+ * matches every new post against all of its queries at once (see useStream).
+ * When several bot processes share the database (cluster mode), every one of them plans the same jobs,
+ * but each job only runs on the node holding its lease (see JobLeases); the others skip it.
+ */
+
+public class ScanEngine {
+    private static final long INTERVAL = 30000; // 30 seconds between housekeeping runs; new jobs start spread over it
+
+    // Per-subreddit choice between searching each query and streaming /new (see useStream)
+    private static final Set<String> STREAM_SUBREDDITS = Settings.getSet("stream.subreddits");
+    private static final Set<String> SEARCH_SUBREDDITS = Settings.getSet("search.subreddits");
+    private static final int STREAM_MIN_QUERIES = Settings.getInt("stream.minQueries", 3);
+    private static final int MAX_GUILD_QUERIES = Settings.getInt("sched.maxQueries", 0); // queries scheduled per guild; 0 = all
+
+    private final UpdateDB db;                              // All reads/writes to Reddit and the database go through here
+    private final Set<String> guilds;                       // Ids of guilds whose script is running
+    private final Map<String, Job> jobs;                    // { job name -> the job }
+    private final PollRates rates;                          // How often each job should run
+    private final JobLeases leases;                         // Which jobs this node runs
+    private final ScheduledThreadPoolExecutor pool;         // Runs every job, plus housekeeping
+    private final FairScheduler fair;                       // Orders due jobs by guild
+    private final Predicate<String> local;                  // Whether a guild is on a Discord shard this process runs
+
+    private volatile Map<String, StreamPlan> streams;       // { subreddit -> its queries, if streamed }
+    private Set<QueryKey> markKeys;                         // Marks the planned jobs use; guarded by this
+    private volatile int searchPairs;                       // Pairs searched (not streamed), as of the last reconcile
+    private volatile int searchCalls;                       // Searches they were packed into
+    private volatile int lastSubscriptions;                 // Guild-query subscriptions as of the last reconcile
+    private volatile long firstScanMs = -1;                 // Process start to the end of the first scan; -1 until then
+
+    /**
+     * primary.ScanEngine constructor
+     * @param db the singular primary.UpdateDB object
+     * @param threads number of searches that may run at the same time
+     * @param local whether a guild is on a Discord shard this process runs (only those can be sent to from here)
+     */
+    public ScanEngine(UpdateDB db, int threads, Predicate<String> local) {
+        this.db = db;
+        this.local = local;
+        guilds = ConcurrentHashMap.newKeySet();
+        jobs = new ConcurrentHashMap<>();
+        rates = db.getPollRates();
+        leases = db.getLeases();
+        streams = Collections.emptyMap();
+        markKeys = Collections.emptySet();
+        pool = new ScheduledThreadPoolExecutor(threads, r -> {
+            Thread t = new Thread(r, "scan-engine");
+            t.setDaemon(true);
+            return t;
+        });
+        pool.setRemoveOnCancelPolicy(true); // cancelled jobs should not linger in the queue
+        fair = new FairScheduler(threads, pool, FairScheduler.parseWeights(Settings.getSet("sched.weights")),
+                Settings.getInt("sched.maxCallsPerCycle", 0));
+
+        Metrics.gauge("scan_guilds_running", guilds::size);
+        Metrics.gauge("scan_jobs", jobs::size);
+        Metrics.gauge("scan_subscriptions", () -> lastSubscriptions);
+        Metrics.gauge("search_dedupe_ratio_pct", this::searchRatioPct);
+        Metrics.gauge("scan_queue_depth", () -> pool.getQueue().size());
+        Metrics.gauge("scan_lag_max_ms", this::maxLag);
+        Metrics.gauge("search_pairs", () -> searchPairs);   // searches per cycle without the query planner
+        Metrics.gauge("search_calls", () -> searchCalls);   // and with it
+        Metrics.gauge("startup_first_scan_ms", () -> firstScanMs);
+    }
+
+    /**
+     * Starts housekeeping: picking up query changes, renewing and balancing job leases,
+     * persisting what the searches learned, and trimming the seen-post index.
+     */
+    public void start() {
+        pool.scheduleWithFixedDelay(() -> {
+            try {
+                reconcile();
+                for(String name : leases.sync(jobs.keySet(), db::flushPosts)) {
+                    takeOver(name);
+                }
+                List<String> held = new ArrayList<>();
+                for(String name : jobs.keySet()) {
+                    if(leases.holds(name)) held.add(name);
+                }
+                rates.rebalance(held);
+                fair.newCycle();
+                db.flushPosts();
+                db.getSeenPosts().evictExpired();
+            }
+            catch(RuntimeException e) { // keep going; a failed reconcile is retried next interval
+                System.err.println(e);
+            }
+        }, 0, INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops every job, writes whatever new posts and marks are still pending,
+     * and hands this node's jobs back to the cluster.
+     */
+    public void shutdown() {
+        pool.shutdownNow();
+        db.flushPosts();
+        leases.releaseAll();
+    }
+
+    /**
+     * Turns the script on for a guild. Its queries are scheduled right away.
+     * @param guildId unique ID of guild
+     * @return true if the script was started; false if it was already running
+     */
+    public boolean startGuild(String guildId) {
+        if(!guilds.add(guildId)) return false;
+        db.setRunning(guildId, true);
+        pool.execute(this::reconcile);
+        return true;
+    }
+
+    /**
+     * Turns the script back on for guilds that had it running before a restart (their state is already stored).
+     * All of their jobs are planned in one reconcile, so their first runs are spread over one interval
+     * instead of each guild's starting together.
+     * @param guildIds unique IDs of the guilds
+     * @return number of guilds that were not running yet
+     */
+    public int resume(Collection<String> guildIds) {
+        int resumed = 0;
+        for(String guildId : guildIds) {
+            if(guilds.add(guildId)) resumed++;
+        }
+        if(resumed > 0) pool.execute(this::reconcile);
+        return resumed;
+    }
+
+    /**
+     * Turns the script off for a guild. Nothing more is sent to it from this point on,
+     * and jobs left without subscribers are cancelled right away.
+     * @param guildId unique ID of guild
+     * @return true if the script was stopped; false if it was not running
+     */
+    public boolean stopGuild(String guildId) {
+        if(!guilds.remove(guildId)) return false;
+        db.setRunning(guildId, false);
+        pool.execute(this::reconcile);
+        return true;
+    }
+
+    /**
+     * Checks whether the script is running for a guild.
+     * @param guildId unique ID of guild
+     * @return true if the script is running; false otherwise
+     */
+    public boolean isRunning(String guildId) {
+        return guilds.contains(guildId);
+    }
+
+    /**
+     * Gets the ratio of distinct Reddit searches to guild-query subscriptions, as a percentage.
+     * 100 means no two guilds shared a query; lower is better.
+     * @return the percentage, or 100 if there are no subscriptions
+     */
+    private long searchRatioPct() {
+        int subscriptionCount = lastSubscriptions;
+        return subscriptionCount == 0 ? 100 : Math.round(100.0 * jobs.size() / subscriptionCount);
+    }
+
+    /**
+     * Reloads the queries of the running guilds, schedules a job for each new search or stream,
+     * and cancels the jobs no running guild wants anymore.
+     * New jobs are spread evenly over one interval, the first one starting immediately.
+     */
+    private synchronized void reconcile() {
+        try {
+            if(leases.isClustered()) { // other nodes start and stop guilds too; this one serves those on its shards
+                List<String> running = new ArrayList<>(db.getRunningGuilds());
+                running.removeIf(local.negate());
+                guilds.retainAll(running);
+                guilds.addAll(running);
+            }
+            Map<QueryKey, Map<String, List<String>>> latest = guilds.isEmpty()
+                    ? Collections.emptyMap()
+                    : db.getSubscriptions(new ArrayList<>(guilds));
+            if(MAX_GUILD_QUERIES > 0) capQueries(latest);
+
+            int subscriptionCount = 0;
+            for(Map<String, List<String>> subscribers : latest.values()) {
+                subscriptionCount += subscribers.size();
+            }
+            lastSubscriptions = subscriptionCount;
+
+            Set<QueryKey> previousMarks = markKeys;
+            Map<String, Planned> plan = plan(latest);
+            carryOver(plan);
+
+            jobs.entrySet().removeIf(job -> {
+                if(plan.containsKey(job.getKey())) return false;
+                job.getValue().cancel();
+                return true;
+            });
+
+            List<String> added = new ArrayList<>();
+            for(String name : plan.keySet()) {
+                if(!jobs.containsKey(name)) added.add(name);
+            }
+            for(int i = 0; i < added.size(); i++) {
+                String name = added.get(i);
+                Job job = new Job(name, plan.get(name));
+                jobs.put(name, job);
+                job.schedule(i * INTERVAL / added.size());
+            }
+
+            // Searches and streams that are no longer planned do not need their marks (deleted at the next flush)
+            for(QueryKey key : previousMarks) {
+                if(!markKeys.contains(key)) db.forgetQuery(key);
+            }
+        }
+        catch(RuntimeException e) { // retried at the next housekeeping run
+            System.err.println(e);
+        }
+    }
+
+    /**
+     * Starts each job the plan adds from where the jobs covering its pairs so far had got to. Regrouping
+     * searches (ex. a batch split in two because a query was added) gives them new names and marks;
+     * without this, each would read its whole window again and poll as if it had never run.
+     * @param plan the new plan; jobs still holds the previous one
+     */
+    private void carryOver(Map<String, Planned> plan) {
+        Map<QueryKey, Job> covering = new HashMap<>();
+        for(Job job : jobs.values()) {
+            for(QueryKey key : job.keys) {
+                covering.put(key, job);
+            }
+        }
+        plan.forEach((name, planned) -> {
+            if(jobs.containsKey(name)) return;
+            Set<QueryKey> marks = new HashSet<>();
+            Map<String, Double> shares = new HashMap<>();
+            boolean covered = true;     // every pair was searched before, so the marks say what was handled
+            for(QueryKey key : planned.keys) {
+                Job previous = covering.get(key);
+                if(previous == null) {
+                    covered = false;
+                    continue;
+                }
+                marks.add(previous.markKey);
+                shares.merge(previous.name, 1.0 / previous.keys.size(), Double::sum);
+            }
+            if(covered) db.inheritMark(planned.markKey, marks);
+            rates.inherit(name, shares);
+        });
+    }
+
+    /**
+     * Leaves out the queries of each guild past the first sched.maxQueries (by subreddit, then query).
+     * They still reach the guild if another guild's job covers them.
+     * @param latest { (query, subreddit) -> { guildId -> channels } }; changed in place
+     */
+    private void capQueries(Map<QueryKey, Map<String, List<String>>> latest) {
+        Map<String, List<QueryKey>> byGuild = new HashMap<>();
+        latest.forEach((key, subscribers) -> {
+            for(String guildId : subscribers.keySet()) {
+                byGuild.computeIfAbsent(guildId, k -> new ArrayList<>()).add(key);
+            }
+        });
+        byGuild.forEach((guildId, keys) -> {
+            if(keys.size() <= MAX_GUILD_QUERIES) return;
+            keys.sort(Comparator.comparing(QueryKey::getSubreddit).thenComparing(QueryKey::getQuery));
+            for(QueryKey key : keys.subList(MAX_GUILD_QUERIES, keys.size())) {
+                latest.get(key).remove(guildId);
+            }
+            Metrics.add("sched_queries_capped", keys.size() - MAX_GUILD_QUERIES);
+        });
+        latest.values().removeIf(Map::isEmpty);
+    }
+
+    /**
+     * Prepares a job this node has just got the lease of: the node that ran it before may have moved
+     * its mark and sent posts this node has not loaded, so both are read again first.
+     * @param name name of the job
+     */
+    private void takeOver(String name) {
+        Job job = jobs.get(name);
+        if(job == null) return;
+        Set<String> guildIds = new HashSet<>();
+        for(QueryKey key : job.keys) {
+            guildIds.addAll(running(db.getSubscribers(key)).keySet());
+        }
+        db.catchUp(job.markKey, guildIds);
+        Metrics.increment("cluster_takeovers");
+    }
+
+    /**
+     * Records how long after the process started the first scan finished.
+     */
+    private synchronized void firstScan() {
+        if(firstScanMs >= 0) return;
+        firstScanMs = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        System.out.println("First scan done " + firstScanMs + " ms after start");
+    }
+
+    /**
+     * Gets how far behind schedule the most overdue job is.
+     * @return ms past its due time, or 0 if every job is on time
+     */
+    private long maxLag() {
+        long now = System.currentTimeMillis();
+        long lag = 0;
+        for(Job job : jobs.values()) {
+            lag = Math.max(lag, now - job.dueAt);
+        }
+        return lag;
+    }
+
+    /**
+     * Decides the jobs for a set of subscriptions: one stream per subreddit that should be streamed,
+     * and the remaining pairs packed into as few searches as possible (see QueryPlanner).
+     * Also installs the stream plans the stream jobs will read, and the marks all the jobs use.
+     * @param latest { (query, subreddit) -> { guildId -> channels } }
+     * @return { job name -> what the job runs }
+     */
+    private Map<String, Planned> plan(Map<QueryKey, Map<String, List<String>>> latest) {
+        Map<String, List<QueryKey>> bySubreddit = new HashMap<>();
+        for(QueryKey key : latest.keySet()) {
+            bySubreddit.computeIfAbsent(key.getSubreddit(), k -> new ArrayList<>()).add(key);
+        }
+
+        Map<String, Planned> plan = new LinkedHashMap<>();
+        Map<String, StreamPlan> nextStreams = new HashMap<>();
+        Set<QueryKey> nextMarks = new HashSet<>();
+        List<QueryKey> searched = new ArrayList<>();
+        bySubreddit.forEach((subreddit, keys) -> {
+            if(useStream(subreddit, keys.size())) {
+                StreamPlan previous = streams.get(subreddit);
+                boolean unchanged = previous != null && new HashSet<>(previous.keys).equals(new HashSet<>(keys));
+                nextStreams.put(subreddit, unchanged ? previous : new StreamPlan(keys)); // only rebuild the matcher on change
+                QueryKey listing = new QueryKey("", subreddit);
+                nextMarks.add(listing);
+                plan.put(streamJob(subreddit), new Planned(() -> stream(subreddit), listing, keys));
+            }
+            else {
+                searched.addAll(keys);
+            }
+        });
+
+        List<QueryPlanner.Batch> batches = QueryPlanner.plan(searched);
+        for(QueryPlanner.Batch batch : batches) {
+            nextMarks.add(batch.getMarkKey());
+            plan.put("search " + batch, new Planned(() -> search(batch), batch.getMarkKey(), batch.getKeys()));
+        }
+        if(searched.size() != searchPairs || batches.size() != searchCalls) {
+            System.out.println("Search plan: " + searched.size() + " pairs in " + batches.size() + " searches per cycle");
+        }
+        searchPairs = searched.size();
+        searchCalls = batches.size();
+
+        streams = nextStreams;
+        markKeys = nextMarks;
+        return plan;
+    }
+
+    /**
+     * Decides whether a subreddit is read through /new (one call for all its queries)
+     * or searched once per query. The stream.subreddits / search.subreddits settings override;
+     * otherwise subreddits with at least stream.minQueries queries are streamed. r/all is never
+     * streamed unless asked for, since its /new moves too fast for one listing per interval.
+     * @param subreddit the subreddit
+     * @param queries number of distinct queries watched in it
+     * @return true to stream; false to search
+     */
+    private static boolean useStream(String subreddit, int queries) {
+        if(SEARCH_SUBREDDITS.contains(subreddit)) return false;
+        if(STREAM_SUBREDDITS.contains(subreddit)) return true;
+        return !subreddit.equals("all") && queries >= STREAM_MIN_QUERIES;
+    }
+
+    private static String streamJob(String subreddit) {
+        return "stream r/" + subreddit;
+    }
+
+    /**
+     * Keeps only the guilds that are still running.
+     * @param subscribers { guildId -> channels }
+     * @return the running subset (possibly empty)
+     */
+    private Map<String, List<String>> running(Map<String, List<String>> subscribers) {
+        Map<String, List<String>> running = new HashMap<>();
+        subscribers.forEach((guildId, channels) -> {
+            if(guilds.contains(guildId)) running.put(guildId, channels);
+        });
+        return running;
+    }
+
+    /**
+     * One run of a stream job: reads the subreddit's /new once, and fans each post out to the running
+     * subscribers of every query it matches. Never throws.
+     * @param subreddit the subreddit to read
+     * @return number of new posts in the listing, or -1 if it was not read
+     */
+    private int stream(String subreddit) {
+        StreamPlan plan = streams.get(subreddit);
+        if(plan == null) return -1;
+
+        Map<QueryKey, Map<String, List<String>>> subscribers = new HashMap<>();
+        for(QueryKey key : plan.keys) {
+            Map<String, List<String>> running = running(db.getSubscribers(key));
+            if(!running.isEmpty()) subscribers.put(key, running);
+        }
+        if(subscribers.isEmpty()) return -1;
+
+        try {
+            int found = db.updateRedditStream(subreddit, plan.matcher, plan.keys, subscribers);
+            Metrics.increment("scan_streams");
+            return found;
+        }
+        catch(RuntimeException e) { // retried next interval
+            System.err.println("r/" + subreddit + ": " + e);
+            Metrics.increment("scan_stream_failures");
+            return -1;
+        }
+    }
+
+    /**
+     * One run of a search job: runs the search once, and fans the results out to the running subscribers
+     * of the pairs they match. Never throws.
+     * @param batch the search, covering one or more pairs
+     * @return number of new results, or -1 if nothing was searched
+     */
+    private int search(QueryPlanner.Batch batch) {
+        Map<QueryKey, Map<String, List<String>>> subscribers = new HashMap<>();
+        for(QueryKey key : batch.getKeys()) {
+            Map<String, List<String>> running = running(db.getSubscribers(key));  // current, not as of the last reconcile
+            if(!running.isEmpty()) subscribers.put(key, running);
+        }
+        if(subscribers.isEmpty()) return -1;
+
+        try {
+            int found = db.updateReddit(batch, subscribers);
+            Metrics.increment("scan_searches");
+            return found;
+        }
+        catch(RuntimeException e) { // retried next interval
+            System.err.println(batch + ": " + e);
+            Metrics.increment("scan_search_failures");
+            return -1;
+        }
+    }
+
+    /**
+     * One search or stream, running over and over at the interval its poll rate calls for.
+     * When due, it is queued in the FairScheduler under the running guilds it serves.
+     * Each run records how late it started (scan_lag_ms: time past its due time, which grows when
+     * the pool cannot keep up) and how long it took (scan_job_ms).
+     */
+    private final class Job implements Runnable {
+        private final String name;
+        private final IntSupplier body;         // one run; returns the new posts it found, or -1 if it did not scan
+        private final QueryKey markKey;         // the mark the job's search or listing keeps
+        private final List<QueryKey> keys;      // the pairs it covers
+        private final String intervalGauge;     // poll_interval_ms{job=...}
+        private final String rateGauge;         // poll_rate_per_hour{job=...}
+        private ScheduledFuture<?> next;        // the next run; guarded by this
+        private boolean cancelled;              // guarded by this
+        private volatile long dueAt;            // when the next run should start (ms)
+
+        Job(String name, Planned planned) {
+            this.name = name;
+            body = planned.body;
+            markKey = planned.markKey;
+            keys = planned.keys;
+            intervalGauge = Metrics.labelled("poll_interval_ms", "job", name);
+            rateGauge = Metrics.labelled("poll_rate_per_hour", "job", name);
+            Metrics.gauge(intervalGauge, () -> rates.interval(name));
+            Metrics.gauge(rateGauge, () -> Math.round(rates.perHour(name)));
+        }
+
+        synchronized void schedule(long delay) {
+            if(cancelled) return;
+            dueAt = System.currentTimeMillis() + delay;
+            try {
+                next = pool.schedule(this, delay, TimeUnit.MILLISECONDS);
+            }
+            catch(RejectedExecutionException e) { // shutting down
+                cancelled = true;
+            }
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if(next != null) next.cancel(false);
+            Metrics.removeGauge(intervalGauge);
+            Metrics.removeGauge(rateGauge);
+        }
+
+        @Override
+        public void run() {
+            if(!leases.holds(name)) { // another node runs it; check again in case it is handed over
+                schedule(INTERVAL);
+                return;
+            }
+            Set<String> served = new HashSet<>();
+            for(QueryKey key : keys) {
+                served.addAll(running(db.getSubscribers(key)).keySet());
+            }
+            fair.submit(this::scan, served);
+        }
+
+        /**
+         * Runs the job once, when the FairScheduler gets to it, and schedules the next run.
+         */
+        private void scan() {
+            long start = System.currentTimeMillis();
+            Metrics.observe("scan_lag_ms", Math.max(0, start - dueAt));
+            try {
+                int found = body.getAsInt();
+                if(found >= 0) {
+                    rates.observe(name, found);
+                    if(firstScanMs < 0) firstScan();
+                }
+            }
+            finally {
+                Metrics.observe("scan_job_ms", System.currentTimeMillis() - start);
+                schedule(rates.interval(name));
+            }
+        }
+    }
+
+    /**
+     * A job as planned by a reconcile: what it runs, and what it covers.
+     */
+    private static final class Planned {
+        private final IntSupplier body;
+        private final QueryKey markKey;
+        private final List<QueryKey> keys;
+
+        Planned(IntSupplier body, QueryKey markKey, List<QueryKey> keys) {
+            this.body = body;
+            this.markKey = markKey;
+            this.keys = keys;
+        }
+    }
+
+    /**
+     * The queries of a streamed subreddit, with the matcher built from them.
+     */
+    private static final class StreamPlan {
+        private final List<QueryKey> keys;      // matcher pattern i = keys.get(i).getQuery()
+        private final AhoCorasick matcher;
+
+        StreamPlan(List<QueryKey> keys) {
+            this.keys = keys;
+            List<String> patterns = new ArrayList<>();
+            for(QueryKey key : keys) {
+                patterns.add(key.getQuery());
+            }
+            matcher = new AhoCorasick(patterns);
+        }
+    }
+}
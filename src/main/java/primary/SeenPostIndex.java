@@ -0,0 +1,206 @@
+package primary;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory record of which Reddit posts have already been sent to which guild.
+ * Replaces the per-post lookup in the redditposts collection: each guild gets an open-addressing
+ * hash table of post ids (base36 fullnames decoded to longs), and entries expire on the same
+ * schedule as the TTL index on redditposts.date.
+ */
+
+public class SeenPostIndex {
+    public static final long RETENTION = TimeUnit.HOURS.toMillis(2); // Matches the TTL index on redditposts.date
+
+    private final Map<Long, GuildSet> guilds;  // { guildId -> posts seen for that guild }
+
+    /**
+     * primary.SeenPostIndex constructor
+     */
+    public SeenPostIndex() {
+        guilds = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Records a post as seen by a guild, if it was not already.
+     * Atomic: if several threads add the same post for the same guild, exactly one gets true.
+     * @param guildId unique ID of guild
+     * @param fullName Reddit fullname of the post (ex. t3_abc123)
+     * @param createdMillis creation time of the post, in epoch milliseconds
+     * @return true if the post had not been seen by the guild before; false otherwise
+     */
+    public boolean add(String guildId, String fullName, long createdMillis) {
+        return add(guildId, decode(fullName), createdMillis);
+    }
+
+    /**
+     * Records a post as seen by a guild, if it was not already.
+     * @param guildId unique ID of guild
+     * @param id id of the post, as returned by decode
+     * @param createdMillis creation time of the post, in epoch milliseconds
+     * @return true if the post had not been seen by the guild before; false otherwise
+     */
+    public boolean add(String guildId, long id, long createdMillis) {
+        long now = System.currentTimeMillis();
+        long expiry = createdMillis + RETENTION;
+        if(expiry <= now) return false; // already past retention; the database would not remember it either
+
+        long key = Long.parseLong(guildId);
+        while(true) {
+            int added = guilds.computeIfAbsent(key, k -> new GuildSet()).add(id, expiry, now);
+            if(added != GuildSet.RETIRED) return added == 1;
+            // evictExpired emptied and unlinked this table meanwhile; the next lookup makes a new one
+        }
+    }
+
+    /**
+     * Checks whether a guild has already seen a post.
+     * @param guildId unique ID of guild
+     * @param fullName Reddit fullname of the post
+     * @return true if the post has been seen by the guild; false otherwise
+     */
+    public boolean contains(String guildId, String fullName) {
+        GuildSet set = guilds.get(Long.parseLong(guildId));
+        return set != null && set.contains(decode(fullName), System.currentTimeMillis());
+    }
+
+    /**
+     * Drops every entry past retention, and the tables of guilds left with none.
+     */
+    public void evictExpired() {
+        long now = System.currentTimeMillis();
+        for(Long guildId : guilds.keySet()) {
+            // Emptying and unlinking happen under the map's lock for the key, and an emptied table refuses adds,
+            // so an add racing with this lands in the table that stays, or in a new one
+            guilds.computeIfPresent(guildId, (k, set) -> set.evict(now) ? null : set);
+        }
+    }
+
+    /**
+     * Gets the number of (post, guild) pairs currently remembered.
+     * @return the number of entries
+     */
+    public long size() {
+        long total = 0;
+        for(GuildSet set : guilds.values()) {
+            total += set.size();
+        }
+        return total;
+    }
+
+    /**
+     * Decodes a Reddit fullname (or bare id) to a long.
+     * Reddit ids are base36 and always positive, so 0 is free to mean "empty slot".
+     * @param fullName fullname such as t3_abc123, or a bare id such as abc123
+     * @return the id as a long
+     */
+    public static long decode(String fullName) {
+        int sep = fullName.indexOf('_');
+        return Long.parseLong(sep < 0 ? fullName : fullName.substring(sep + 1), 36);
+    }
+
+    /**
+     * Open-addressing (linear probing) set of post ids for one guild, each with an expiry time.
+     * Removal only happens by rebuilding the table, which keeps probing free of tombstones.
+     */
+    private static final class GuildSet {
+        private static final int MIN_CAPACITY = 16;
+        private static final int RETIRED = -1;  // returned by add once the table is retired
+
+        private long[] ids;         // 0 = empty slot
+        private long[] expiries;    // epoch milliseconds after which ids[i] is forgotten
+        private int size;           // number of occupied slots
+        private boolean retired;    // emptied by evict and removed from the index
+
+        GuildSet() {
+            ids = new long[MIN_CAPACITY];
+            expiries = new long[MIN_CAPACITY];
+        }
+
+        /**
+         * @return 1 if added, 0 if already there, RETIRED if the table was emptied and unlinked (see evict)
+         */
+        synchronized int add(long id, long expiry, long now) {
+            if(retired) return RETIRED;
+            int slot = find(id);
+            if(ids[slot] == id) {
+                if(expiries[slot] > now) return 0;
+                expiries[slot] = expiry;    // expired but not yet swept; counts as new
+                return 1;
+            }
+
+            if((size + 1) * 2 > ids.length) { // keep load factor under 1/2
+                rebuild(now, true);
+                slot = find(id);
+            }
+            ids[slot] = id;
+            expiries[slot] = expiry;
+            size++;
+            return 1;
+        }
+
+        synchronized boolean contains(long id, long now) {
+            int slot = find(id);
+            return ids[slot] == id && expiries[slot] > now;
+        }
+
+        /**
+         * Drops the entries past retention.
+         * @return true if none are left: the table is then retired, and takes no more adds
+         */
+        synchronized boolean evict(long now) {
+            rebuild(now, false);
+            retired = size == 0;
+            return retired;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        /**
+         * Finds the slot holding id, or the empty slot where it would go.
+         */
+        private int find(long id) {
+            int mask = ids.length - 1;
+            int slot = (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+            while(ids[slot] != 0 && ids[slot] != id) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        /**
+         * Copies the live entries into a fresh table, doubling it if they would still fill half of it.
+         */
+        private void rebuild(long now, boolean makeRoom) {
+            long[] oldIds = ids, oldExpiries = expiries;
+
+            int live = 0;
+            for(int i = 0; i < oldIds.length; i++) {
+                if(oldIds[i] != 0 && oldExpiries[i] > now) live++;
+            }
+            int capacity = MIN_CAPACITY;
+            while(capacity < (live + (makeRoom ? 1 : 0)) * 2) {
+                capacity <<= 1;
+            }
+            if(makeRoom && capacity < oldIds.length && live * 4 > oldIds.length) {
+                capacity = oldIds.length; // do not shrink a table that is about to refill
+            }
+
+            ids = new long[capacity];
+            expiries = new long[capacity];
+            size = 0;
+            for(int i = 0; i < oldIds.length; i++) {
+                if(oldIds[i] != 0 && oldExpiries[i] > now) {
+                    int slot = find(oldIds[i]);
+                    ids[slot] = oldIds[i];
+                    expiries[slot] = oldExpiries[i];
+                    size++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package primary;
+
+import java.util.*;
+
+/**
+ * Optional tuning knobs, read from JVM system properties (-Dname=value) or, failing that,
+ * environment variables (NAME_IN_CAPS, dots as underscores). Every knob has a default,
+ * so none of them need to be set.
+ */
+
+public class Settings {
+
+    /**
+     * Gets a setting as a string.
+     * @param name name of the setting, ex. stream.subreddits
+     * @param fallback value to use if the setting is not set
+     * @return the value of the setting
+     */
+    public static String get(String name, String fallback) {
+        String value = System.getProperty(name);
+        if(value == null) value = System.getenv(name.toUpperCase().replace('.', '_'));
+        return value == null || value.trim().isEmpty() ? fallback : value.trim();
+    }
+
+    /**
+     * Gets a setting as a long.
+     * @param name name of the setting
+     * @param fallback value to use if the setting is not set (or is not a number)
+     * @return the value of the setting
+     */
+    public static long getLong(String name, long fallback) {
+        try {
+            return Long.parseLong(get(name, Long.toString(fallback)));
+        }
+        catch(NumberFormatException e) {
+            System.err.println("Setting " + name + " is not a number; using " + fallback);
+            return fallback;
+        }
+    }
+
+    /**
+     * Gets a setting as an int.
+     * @param name name of the setting
+     * @param fallback value to use if the setting is not set (or is not a number)
+     * @return the value of the setting
+     */
+    public static int getInt(String name, int fallback) {
+        return (int) getLong(name, fallback);
+    }
+
+    /**
+     * Gets a comma separated setting as a set of lowercase entries.
+     * @param name name of the setting
+     * @return the entries, or an empty set if the setting is not set
+     */
+    public static Set<String> getSet(String name) {
+        Set<String> out = new HashSet<>();
+        for(String entry : get(name, "").split(",")) {
+            if(!entry.trim().isEmpty()) out.add(entry.trim().toLowerCase());
+        }
+        return out;
+    }
+}
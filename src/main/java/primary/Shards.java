@@ -0,0 +1,188 @@
+package primary;
+
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.OnlineStatus;
+import net.dv8tion.jda.api.entities.Activity;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.TextChannel;
+import net.dv8tion.jda.api.requests.GatewayIntent;
+import net.dv8tion.jda.api.sharding.DefaultShardManagerBuilder;
+import net.dv8tion.jda.api.sharding.ShardManager;
+import net.dv8tion.jda.api.utils.cache.CacheFlag;
+
+import javax.security.auth.login.LoginException;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The bot's Discord gateway connections: a ShardManager running discord.shards shards in total
+ * (default: as many as Discord recommends), or only the ones listed in discord.shardIds (ex. 0-3,8),
+ * so the shards can be split between processes.
+ * Discord puts each guild on shard (guild id >> 22) % total, and everything about a guild (its channels,
+ * its events) lives on that shard, so lookups go straight to it instead of through every shard.
+ * By default the caches are trimmed to what the bot uses (discord.cache=light): only the GUILDS intent,
+ * no member cache or chunking, and no cache flags but the bot's own permission overrides;
+ * guilds, channels and roles are always cached. discord.cache=full goes back to JDA's defaults.
+ */
+
+public class Shards {
+    private final Set<Integer> ids;             // shards run by this process; empty for all of them
+    private final AtomicInteger readyShards;    // shards that have finished loading
+    private ShardManager manager;
+    private int total;                          // shards of the bot, over all processes
+
+    /**
+     * primary.Shards constructor. Nothing connects until start.
+     */
+    public Shards() {
+        ids = configuredIds();
+        readyShards = new AtomicInteger();
+        Metrics.gauge("discord_shards_ready", readyShards::get);
+    }
+
+    /**
+     * Logs in to Discord and starts connecting the shards, in the background.
+     * @param token the bot's Discord token
+     * @param listeners event listeners added to every shard
+     * @throws LoginException if the token is invalid
+     */
+    public void start(String token, Object... listeners) throws LoginException {
+        boolean full = Settings.get("discord.cache", "light").equalsIgnoreCase("full");
+        DefaultShardManagerBuilder builder = full
+                ? DefaultShardManagerBuilder.createDefault(token)
+                : DefaultShardManagerBuilder.createLight(token, EnumSet.of(GatewayIntent.GUILDS))
+                        .enableCache(CacheFlag.MEMBER_OVERRIDES); // the bot's own overrides, for the permission checks on join
+        builder.setShardsTotal(Settings.getInt("discord.shards", -1))
+                .setStatus(OnlineStatus.IDLE)
+                .setActivity(Activity.watching("Script not running currently"))
+                .addEventListeners(listeners);
+        if(!ids.isEmpty()) builder.setShards(ids);
+        manager = builder.build();
+        total = manager.getShardsTotal();
+        Metrics.gauge("discord_shards", this::size);
+        System.out.println("Running " + size() + " of " + total + " Discord shards");
+    }
+
+    /**
+     * Records that a shard has finished loading.
+     * @return true if it was the last one this process runs
+     */
+    public boolean shardReady() {
+        int ready = readyShards.incrementAndGet();
+        if(ready != size()) return false;
+        long readyMs = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        long heapMb = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() >> 20;
+        Metrics.gauge("startup_discord_ready_ms", () -> readyMs);
+        System.out.println(ready + " Discord shards ready " + readyMs + " ms after start, " + heapMb + " MB of heap in use");
+        return true;
+    }
+
+    /**
+     * Gets the number of shards this process runs.
+     * @return the number of shards
+     */
+    public int size() {
+        return ids.isEmpty() ? total : ids.size();
+    }
+
+    /**
+     * Gets the shard manager, for what concerns every shard (ex. the presence).
+     * @return the shard manager
+     */
+    public ShardManager getManager() {
+        return manager;
+    }
+
+    /**
+     * Gets the shard a guild is on.
+     * @param guildId unique ID of guild
+     * @param total shards of the bot
+     * @return the shard id
+     */
+    public static int shardOf(String guildId, int total) {
+        return (int) ((Long.parseUnsignedLong(guildId) >>> 22) % total);
+    }
+
+    /**
+     * Checks whether a guild is on a shard this process runs.
+     * @param guildId unique ID of guild
+     * @return true if so (always, when this process runs every shard)
+     */
+    public boolean isLocal(String guildId) {
+        return ids.isEmpty() || ids.contains(shardOf(guildId, total));
+    }
+
+    /**
+     * Gets a guild, from the shard it is on.
+     * @param guildId unique ID of guild
+     * @return the guild, or null if the bot is not in it or its shard is not run here
+     */
+    public Guild getGuild(String guildId) {
+        JDA shard = manager.getShardById(shardOf(guildId, total));
+        return shard == null ? null : shard.getGuildById(guildId);
+    }
+
+    /**
+     * Gets a text channel, from the shard its guild is on.
+     * @param guildId unique ID of the channel's guild, or null if unknown (every shard is then looked through)
+     * @param channelId unique ID of channel
+     * @return the channel, or null if the bot cannot see it from this process
+     */
+    public TextChannel getTextChannel(String guildId, String channelId) {
+        if(guildId == null) return manager.getTextChannelById(channelId);
+        JDA shard = manager.getShardById(shardOf(guildId, total));
+        return shard == null ? null : shard.getTextChannelById(channelId);
+    }
+
+    /**
+     * Names the set of shards this process runs, for keeping the jobs of different sets apart (see UpdateDB).
+     * @return "" when one process runs every shard; otherwise its ranges, ex. "shards-0-3_8-of-16"
+     */
+    public static String placementGroup() {
+        Set<Integer> ids = configuredIds();
+        if(ids.isEmpty()) return "";
+        StringJoiner ranges = new StringJoiner("_", "shards-", "-of-" + Settings.getInt("discord.shards", -1));
+        Iterator<Integer> it = ids.iterator();
+        int first = it.next(), last = first;
+        while(true) {
+            Integer next = it.hasNext() ? it.next() : null;
+            if(next != null && next == last + 1) {
+                last = next;
+                continue;
+            }
+            ranges.add(first == last ? Integer.toString(first) : first + "-" + last);
+            if(next == null) break;
+            first = last = next;
+        }
+        return ranges.toString();
+    }
+
+    /**
+     * Parses discord.shardIds: shard ids and ranges, ex. 0-3,8. Needs discord.shards to be set too.
+     * @return the ids, in order; empty if every shard is run here
+     */
+    private static Set<Integer> configuredIds() {
+        Set<Integer> ids = new TreeSet<>();
+        Set<String> parts = Settings.getSet("discord.shardIds");
+        if(parts.isEmpty()) return ids;
+        if(Settings.getInt("discord.shards", -1) <= 0) {
+            System.err.println("Ignoring discord.shardIds: discord.shards must be set with it");
+            return ids;
+        }
+        for(String part : parts) {
+            try {
+                int dash = part.indexOf('-');
+                int first = Integer.parseInt(part.substring(0, dash < 0 ? part.length() : dash).trim());
+                int last = dash < 0 ? first : Integer.parseInt(part.substring(dash + 1).trim());
+                for(int id = first; id <= last; id++) {
+                    ids.add(id);
+                }
+            }
+            catch(NumberFormatException e) {
+                System.err.println("Ignoring shard " + part + ": " + e);
+            }
+        }
+        return ids;
+    }
+}
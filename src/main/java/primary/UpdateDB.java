@@ -1,39 +1,39 @@
 package primary;
 
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
 import com.mongodb.client.*;
 import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.elemMatch;
 import static com.mongodb.client.model.Filters.eq;
-import static com.mongodb.client.model.Projections.*;
+import static com.mongodb.client.model.Filters.nor;
 import com.mongodb.client.model.*;
+import com.mongodb.client.result.UpdateResult;
 
 import net.dean.jraw.RedditClient;
 import net.dean.jraw.http.NetworkAdapter;
 import net.dean.jraw.http.OkHttpNetworkAdapter;
 import net.dean.jraw.http.UserAgent;
-import net.dean.jraw.models.Listing;
-import net.dean.jraw.models.SearchSort;
-import net.dean.jraw.models.Submission;
-import net.dean.jraw.models.TimePeriod;
 import net.dean.jraw.oauth.Credentials;
 import net.dean.jraw.oauth.OAuthHelper;
-import net.dean.jraw.pagination.Paginator;
-import net.dean.jraw.pagination.SearchPaginator;
-import net.dv8tion.jda.api.EmbedBuilder;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 
-import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
-import java.time.Instant;
+import java.io.File;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
 
 /**
  * Coordinates reading/writing to the database.
  * (NOTE: This class is NOT written as a library; all the methods are non-static.
- * This is because concurrency/semaphore methods such as wait() are non-static.
- * Still, there should only be one of these objects in existence at one time.)
+ * There should only be one of these objects in existence at one time, but it is safe
+ * to call from any number of threads: the Reddit and MongoDB clients are thread-safe,
+ * and every write to a guild's configuration is a single atomic MongoDB update.)
  * @author @eric-lu-VT (Eric Lu)
  */
 public class UpdateDB {
@@ -43,17 +43,26 @@ public class UpdateDB {
     private Credentials credentials;
     private NetworkAdapter adapter;
     private RedditClient reddit;
-
-    private MongoClient mongoClient; // Connects to MongoDB API
-
-    private boolean updateRedditLock; // lock for updateReddit(...) method
-    private boolean otherLock;        /* lock for all other read/write methods in the class
-                                         (No need for special locks for each method; MongoDB automatically
-                                         handles it for multiple concurrent operations to a single document
-                                         - see https://docs.mongodb.com/manual/core/write-operations-atomicity/) */
+    private RequestBudget budget;   // Reddit OAuth quota, shared by every request
+
+    private MongoClient mongoClient;                // Connects to MongoDB API
+    private MongoCollection<Document> serverposts;  // { guildId, channels, queries, running } per guild
+    private GuildConfigCache configs;               // In-memory copy of serverposts, read by scans and commands
+    private MongoCollection<Document> redditposts;  // Posts already sent, per guild (with seen.store=documents)
+    private SeenPostIndex seenPosts;                // Posts already sent, per guild (checked on every search result)
+    private PostStore postStore;                    // Persists the posts sent to each guild (redditposts, or seenbuckets)
+    private HighWaterMarks marks;                   // Newest post seen per (query, subreddit), so searches can stop early
+    private DeliveryPipeline delivery;              // Queues, coalesces and sends embeds to Discord channels
+    private PostScanner scanner;                    // Searches/streams Reddit and fans new posts out to guilds
+    private Backfill backfill;                      // Catches guilds up on the queries they add
+    private PollRates pollRates;                    // How often each scan job finds new posts, and so how often it runs
+    private JobLeases leases;                       // Which scan jobs this process runs, when several share the database
+    private MongoDatabase database;                 // reddit-scrape
+    private Journal journal;                        // Local record of posts, marks and configuration changes not yet in the database; null if off
 
     /**
-     * primary.UpdateDB constructor
+     * primary.UpdateDB constructor. The slow parts (logging in to Reddit, creating the indexes,
+     * and loading the configuration cache, marks, poll rates and seen-post index) run in parallel.
      * @param REDDITUSERUSERNAME Reddit username of the bot's owner
      * @param REDDITUSERPASSWORD Reddit password of the bot's owner
      * @param REDDITBOTID Reddit ID of the bot's owner
@@ -63,112 +72,353 @@ public class UpdateDB {
     public UpdateDB(String REDDITUSERUSERNAME, String REDDITUSERPASSWORD, String REDDITBOTID, String REDDITBOTSECRET, String MONGOURI) {
         userAgent = new UserAgent("bot", "bot", "v1.0", REDDITUSERUSERNAME);
         credentials = Credentials.script(REDDITUSERUSERNAME, REDDITUSERPASSWORD, REDDITBOTID, REDDITBOTSECRET);
-        adapter = new OkHttpNetworkAdapter(userAgent);
-        reddit = OAuthHelper.automatic(adapter, credentials);
+        budget = new RequestBudget(Settings.getInt("reddit.requestsPerMinute", 60), 1, TimeUnit.MINUTES); // Reddit's OAuth quota; corrected from response headers
+        int maxInFlight = Settings.getInt("reddit.maxInFlight", 8);
+        ConnectionPool connections = new ConnectionPool(maxInFlight, 5, TimeUnit.MINUTES); // one kept-alive connection per request in flight
+        OkHttpClient http = new OkHttpClient.Builder()
+                .connectionPool(connections)
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)) // multiplexed over one connection where Reddit allows
+                .build();
+        Metrics.gauge("reddit_connections", connections::connectionCount);
+        Metrics.gauge("reddit_connections_idle", connections::idleConnectionCount);
+        adapter = new BudgetedNetworkAdapter(new OkHttpNetworkAdapter(userAgent, http), budget);
         mongoClient = MongoClients.create(MONGOURI);
-        updateRedditLock = false;
-        otherLock = false;
-        setIndexes();
+        database = mongoClient.getDatabase("reddit-scrape");
+        serverposts = database.getCollection("serverposts");
+        redditposts = database.getCollection("redditposts");
+        BucketedPostStore buckets = Settings.get("seen.store", "documents").equalsIgnoreCase("buckets")
+                ? new BucketedPostStore(database.getCollection("seenbuckets"))
+                : null;
+        postStore = buckets != null ? buckets : new PostWriter(redditposts);
+        Runtime.getRuntime().addShutdownHook(new Thread(postStore::close));
+
+        // None of these depend on each other; each is mostly waiting on Reddit or MongoDB
+        ExecutorService init = Executors.newCachedThreadPool();
+        try {
+            Future<RedditClient> redditInit = init.submit(() -> OAuthHelper.automatic(adapter, credentials));
+            Future<?> indexesInit = init.submit(this::setIndexes);
+            Future<GuildConfigCache> configsInit = init.submit(() -> new GuildConfigCache(serverposts));
+            Future<HighWaterMarks> marksInit = init.submit(() -> new HighWaterMarks(database.getCollection(grouped("querymarks"))));
+            Future<PollRates> ratesInit = init.submit(() -> new PollRates(database.getCollection("queryrates"),
+                    budget.perMinute() * Settings.getInt("poll.budgetPercent", 80) / 100.0)); // rest is left for pagination and retries
+            Future<SeenPostIndex> seenInit = init.submit(() -> {
+                if(buckets != null) buckets.migrate(redditposts); // first run after switching stores
+                SeenPostIndex index = new SeenPostIndex();
+                postStore.load(index);
+                return index;
+            });
+
+            reddit = await(redditInit);
+            await(indexesInit);
+            configs = await(configsInit);
+            marks = await(marksInit);
+            pollRates = await(ratesInit);
+            seenPosts = await(seenInit);
+        }
+        finally {
+            init.shutdown();
+        }
+        reddit.setRateLimiter(budget);
+        configs.watch();
+
+        String journalDir = Settings.get("journal.dir", "");
+        if(!journalDir.isEmpty()) { // put back whatever the database missed before the last shutdown or crash
+            journal = new Journal(new File(journalDir));
+            journal.recover(seenPosts, postStore, marks);
+            postStore = new JournaledPostStore(postStore, journal);
+            marks.setJournal(journal);
+            replayWrites();
+        }
+        Metrics.gauge("seen_index_entries", seenPosts::size);
+
+        boolean clustered = Boolean.parseBoolean(Settings.get("cluster.enabled", "false"));
+        String nodeId = Settings.get("cluster.nodeId", JobLeases.defaultNodeId());
+        leases = clustered
+                ? new JobLeases(database.getCollection(grouped("leases")), database.getCollection(grouped("nodes")), nodeId)
+                : new JobLeases();
+        DeliveryClaims claims = clustered ? new DeliveryClaims(database.getCollection(grouped("claims")), nodeId) : null;
+        delivery = new DeliveryPipeline(Settings.getInt("delivery.queueSize", 100),
+                Settings.getLong("delivery.windowMs", 2000),
+                DeliveryPipeline.Overflow.valueOf(Settings.get("delivery.overflow", "DROP_OLDEST").toUpperCase()),
+                new JdaDiscordSink());
+
+        RedditSource source = Settings.get("reddit.reader", "lean").equalsIgnoreCase("jraw")
+                ? new JrawRedditSource(reddit)
+                : new LeanRedditSource(reddit, maxInFlight);
+        DuplicateIndex sentRecently = DuplicateIndex.fromSettings(); // shared, so live scans recognize copies of backfilled posts
+        scanner = new PostScanner(source, postStore, seenPosts, marks, delivery, sentRecently, claims);
+
+        // Backfills make their requests on their own threads, and only while the budget has permits to spare
+        int backfillThreads = Settings.getInt("backfill.parallelism", 2);
+        int reserve = Settings.getInt("backfill.reservePermits", 20);
+        Runnable gate = () -> budget.awaitSpare(reserve);
+        RedditSource backfillSource = Settings.get("reddit.reader", "lean").equalsIgnoreCase("jraw")
+                ? new JrawRedditSource(reddit, gate)
+                : new LeanRedditSource(reddit, backfillThreads, gate);
+        backfill = new Backfill(backfillSource, postStore, seenPosts, sentRecently, delivery, backfillThreads,
+                TimeUnit.HOURS.toMillis(Settings.getLong("backfill.maxHours", 24)), Settings.getInt("backfill.maxPages", 5));
     }
 
     /**
-     * For the given Discord guild, search for the queries attributed to said guild,
-     * and post the results to each elligible channel in the guild.
-     * @param guildId unique ID of guild in question
+     * primary.UpdateDB constructor for the guild configuration alone (channels and queries), without Reddit,
+     * scans or delivery; ex. to run the slash commands' database side in tests.
+     * @param database the reddit-scrape database
      */
-    public synchronized void updateReddit(String guildId) {
-        takeUpdateRedditLock();
+    UpdateDB(MongoDatabase database) {
+        this.database = database;
+        serverposts = database.getCollection("serverposts");
+        configs = new GuildConfigCache(serverposts);
+    }
 
-        MongoDatabase database = mongoClient.getDatabase("reddit-scrape");
-        MongoCollection<Document> serverposts = database.getCollection("serverposts");
+    /**
+     * Names a collection of the cluster's job placement. Processes that run different sets of Discord shards
+     * (discord.shardIds) only serve the guilds on their shards, so each set places its own jobs, among the
+     * processes running the same shards, and keeps its own search marks; processes running every shard share one set.
+     * @param name name of the collection
+     * @return name of this process's copy of it
+     */
+    private static String grouped(String name) {
+        String group = Shards.placementGroup();
+        return group.isEmpty() ? name : name + "-" + group;
+    }
 
-        Bson queryFilter = eq("guildId", guildId);
-        Bson projection = Projections.fields(Projections.include("queries", "channels"));
-
-        // Get the information pertaining to the requested guildId
-        serverposts.find(queryFilter).projection(projection).forEach(doc -> {
-            List<Document> queries = (List) doc.get("queries");
-            List<String> channels = (List<String>) doc.get("channels");
-
-            // For all queries attributed to the given server, search each one on Reddit and get results
-            queries.forEach(q -> {
-                String query = (String) q.get("query"), subreddit = (String) q.get("subreddit");
-
-                SearchPaginator paginator = reddit.subreddit(subreddit).search()
-                        .limit(Paginator.RECOMMENDED_MAX_LIMIT)
-                        .sorting(SearchSort.NEW)
-                        .timePeriod(TimePeriod.HOUR)
-                        .syntax(SearchPaginator.QuerySyntax.PLAIN)
-                        .query(query)
-                        .build();
-
-                // double for loop here = for each result from the Reddit search
-                for(Listing<Submission> nextPage : paginator) {
-                    for(Submission s : nextPage) {
-                        // Check database if results has been searched for, and from the current server.
-                        MongoCollection<Document> redditposts = database.getCollection("redditposts");
-                        FindIterable<Document> iterable = redditposts.find(Projections.fields(
-                                and(eq("postId", s.getFullName()), eq("guildId", guildId))));
-
-                        if(!iterable.iterator().hasNext()) { // if iterator is empty, then entry does not already exist
-                            // Send Reddit search information to database
-                            redditposts.insertOne(new Document()
-                                .append("_id", new ObjectId())
-                                .append("postId", s.getFullName())
-                                .append("subreddit", s.getSubreddit())
-                                .append("url", "https://www.reddit.com" + s.getPermalink())
-                                .append("date", s.getCreated())
-                                .append("guildId", guildId)
-                                .append("createdAt", new Date(System.currentTimeMillis()))
-                                .append("expireAt", new Date(System.currentTimeMillis() + 60 * 60 * 1000))); // expire in 60 minutes
-
-                            // For each elligible channel in the Discord server, send query results
-                            channels.forEach(channelId -> {
-                                String title = s.getTitle();
-                                if(title.length() > 253) { // For Reddit posts, max character length = 256
-                                    title = title.substring(0, 253) + "...";
-                                }
-                                String authorURL = "https://www.reddit.com/u/" + URLEncoder.encode(s.getAuthor(), StandardCharsets.UTF_8);
-                                String titleURL = "https://www.reddit.com" + s.getPermalink();
-
-                                EmbedBuilder embd = new EmbedBuilder();
-                                embd.setColor(0xffa500)
-                                    .setAuthor(s.getAuthor(), authorURL)
-                                    .setTitle(title, titleURL)
-                                    .setDescription(s.getScore() + " votes and " + s.getCommentCount() + " comments so far")
-                                    .setFooter("On r/" + s.getSubreddit())
-                                    .setTimestamp(Instant.ofEpochMilli(s.getCreated().getTime()));
-
-                                Bot.getJDA().getTextChannelById(channelId).sendMessage(embd.build()).queue();
-                            });
-                        }
-                    }
-                }
-            });
-        });
+    /**
+     * Waits for a startup task, rethrowing whatever it threw.
+     */
+    private static <T> T await(Future<T> task) {
+        try {
+            return task.get();
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted during startup", e);
+        }
+        catch(ExecutionException e) {
+            if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
 
-        System.out.println(guildId + " finished a search run");
-        releaseUpdateRedditLock();
+    /**
+     * Writes the posts sent so far, the search marks and the poll rates collected so far, one round trip each.
+     * With the journal on, also applies the configuration changes that are waiting, and checkpoints the journal
+     * if everything it recorded until now made it to the database.
+     */
+    public void flushPosts() {
+        long upTo = journal == null ? 0 : journal.position();
+        boolean written = postStore.flush();
+        written &= marks.flush();
+        pollRates.flush();
+        if(journal != null) {
+            replayWrites();
+            journal.checkpoint(written ? upTo : 0);
+        }
     }
 
     /**
-     * Sets the indexes for the documents in the database.
-     * This ensures faster/better time complexities for database search queries.
+     * Applies the journaled configuration changes, oldest first, stopping at the first one the database does not take.
      */
-    private synchronized void setIndexes() {
-        takeOtherLock();
+    private void replayWrites() {
+        for(Journal.Write write : journal.pendingWrites()) {
+            try {
+                write.apply(database);
+            }
+            catch(MongoException e) {   // still down; try again at the next flush
+                System.err.println(e);
+                return;
+            }
+            journal.applied(write);
+            Metrics.increment("journal_writes_replayed");
+        }
+    }
 
-        MongoDatabase database = mongoClient.getDatabase("reddit-scrape");
+    /**
+     * Applies a configuration change, or journals it for later if the database cannot take it now
+     * (or other changes are already waiting, since they must be applied in order).
+     * @param kind what the change does
+     * @param filter which serverposts document it applies to
+     * @param change the update, or the document to insert
+     * @return the result of an update applied now; null if it was journaled, or is not an update
+     */
+    private UpdateResult write(Journal.Write.Kind kind, Bson filter, Bson change) {
+        if(journal != null && journal.hasPendingWrites()) {
+            journal.write(Journal.Write.of(kind, filter, change));
+            return null;
+        }
+        try {
+            switch(kind) {
+                case INSERT: serverposts.insertOne((Document) change); return null;
+                case UPDATE: return serverposts.updateOne(filter, change);
+                case UPSERT: return serverposts.updateOne(filter, change, new UpdateOptions().upsert(true));
+                default: serverposts.deleteOne(filter); return null;
+            }
+        }
+        catch(MongoException e) {
+            if(journal == null) throw e;
+            System.err.println(e);
+            journal.write(Journal.Write.of(kind, filter, change));
+            return null;
+        }
+    }
 
-        MongoCollection<Document> serverposts = database.getCollection("serverposts");
+    /**
+     * Gets the arrival rates and intervals of the scan jobs.
+     * @return the poll rates
+     */
+    public PollRates getPollRates() {
+        return pollRates;
+    }
+
+    /**
+     * Gets the scan job leases of this process.
+     * @return the leases
+     */
+    public JobLeases getLeases() {
+        return leases;
+    }
+
+    /**
+     * Brings a job another node was running up to date before running it here: reads its mark again,
+     * and the posts that node sent to the job's guilds since this one loaded them.
+     * @param markKey the mark of the job's search or listing
+     * @param guildIds unique IDs of the guilds subscribed to the job
+     */
+    public void catchUp(QueryKey markKey, Collection<String> guildIds) {
+        marks.reload(markKey);
+        if(!guildIds.isEmpty()) postStore.load(seenPosts, guildIds);
+    }
+
+    /**
+     * Starts the search mark of a regrouped search from the marks of the searches it replaces (see HighWaterMarks.inherit).
+     * @param markKey the mark of the new search
+     * @param from the marks of the searches it replaces
+     */
+    public void inheritMark(QueryKey markKey, Collection<QueryKey> from) {
+        marks.inherit(markKey, from);
+    }
+
+    /**
+     * Forgets the search mark of a (query, subreddit) pair no guild searches anymore.
+     * @param key the (query, subreddit) pair
+     */
+    public void forgetQuery(QueryKey key) {
+        marks.remove(key);
+    }
+
+    /**
+     * Gets the in-memory seen-post index.
+     * @return the seen-post index
+     */
+    public SeenPostIndex getSeenPosts() {
+        return seenPosts;
+    }
+
+    /**
+     * Builds the union of the queries attributed to the given guilds (from the configuration cache; no database reads).
+     * @param guildIds unique IDs of the guilds in question
+     * @return { (query, subreddit) -> { guildId -> eligible channels } }
+     */
+    public Map<QueryKey, Map<String, List<String>>> getSubscriptions(List<String> guildIds) {
+        Map<QueryKey, Map<String, List<String>>> subscriptions = new HashMap<>();
+
+        for(String guildId : guildIds) {
+            GuildConfigCache.GuildConfig config = configs.get(guildId);
+            if(config == null) continue;
+            for(QueryKey key : config.getQueries()) {
+                subscriptions.computeIfAbsent(key, k -> new HashMap<>()).put(guildId, config.getChannels());
+            }
+        }
+
+        return subscriptions;
+    }
+
+    /**
+     * Gets the guilds whose script is turned on (from the configuration cache, so shared by every node).
+     * @return ids of the running guilds
+     */
+    public List<String> getRunningGuilds() {
+        return configs.runningGuilds();
+    }
+
+    /**
+     * Turns a guild's script on or off in the database.
+     * @param guildId unique id of the guild
+     * @param running true if the script is on
+     */
+    public void setRunning(String guildId, boolean running) {
+        write(Journal.Write.Kind.UPDATE, eq("guildId", guildId), Updates.set("running", running));
+        if(configs.get(guildId) != null) configs.update(guildId, config -> config.withRunning(running)); // not if the guild was removed
+    }
+
+    /**
+     * Gets the current subscribers of a (query, subreddit) pair.
+     * @param key the (query, subreddit) pair
+     * @return { guildId -> eligible channels } of every guild watching the pair, running or not
+     */
+    public Map<String, List<String>> getSubscribers(QueryKey key) {
+        Map<String, List<String>> subscribers = new HashMap<>();
+        for(String guildId : configs.watchers(key)) {
+            GuildConfigCache.GuildConfig config = configs.get(guildId);
+            if(config != null) subscribers.put(guildId, config.getChannels());
+        }
+        return subscribers;
+    }
+
+    /**
+     * Runs one search (of a single pair, or several combined by the QueryPlanner) once, and post
+     * the results to each elligible channel of every guild subscribed to a pair they match.
+     * Different searches may run in parallel; nothing here is shared between them except
+     * the (thread-safe) clients.
+     * @param batch the search
+     * @param subscribers { (query, subreddit) -> { guildId -> eligible channels } } for the pairs of the search
+     * @return number of new results
+     */
+    public int updateReddit(QueryPlanner.Batch batch, Map<QueryKey, Map<String, List<String>>> subscribers) {
+        return scanner.search(batch, subscribers);
+    }
+
+    /**
+     * For the given subreddit, read its /new listing once and post every match of the watched queries
+     * to each elligible channel of every guild subscribed to it (see primary.PostScanner.stream).
+     * @param subreddit the subreddit to read
+     * @param matcher matcher built from the queries, in the same order as keys
+     * @param keys the (query, subreddit) pairs watched in the subreddit
+     * @param subscribers { (query, subreddit) -> { guildId -> eligible channels } } for the keys
+     * @return number of new posts in the listing
+     */
+    public int updateRedditStream(String subreddit, AhoCorasick matcher, List<QueryKey> keys,
+                                  Map<QueryKey, Map<String, List<String>>> subscribers) {
+        return scanner.stream(subreddit, matcher, keys, subscribers);
+    }
+
+    /**
+     * Sets the indexes for the documents in the database.
+     * This ensures faster/better time complexities for database search queries.
+     */
+    private void setIndexes() {
         serverposts.createIndex(Indexes.hashed("guildId"));
 
-        MongoCollection<Document> redditposts = database.getCollection("redditposts");
-        redditposts.createIndex(Indexes.compoundIndex(Indexes.descending("postId"), Indexes.ascending("guildId")));
+        // Unique, so that inserting a post twice for the same guild fails instead of duplicating it
+        Bson postGuild = Indexes.compoundIndex(Indexes.descending("postId"), Indexes.ascending("guildId"));
+        try {
+            redditposts.createIndex(postGuild, new IndexOptions().unique(true));
+        }
+        catch(MongoCommandException e) {
+            if(e.getErrorCode() == 85 || e.getErrorCode() == 86) { // IndexOptionsConflict / IndexKeySpecsConflict: old non-unique index
+                redditposts.dropIndex(postGuild);
+                setIndexes();
+                return;
+            }
+            if(ErrorCategory.fromErrorCode(e.getErrorCode()) == ErrorCategory.DUPLICATE_KEY) { // old duplicates; they expire within 2 hours
+                System.err.println("redditposts has duplicate (postId, guildId) entries; unique index not created this run");
+                redditposts.createIndex(postGuild);
+            }
+            else {
+                throw e;
+            }
+        }
         redditposts.createIndex(Indexes.ascending("date"),
                 new IndexOptions().expireAfter(2L, TimeUnit.HOURS)); // TODO: can change based on testing
-
-        releaseOtherLock();
     }
 
     /**
@@ -176,38 +426,27 @@ public class UpdateDB {
      * @param guildId unique id of new guild
      * @param channels a list of ids pertaining to channels in the guild that are eligible for the primary.Bot to access
      */
-    public synchronized void addGuild(String guildId, List<String> channels) {
-        takeOtherLock();
-
-        MongoDatabase database = mongoClient.getDatabase("reddit-scrape");
-        MongoCollection<Document> collection = database.getCollection("serverposts");
-
-        collection.insertOne(new Document()
+    public void addGuild(String guildId, List<String> channels) {
+        Document doc = new Document()
             .append("_id", new ObjectId())
             .append("guildId", guildId)
             .append("channels", channels)
             .append("queries", Arrays.asList(new Document()
                     .append("_id", new ObjectId())
                     .append("query", "afhafafajhfaj")           // TODO: figure out how to not need dummy entry here
-                    .append("subreddit", "jahgajgajgajk"))));
-
-        releaseOtherLock();
+                    .append("subreddit", "jahgajgajgajk")));
+        write(Journal.Write.Kind.INSERT, null, doc);
+        configs.put(guildId, GuildConfigCache.GuildConfig.from(doc));
     }
 
     /**
      * Removes a guild form the database.
      * @param guildId unique id of guild to remove
      */
-    public synchronized void removeGuild(String guildId) {
-        takeOtherLock();
-
-        MongoDatabase database = mongoClient.getDatabase("reddit-scrape");
-        MongoCollection<Document> collection = database.getCollection("serverposts");
-
+    public void removeGuild(String guildId) {
         Bson queryFilter = eq("guildId", guildId);
-        collection.deleteOne(queryFilter);
-
-        releaseOtherLock();
+        write(Journal.Write.Kind.DELETE, queryFilter, null);
+        configs.remove(guildId);
     }
 
     /**
@@ -215,18 +454,11 @@ public class UpdateDB {
      * @param guildId id of guild the channel is in
      * @param channelId id of channel to add
      */
-    public synchronized void addChannel(String guildId, String channelId) {
-        takeOtherLock();
-
-        MongoDatabase database = mongoClient.getDatabase("reddit-scrape");
-        MongoCollection<Document> collection = database.getCollection("serverposts");
-
+    public void addChannel(String guildId, String channelId) {
         Bson queryFilter = eq("guildId", guildId);
         Bson update = Updates.push("channels", channelId);
-        FindOneAndUpdateOptions updateOptions = new FindOneAndUpdateOptions().upsert(true);
-        collection.findOneAndUpdate(queryFilter, update, updateOptions);
-
-        releaseOtherLock();
+        write(Journal.Write.Kind.UPSERT, queryFilter, update);
+        configs.update(guildId, config -> config.withChannel(channelId));
     }
 
     /**
@@ -234,49 +466,61 @@ public class UpdateDB {
      * @param guildId id of guild the channel is in
      * @param channelId id of channel to remove
      */
-    public synchronized void removeChannel(String guildId, String channelId) {
-        takeOtherLock();
-
-        MongoDatabase database = mongoClient.getDatabase("reddit-scrape");
-        MongoCollection<Document> collection = database.getCollection("serverposts");
-
+    public void removeChannel(String guildId, String channelId) {
         Bson queryFilter = eq("guildId", guildId);
         Bson update = Updates.pull("channels", channelId);
-        collection.updateOne(queryFilter, update);
-
-        releaseOtherLock();
+        write(Journal.Write.Kind.UPDATE, queryFilter, update);
+        configs.update(guildId, config -> config.withoutChannel(channelId));
     }
 
     /**
      * Adds a new query to a corresponding guild in the database, if it does not already exist.
+     * Queries already in the configuration cache are turned down without touching the database;
+     * otherwise the existence check and the push are a single conditional update, so two concurrent
+     * /addquery calls for the same query cannot both succeed.
      * @param guildId id of guild to attribute query to
      * @param queryStr query to search for
      * @param subredditStr subreddit to search query under
      * @return true if query add was successful (ie, the query does not already exist in the database); false otherwise
      */
-    public synchronized boolean addQuery(String guildId, String queryStr, String subredditStr) {
-        takeOtherLock();
-
-        MongoDatabase database = mongoClient.getDatabase("reddit-scrape");
-        MongoCollection<Document> collection = database.getCollection("serverposts");
+    public boolean addQuery(String guildId, String queryStr, String subredditStr) {
+        QueryKey key = new QueryKey(queryStr, subredditStr);
+        GuildConfigCache.GuildConfig config = configs.get(guildId);
+        if(config != null && config.getQueries().contains(key)) return false; // already has query to add
 
-        Bson queryFilter = eq("guildId", guildId);
-        Bson projection = Projections.fields( elemMatch("queries", and(eq("query", queryStr), eq("subreddit", subredditStr)))); // Add Projections
-        FindIterable<Document> iterable = collection.find(queryFilter).filter(projection);
-
-        if(iterable.iterator().hasNext()) return false; // already has query to add
+        // Make sure the guild has a document for the conditional update below to match
+        write(Journal.Write.Kind.UPSERT, eq("guildId", guildId), Updates.setOnInsert("queries", new ArrayList<Document>()));
 
+        Bson queryFilter = and(eq("guildId", guildId),
+                nor(elemMatch("queries", and(eq("query", queryStr), eq("subreddit", subredditStr)))));
         Bson update = Updates.push("queries", new Document()
                 .append("_id", new ObjectId())
                 .append("query", queryStr)
                 .append("subreddit", subredditStr));
-        FindOneAndUpdateOptions updateOptions = new FindOneAndUpdateOptions().upsert(true);
-        collection.findOneAndUpdate(queryFilter, update, updateOptions);
+        UpdateResult result = write(Journal.Write.Kind.UPDATE, queryFilter, update);
+        if(result != null && result.getModifiedCount() == 0) return false; // no match = already has query to add (journaled: trust the cache)
 
-        releaseOtherLock();
+        configs.update(guildId, current -> current.withQuery(key));
         return true;
     }
 
+    /**
+     * Searches further back for a query a guild just added, and sends the guild's channels a summary of what it missed.
+     * Runs in the background, behind the live scans (see primary.Backfill).
+     * @param guildId id of guild the query is attributed to
+     * @param queryStr query to search for
+     * @param subredditStr subreddit to search query under
+     * @param hours how far back to search; capped at backfill.maxHours
+     * @return the number of hours searched, or 0 if there was nothing to do (no hours, or no channels to send to)
+     */
+    public long backfillQuery(String guildId, String queryStr, String subredditStr, long hours) {
+        GuildConfigCache.GuildConfig config = configs.get(guildId);
+        if(hours <= 0 || config == null || config.getChannels().isEmpty()) return 0;
+        long window = Math.min(TimeUnit.HOURS.toMillis(hours), backfill.getMaxWindow());
+        backfill.start(guildId, config.getChannels(), new QueryKey(queryStr, subredditStr), window);
+        return TimeUnit.MILLISECONDS.toHours(window);
+    }
+
     /**
      * Removes a query from a corresponding guild in the database, if it exists.
      * @param guildId id of guild to remove query from
@@ -284,69 +528,19 @@ public class UpdateDB {
      * @param subredditStr subreddit to search query under
      * @return true if query add was successful (ie, the query exists in the database); false otherwise
      */
-    public synchronized boolean removeQuery(String guildId, String queryStr, String subredditStr) {
-        takeOtherLock();
-
-        MongoDatabase database = mongoClient.getDatabase("reddit-scrape");
-        MongoCollection<Document> collection = database.getCollection("serverposts");
+    public boolean removeQuery(String guildId, String queryStr, String subredditStr) {
+        QueryKey key = new QueryKey(queryStr, subredditStr);
+        GuildConfigCache.GuildConfig config = configs.get(guildId);
+        if(config != null && !config.getQueries().contains(key)) return false; // does not have query to remove
 
         Bson queryFilter = eq("guildId", guildId);
-        Bson projection = Projections.fields( elemMatch("queries", and(eq("query", queryStr), eq("subreddit", subredditStr)))); // Add Projections
-        FindIterable<Document> iterable = collection.find(queryFilter).filter(projection);
-        if(!iterable.iterator().hasNext()) return false; // does not have query to remove
-
         Bson fields = new Document().append("queries", new Document().append("query", queryStr)
                                                                      .append("subreddit", subredditStr));
         Bson update = new Document("$pull", fields);
-        collection.updateOne(queryFilter, update);
+        UpdateResult result = write(Journal.Write.Kind.UPDATE, queryFilter, update);
+        if(result != null && result.getModifiedCount() == 0) return false; // nothing pulled = does not have query to remove (journaled: trust the cache)
 
-        releaseOtherLock();
+        configs.update(guildId, current -> current.withoutQuery(key));
         return true;
     }
-
-    /**
-     * Sets updateRedditLock.
-     */
-    private synchronized void takeUpdateRedditLock() {
-        while(updateRedditLock && otherLock) {
-            try {
-                wait();
-            }
-            catch(InterruptedException e) {
-                // do nothing; smother
-            }
-        }
-        updateRedditLock = true;
-    }
-
-    /**
-     * Releases updateRedditLock.
-     */
-    private synchronized void releaseUpdateRedditLock() {
-        updateRedditLock = false;
-        notifyAll();
-    }
-
-    /**
-     * Sets otherLock.
-     */
-    private synchronized void takeOtherLock()  {
-        while(updateRedditLock) {
-            try {
-                wait();
-            }
-            catch(InterruptedException e) {
-                // do nothing; smother
-            }
-        }
-        otherLock = true;
-    }
-
-    /**
-     * Releases otherLock.
-     */
-    private synchronized void releaseOtherLock() {
-        otherLock = false;
-        notifyAll();
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,132 @@
+package primary;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.mongodb.client.model.Filters.eq;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A burst of /addquery and /removequery commands from many servers at once, handled the way the Bot handles
+ * them: received on one thread (JDA's event thread), then run on the commands executor (commands.threads)
+ * against the database, here an in-process MongoDB. Every query is added (then removed) twice, concurrently,
+ * so exactly one of each pair must succeed, and commands must not wait on each other inside primary.UpdateDB.
+ */
+
+public class CommandBurstTest {
+    private static final int GUILDS = 25;
+    private static final int QUERIES = 8;           // per guild
+
+    private MongoServer server;
+    private MongoClient client;
+    private MongoCollection<Document> serverposts;
+    private UpdateDB semaphore;
+    private ExecutorService commands;
+    private final AtomicInteger inFlight = new AtomicInteger();    // commands inside primary.UpdateDB
+    private final AtomicInteger peak = new AtomicInteger();        // most of them at once
+
+    @BeforeEach
+    public void setUp() {
+        server = new MongoServer(new MemoryBackend());
+        InetSocketAddress address = server.bind();
+        client = MongoClients.create("mongodb://" + address.getHostString() + ":" + address.getPort());
+        serverposts = client.getDatabase("reddit-scrape").getCollection("serverposts");
+        semaphore = new UpdateDB(client.getDatabase("reddit-scrape"));
+        commands = Executors.newFixedThreadPool(Settings.getInt("commands.threads", 4));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        commands.shutdownNow();
+        client.close();
+        server.shutdown();
+    }
+
+    @Test
+    public void burstOfQueryCommands() throws Exception {
+        Map<String, Integer> added = burst((guildId, query) -> semaphore.addQuery(guildId, query, "sub"));
+        for(int g = 0; g < GUILDS; g++) {
+            assertEquals(QUERIES, queries(guildId(g)).size());
+        }
+        Map<String, Integer> removed = burst((guildId, query) -> semaphore.removeQuery(guildId, query, "sub"));
+        for(int g = 0; g < GUILDS; g++) {
+            assertEquals(Collections.emptyList(), queries(guildId(g)));
+        }
+        for(Map<String, Integer> successes : Arrays.asList(added, removed)) {
+            assertEquals(GUILDS * QUERIES, successes.size());
+            for(Map.Entry<String, Integer> success : successes.entrySet()) {
+                assertEquals(1, (int) success.getValue(), success.getKey() + " succeeded " + success.getValue() + " times");
+            }
+        }
+        assertTrue(peak.get() > 1, "commands ran one at a time");
+    }
+
+    /**
+     * Sends every guild's every query twice, all at once, and waits for the replies.
+     * @param command the database side of the command
+     * @return how many times each guild's query succeeded, by "guildId query"
+     */
+    private Map<String, Integer> burst(Command command) throws Exception {
+        List<String> pending = new ArrayList<>();
+        for(int g = 0; g < GUILDS; g++) {
+            for(int q = 0; q < QUERIES; q++) {
+                pending.add(guildId(g) + " query" + q);
+                pending.add(guildId(g) + " query" + q);
+            }
+        }
+        Collections.shuffle(pending, new Random(1));
+
+        Map<String, Integer> successes = new ConcurrentHashMap<>();
+        List<Future<?>> replies = new ArrayList<>();
+        for(String c : pending) {   // JDA's event thread: acknowledge, hand over, move on
+            String[] parts = c.split(" ");
+            replies.add(commands.submit(() -> {
+                peak.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                try {
+                    if(command.run(parts[0], parts[1])) successes.merge(c, 1, Integer::sum);
+                    else successes.putIfAbsent(c, 0);
+                }
+                finally {
+                    inFlight.decrementAndGet();
+                }
+            }));
+        }
+        for(Future<?> reply : replies) {
+            reply.get(30, TimeUnit.SECONDS);
+        }
+        return successes;
+    }
+
+    /**
+     * Gets a guild's queries, as stored in the database.
+     */
+    @SuppressWarnings("unchecked")
+    private List<Document> queries(String guildId) {
+        Document doc = serverposts.find(eq("guildId", guildId)).first();
+        assertNotNull(doc, guildId);
+        return (List<Document>) doc.get("queries");
+    }
+
+    private static String guildId(int g) {
+        return Long.toString(300000000000000000L + g);
+    }
+
+    /**
+     * The database side of /addquery or /removequery.
+     */
+    private interface Command {
+        boolean run(String guildId, String query);
+    }
+}
@@ -0,0 +1,118 @@
+package primary;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Two nodes of a cluster scanning the same posts for the same guilds at the same time (ex. a search and a stream
+ * matching the same post, or a lease changing hands mid-scan), each with its own seen-post index, as in production.
+ * Against an in-process MongoDB.
+ */
+
+public class DeliveryClaimsTest {
+    private static final int POSTS = 200;
+    private static final long TIMEOUT = 10000;  // ms to wait for the deliveries
+    private static final List<String> GUILDS = Arrays.asList("100000000000000001", "100000000000000002", "100000000000000003");
+
+    private MongoServer server;
+    private MongoClient client;
+    private MongoCollection<Document> claims;
+
+    @BeforeEach
+    public void setUp() {
+        server = new MongoServer(new MemoryBackend());
+        InetSocketAddress address = server.bind();
+        client = MongoClients.create("mongodb://" + address.getHostString() + ":" + address.getPort());
+        claims = client.getDatabase("reddit-scrape").getCollection("claims");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        client.close();
+        server.shutdown();
+    }
+
+    @Test
+    public void eachPostIsSentToEachGuildOnce() throws Exception {
+        RecordingDiscordSink sent = new RecordingDiscordSink();    // what either node sent
+        scanBoth(node(sent, new DeliveryClaims(claims, "node-1")), node(sent, new DeliveryClaims(claims, "node-2")));
+
+        assertEquals(POSTS * GUILDS.size(), claims.countDocuments());
+        assertTrue(sent.awaitEmbeds(POSTS * GUILDS.size(), TIMEOUT), "only " + sent.getEmbeds() + " embeds sent");
+        assertEquals(POSTS * GUILDS.size(), sent.getEmbeds());
+    }
+
+    @Test
+    public void withoutClaimsBothNodesSend() throws Exception {
+        RecordingDiscordSink sent = new RecordingDiscordSink();
+        scanBoth(node(sent, null), node(sent, null));
+
+        assertTrue(sent.awaitEmbeds(2 * POSTS * GUILDS.size(), TIMEOUT), "only " + sent.getEmbeds() + " embeds sent");
+    }
+
+    @Test
+    public void claimsOnlyTheGuildsNobodyClaimedYet() {
+        DeliveryClaims one = new DeliveryClaims(claims, "node-1"), two = new DeliveryClaims(claims, "node-2");
+
+        assertEquals(new HashSet<>(GUILDS.subList(0, 2)), one.claim("t3_abc", GUILDS.subList(0, 2)));
+        assertEquals(Collections.singleton(GUILDS.get(2)), two.claim("t3_abc", GUILDS));
+        assertEquals(Collections.emptySet(), one.claim("t3_abc", GUILDS));
+        assertEquals(new HashSet<>(GUILDS), two.claim("t3_def", GUILDS));
+    }
+
+    private static PostScanner node(RecordingDiscordSink sink, DeliveryClaims claims) {
+        DeliveryPipeline delivery = new DeliveryPipeline(10 * POSTS, 1, DeliveryPipeline.Overflow.BLOCK, sink);
+        return new PostScanner(new SyntheticRedditSource(1, Collections.emptyList()), new InMemoryPostStore(),
+                new SeenPostIndex(), new HighWaterMarks(), delivery, null, claims);
+    }
+
+    /**
+     * Hands the same posts to both nodes from two threads at once.
+     */
+    private static void scanBoth(PostScanner first, PostScanner second) throws Exception {
+        Map<String, List<String>> subscribers = new LinkedHashMap<>();
+        for(String guildId : GUILDS) {
+            subscribers.put(guildId, Collections.singletonList("channel-" + guildId));
+        }
+        long now = System.currentTimeMillis();
+        List<RedditPost> posts = new ArrayList<>();
+        for(int i = 0; i < POSTS; i++) {
+            String id = Long.toString(1_000_000_000L + i, 36);
+            posts.add(new RedditPost("t3_" + id, "post " + i, null, "author", "sub", "/r/sub/comments/" + id + "/post/", 1, 0, now));
+        }
+
+        CyclicBarrier start = new CyclicBarrier(2);
+        ExecutorService nodes = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<?>> scans = new ArrayList<>();
+            for(PostScanner node : Arrays.asList(first, second)) {
+                scans.add(nodes.submit(() -> {
+                    start.await();
+                    for(RedditPost post : posts) {
+                        node.notifySubscribers(post, subscribers);
+                    }
+                    return null;
+                }));
+            }
+            for(Future<?> scan : scans) {
+                scan.get(30, TimeUnit.SECONDS);
+            }
+        }
+        finally {
+            nodes.shutdown();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package primary;
+
+import net.dv8tion.jda.api.EmbedBuilder;
+import net.dv8tion.jda.api.entities.MessageEmbed;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Channel queues go away once idle and come back on the next embed, and a channel first sent a summary
+ * (no guild) is routed through its guild once one is known.
+ */
+
+public class DeliveryPipelineTest {
+    private static final long TIMEOUT = 10000;  // ms to wait for a message
+
+    @Test
+    public void channelKeepsDeliveringAfterGoingIdle() throws Exception {
+        GuildRecordingSink sink = new GuildRecordingSink();
+        DeliveryPipeline delivery = new DeliveryPipeline(10, 1, DeliveryPipeline.Overflow.BLOCK, sink);
+
+        for(int i = 0; i < 50; i++) {
+            delivery.submit("channel", embed(), "guild", System.currentTimeMillis());
+            assertEquals("guild", sink.next());     // sent, then idle until the next one
+        }
+    }
+
+    @Test
+    public void guildIsTakenFromTheFirstEmbedThatHasOne() throws Exception {
+        GuildRecordingSink sink = new GuildRecordingSink();
+        DeliveryPipeline delivery = new DeliveryPipeline(10, 200, DeliveryPipeline.Overflow.BLOCK, sink);
+
+        delivery.submit("channel", embed());    // ex. a backfill summary
+        delivery.submit("channel", embed(), "guild", System.currentTimeMillis());
+        assertEquals("guild", sink.next());
+    }
+
+    private static MessageEmbed embed() {
+        return new EmbedBuilder().setTitle("post").build();
+    }
+
+    /**
+     * DiscordSink that records which guild each message was routed through.
+     */
+    private static final class GuildRecordingSink implements DiscordSink {
+        private final BlockingQueue<String> guilds = new LinkedBlockingQueue<>();
+
+        @Override
+        public boolean send(String guildId, String channelId, List<MessageEmbed> batch, Runnable success, Consumer<Throwable> failure) {
+            guilds.add(String.valueOf(guildId));
+            success.run();
+            return true;
+        }
+
+        String next() throws InterruptedException {
+            String guildId = guilds.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertNotNull(guildId, "nothing sent");
+            return guildId;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package primary;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+
+import static com.mongodb.client.model.Filters.eq;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Forgotten marks are deleted from querymarks with the next flush, against an in-process MongoDB.
+ */
+
+public class HighWaterMarksTest {
+    private static final QueryKey RUST = new QueryKey("rust", "programming");
+    private static final QueryKey GO = new QueryKey("go", "programming");
+
+    private MongoServer server;
+    private MongoClient client;
+    private MongoCollection<Document> querymarks;
+
+    @BeforeEach
+    public void setUp() {
+        server = new MongoServer(new MemoryBackend());
+        InetSocketAddress address = server.bind();
+        client = MongoClients.create("mongodb://" + address.getHostString() + ":" + address.getPort());
+        querymarks = client.getDatabase("reddit-scrape").getCollection("querymarks");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        client.close();
+        server.shutdown();
+    }
+
+    @Test
+    public void removedMarksAreDeletedAtTheNextFlush() {
+        HighWaterMarks marks = new HighWaterMarks(querymarks);
+        marks.advance(RUST, "t3_a", 1000);
+        marks.advance(GO, "t3_b", 2000);
+        assertTrue(marks.flush());
+        assertEquals(2, querymarks.countDocuments());
+
+        marks.remove(RUST);
+        assertNull(marks.get(RUST));
+        assertEquals(2, querymarks.countDocuments()); // nothing written until the flush
+
+        assertTrue(marks.flush());
+        assertEquals(0, querymarks.countDocuments(eq("query", "rust")));
+        assertEquals(1, querymarks.countDocuments(eq("query", "go")));
+        assertNull(new HighWaterMarks(querymarks).get(RUST));
+    }
+
+    @Test
+    public void markSearchedAgainBeforeTheFlushIsKept() {
+        HighWaterMarks marks = new HighWaterMarks(querymarks);
+        marks.advance(RUST, "t3_a", 1000);
+        assertTrue(marks.flush());
+
+        marks.remove(RUST);
+        marks.advance(RUST, "t3_c", 3000);
+        assertTrue(marks.flush());
+
+        HighWaterMarks reloaded = new HighWaterMarks(querymarks);
+        assertEquals("t3_c", reloaded.get(RUST).getFullName());
+    }
+}
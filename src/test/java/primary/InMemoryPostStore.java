@@ -0,0 +1,50 @@
+package primary;
+
+import java.util.*;
+
+/**
+ * PostStore that keeps its records in memory until the next flush, and then forgets them.
+ */
+
+public class InMemoryPostStore implements PostStore {
+    private final List<String> guildIds = new ArrayList<>();    // guild of each pending record; guarded by this
+    private final List<RedditPost> posts = new ArrayList<>();   // post of each pending record; guarded by this
+    private long flushed;                                       // records dropped by flush; guarded by this
+
+    @Override
+    public void load(SeenPostIndex index) {
+        // nothing survives a restart
+    }
+
+    @Override
+    public void load(SeenPostIndex index, Collection<String> guildIds) {
+        // nothing survives a restart
+    }
+
+    @Override
+    public synchronized void record(String guildId, RedditPost post) {
+        guildIds.add(guildId);
+        posts.add(post);
+    }
+
+    @Override
+    public synchronized boolean flush() {
+        flushed += posts.size();
+        guildIds.clear();
+        posts.clear();
+        return true;
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+
+    /**
+     * Gets the number of records made so far.
+     * @return the record count
+     */
+    public synchronized long getRecorded() {
+        return flushed + posts.size();
+    }
+}
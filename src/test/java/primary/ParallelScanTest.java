@@ -0,0 +1,118 @@
+package primary;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongPredicate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Guild scans share the seen-post index, the store, the marks and the delivery pipeline, but nothing that
+ * serializes them: against a Reddit that holds every search until all of them have arrived, N guilds scanning
+ * at once all get their searches in.
+ */
+
+public class ParallelScanTest {
+    private static final long TIMEOUT = 10000;  // ms a search waits for the others
+    private static final int GUILDS = 8;
+    private static final int PAGE = 25;
+
+    @Test
+    public void guildsScanInParallel() throws Exception {
+        RecordingDiscordSink sink = new RecordingDiscordSink();
+        GatedRedditSource reddit = new GatedRedditSource(new SyntheticRedditSource(PAGE, Collections.emptyList()), GUILDS);
+        PostScanner scanner = new PostScanner(reddit, new InMemoryPostStore(), new SeenPostIndex(), new HighWaterMarks(),
+                new DeliveryPipeline(10 * PAGE, 1, DeliveryPipeline.Overflow.BLOCK, sink));
+
+        scan(scanner, GUILDS);
+
+        assertEquals(GUILDS, reddit.getPeakInFlight());
+        assertTrue(sink.awaitEmbeds(GUILDS * PAGE, TIMEOUT), "only " + sink.getEmbeds() + " embeds sent");
+        assertEquals(GUILDS * PAGE, sink.getEmbeds());
+    }
+
+    /**
+     * Scans one query per guild, every guild on its own thread, and waits for them all.
+     */
+    private static void scan(PostScanner scanner, int guilds) throws Exception {
+        ExecutorService workers = Executors.newFixedThreadPool(guilds);
+        try {
+            List<Future<Integer>> scans = new ArrayList<>();
+            for(int i = 0; i < guilds; i++) {
+                String guildId = Long.toString(200000000000000000L + i);
+                QueryKey key = new QueryKey("query" + i, "sub");
+                Map<QueryKey, Map<String, List<String>>> subscribers = Collections.singletonMap(key,
+                        Collections.singletonMap(guildId, Collections.singletonList("channel-" + guildId)));
+                QueryPlanner.Batch batch = QueryPlanner.plan(Collections.singletonList(key)).get(0);
+                scans.add(workers.submit(() -> scanner.search(batch, subscribers)));
+            }
+            for(Future<Integer> scan : scans) {
+                assertEquals(PAGE, (int) scan.get(2 * TIMEOUT, TimeUnit.MILLISECONDS));
+            }
+        }
+        finally {
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * RedditSource that holds each search until a number of them are in flight at once (or a timeout passes),
+     * and records the most that were.
+     */
+    private static final class GatedRedditSource implements RedditSource {
+        private final RedditSource source;
+        private final CountDownLatch arrived;       // counted down by every search
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger peak = new AtomicInteger();
+
+        GatedRedditSource(RedditSource source, int expected) {
+            this.source = source;
+            arrived = new CountDownLatch(expected);
+        }
+
+        @Override
+        public Iterable<List<RedditPost>> search(String query, String subreddit, boolean lucene, int limit, long window,
+                                                 int maxPages, LongPredicate handled) {
+            enter();
+            try {
+                return source.search(query, subreddit, lucene, limit, window, maxPages, handled);
+            }
+            finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        @Override
+        public Iterable<List<RedditPost>> newPosts(String subreddit, int limit, LongPredicate handled) {
+            enter();
+            try {
+                return source.newPosts(subreddit, limit, handled);
+            }
+            finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        /**
+         * Gets the most searches that were in flight at once.
+         * @return the peak
+         */
+        int getPeakInFlight() {
+            return peak.get();
+        }
+
+        private void enter() {
+            peak.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            arrived.countDown();
+            try {
+                arrived.await(TIMEOUT, TimeUnit.MILLISECONDS); // a serialized scan would sit here alone
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package primary;
+
+import net.dv8tion.jda.api.entities.MessageEmbed;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * DiscordSink that sends nothing: it counts what it was given and reports success right away.
+ */
+
+public class RecordingDiscordSink implements DiscordSink {
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder embeds = new LongAdder();
+
+    @Override
+    public boolean send(String guildId, String channelId, List<MessageEmbed> batch, Runnable success, Consumer<Throwable> failure) {
+        messages.increment();
+        embeds.add(batch.size());
+        synchronized(this) {
+            notifyAll();
+        }
+        success.run();
+        return true;
+    }
+
+    /**
+     * Waits until at least a number of embeds were sent (deliveries go out on the pipeline's own thread).
+     * @param count embeds to wait for
+     * @param timeout most time to wait (ms)
+     * @return true if they were sent; false if the time ran out first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean awaitEmbeds(long count, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long left;
+        while(embeds.sum() < count) {
+            if((left = deadline - System.currentTimeMillis()) <= 0) return false;
+            wait(left);
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of messages sent so far.
+     * @return the message count
+     */
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    /**
+     * Gets the number of embeds sent so far, over all messages.
+     * @return the embed count
+     */
+    public long getEmbeds() {
+        return embeds.sum();
+    }
+}
@@ -0,0 +1,221 @@
+package primary;
+
+import com.sun.net.httpserver.HttpServer;
+import net.dean.jraw.http.HttpRequest;
+import net.dean.jraw.http.HttpResponse;
+import net.dean.jraw.http.NetworkAdapter;
+import net.dean.jraw.http.UserAgent;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Many searches sharing one RequestBudget against a local fake Reddit that enforces its quota the way Reddit
+ * does: a fixed window, X-Ratelimit-* headers on every response, and a 429 for every request over the quota.
+ * Requests go through BudgetedNetworkAdapter, each first attempt taking a permit the way the RedditClient does.
+ */
+
+public class RequestBudgetTest {
+    private static final int QUOTA = 20;        // requests per window
+    private static final long WINDOW = 2000;    // ms
+    private static final int WINDOWS = 4;       // how long the searches run for
+    private static final int SEARCHES = 8;      // threads requesting at once
+
+    private FakeReddit reddit;
+    private OkHttpClient http;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        reddit = new FakeReddit(0);
+        http = new OkHttpClient();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        reddit.stop();
+        http.dispatcher().executorService().shutdown();
+        http.connectionPool().evictAll();
+    }
+
+    @Test
+    public void neverExceedsTheQuota() throws Exception {
+        RequestBudget budget = new RequestBudget(QUOTA, WINDOW, TimeUnit.MILLISECONDS);
+        List<Integer> shares = search(budget);
+        int sent = sum(shares);
+
+        assertTrue(reddit.rejected().isEmpty(), "requests over the quota: " + reddit.rejected());
+        assertTrue(sent >= (WINDOWS - 1) * QUOTA, "only " + sent + " requests went through");
+        assertFairShares(shares);
+    }
+
+    @Test
+    public void followsTheHeadersWhenTheQuotaIsSharedWithAnotherClient() throws Exception {
+        reddit.stop();
+        reddit = new FakeReddit(QUOTA / 2);    // another client spends half of every window
+        RequestBudget budget = new RequestBudget(QUOTA, WINDOW, TimeUnit.MILLISECONDS);
+        List<Integer> shares = search(budget);
+        int sent = sum(shares);
+
+        assertTrue(reddit.rejected().isEmpty(), "requests over the quota: " + reddit.rejected());
+        assertTrue(sent >= (WINDOWS - 1) * QUOTA / 2, "only " + sent + " requests went through");
+        assertFairShares(shares);
+    }
+
+    /**
+     * Checks that every search got permits, and none got many more than the others:
+     * waiting searches queue on the budget's fair lock and take turns.
+     */
+    private static void assertFairShares(List<Integer> shares) {
+        int fair = sum(shares) / shares.size();
+        for(int share : shares) {
+            assertTrue(share > 0 && share >= fair / 2 && share <= 2 * fair + 1, "unfair shares: " + shares);
+        }
+    }
+
+    private static int sum(List<Integer> shares) {
+        int sum = 0;
+        for(int share : shares) {
+            sum += share;
+        }
+        return sum;
+    }
+
+    /**
+     * Runs the searches until the windows are up.
+     * @return how many requests Reddit answered with a 200, per search
+     */
+    private List<Integer> search(RequestBudget budget) throws Exception {
+        BudgetedNetworkAdapter adapter = new BudgetedNetworkAdapter(new OkHttpAdapter(http), budget);
+        HttpRequest request = new HttpRequest.Builder().url(reddit.url()).build();
+        long deadline = reddit.start() + WINDOWS * WINDOW;
+        ExecutorService searches = Executors.newFixedThreadPool(SEARCHES);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for(int i = 0; i < SEARCHES; i++) {
+                results.add(searches.submit(() -> {
+                    int ok = 0;
+                    while(true) {
+                        budget.acquire();
+                        if(System.currentTimeMillis() >= deadline) return ok;
+                        HttpResponse response = adapter.execute(request);
+                        if(response.getCode() == 200) ok++;
+                        response.getRaw().close();
+                    }
+                }));
+            }
+            List<Integer> shares = new ArrayList<>();
+            for(Future<Integer> result : results) {
+                shares.add(result.get(WINDOWS * WINDOW + 30000, TimeUnit.MILLISECONDS));
+            }
+            return shares;
+        }
+        finally {
+            searches.shutdownNow();
+        }
+    }
+
+    /**
+     * Answers every request, counting them per fixed window; over the quota it answers 429.
+     */
+    private static final class FakeReddit {
+        private final HttpServer server;
+        private final int spentElsewhere;                                       // requests other clients make per window
+        private final long start = System.currentTimeMillis();
+        private final Map<Long, Integer> used = new HashMap<>();                // window -> requests counted; guarded by this
+        private final Map<Long, Integer> rejected = new ConcurrentSkipListMap<>(); // window -> requests answered 429
+
+        FakeReddit(int spentElsewhere) throws IOException {
+            this.spentElsewhere = spentElsewhere;
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.setExecutor(Executors.newCachedThreadPool());
+            server.createContext("/", exchange -> {
+                long now = System.currentTimeMillis();
+                long window = (now - start) / WINDOW;
+                int count, code;
+                synchronized(this) {
+                    count = used.merge(window, 1, Integer::sum) + spentElsewhere;
+                    code = count > QUOTA ? 429 : 200;
+                    if(code == 429) rejected.merge(window, 1, Integer::sum);
+                }
+                long reset = (window + 1) * WINDOW - (now - start);
+                exchange.getResponseHeaders().add("X-Ratelimit-Used", Integer.toString(count));
+                exchange.getResponseHeaders().add("X-Ratelimit-Remaining", Integer.toString(Math.max(0, QUOTA - count)));
+                exchange.getResponseHeaders().add("X-Ratelimit-Reset", Double.toString(reset / 1000.0));
+                if(code == 429) exchange.getResponseHeaders().add("Retry-After", Long.toString((reset + 999) / 1000));
+                byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(code, body.length);
+                try(OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+        }
+
+        String url() {
+            return "http://127.0.0.1:" + server.getAddress().getPort() + "/r/sub/search.json";
+        }
+
+        long start() {
+            return start;
+        }
+
+        Map<Long, Integer> rejected() {
+            return rejected;
+        }
+
+        void stop() {
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdownNow();
+        }
+    }
+
+    /**
+     * The plain HTTP underneath, like JRAW's OkHttpNetworkAdapter.
+     */
+    private static final class OkHttpAdapter implements NetworkAdapter {
+        private final OkHttpClient http;
+        private UserAgent userAgent = new UserAgent("test", "primary", "v1.0", "tester");
+
+        OkHttpAdapter(OkHttpClient http) {
+            this.http = http;
+        }
+
+        @Override
+        public UserAgent getUserAgent() {
+            return userAgent;
+        }
+
+        @Override
+        public void setUserAgent(UserAgent userAgent) {
+            this.userAgent = userAgent;
+        }
+
+        @Override
+        public HttpResponse execute(HttpRequest r) {
+            try {
+                return new HttpResponse(http.newCall(new Request.Builder().url(r.getUrl()).build()).execute());
+            }
+            catch(IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public WebSocket connect(String url, WebSocketListener listener) {
+            return http.newWebSocket(new Request.Builder().url(url).build(), listener);
+        }
+    }
+}
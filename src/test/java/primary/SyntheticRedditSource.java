@@ -0,0 +1,71 @@
+package primary;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongPredicate;
+
+/**
+ * RedditSource that makes up its posts. Every call returns a fresh page of posts, newer than
+ * anything returned before, whose titles contain the query searched for (one of the OR-ed terms, for
+ * lucene queries; for /new, a rotating mix of the given words) and which are spread over the
+ * subreddits searched, so scans always have new work (none of them was handled already).
+ */
+
+public class SyntheticRedditSource implements RedditSource {
+    private final int pageSize;         // posts per call
+    private final List<String> words;   // words mixed into /new titles
+    private final AtomicLong nextId;    // base36 id of the next post
+    private final AtomicLong clock;     // creation time of the next post (ms)
+
+    /**
+     * primary.SyntheticRedditSource constructor
+     * @param pageSize posts returned by each call
+     * @param words words mixed into the titles of /new posts
+     */
+    public SyntheticRedditSource(int pageSize, List<String> words) {
+        this.pageSize = pageSize;
+        this.words = words;
+        nextId = new AtomicLong(1_000_000);
+        clock = new AtomicLong(System.currentTimeMillis() - 60000);
+    }
+
+    @Override
+    public Iterable<List<RedditPost>> search(String query, String subreddit, boolean lucene, int limit, long window,
+                                             int maxPages, LongPredicate handled) {
+        List<String> terms = new ArrayList<>();
+        if(lucene) {
+            for(String term : query.split(" OR ")) {
+                terms.add(term.replace("\"", ""));
+            }
+        }
+        else {
+            terms.add(query);
+        }
+        return Collections.singletonList(page(subreddit, terms, Math.min(limit, pageSize)));
+    }
+
+    @Override
+    public Iterable<List<RedditPost>> newPosts(String subreddit, int limit, LongPredicate handled) {
+        return Collections.singletonList(page(subreddit, words, Math.min(limit, pageSize)));
+    }
+
+    /**
+     * Makes one page, newest first.
+     */
+    private List<RedditPost> page(String subreddits, List<String> terms, int size) {
+        String[] subs = subreddits.split("\\+");
+        long firstId = nextId.getAndAdd(size);
+        long newest = clock.addAndGet(size);
+        List<RedditPost> page = new ArrayList<>(size);
+        for(int i = size - 1; i >= 0; i--) {
+            long id = firstId + i;
+            String word = terms.get((int) (id % terms.size()));
+            String subreddit = subs[(int) (id % subs.length)];
+            String name = Long.toString(id, 36);
+            page.add(new RedditPost("t3_" + name, "Post " + name + " about " + word, null, "user" + (id % 1000),
+                    subreddit, "/r/" + subreddit + "/comments/" + name + "/", (int) (id % 500), (int) (id % 50),
+                    newest - (size - 1 - i)));
+        }
+        return page;
+    }
+}